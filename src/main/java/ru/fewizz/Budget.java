@@ -0,0 +1,197 @@
+package ru.fewizz;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Бюджет времени и памяти на обработку класса или на весь этап.<p>
+ * Лимиты задаются системными свойствами <code>ru.fewizz.budget.&lt;имя&gt;</code>
+ * и переопределяются для отдельного обфускатора настройкой
+ * <code>budget.&lt;имя&gt;</code> ({@link Obfuscator#getOption}), например
+ * <code>-Dru.fewizz.obfuscators.ControlFlowObfuscator.budget.classMillis=2000</code>:
+ * <ul>
+ * <li><code>classMillis</code>, <code>classBytes</code> - время и объем выделенной
+ *  на куче памяти на один класс</li>
+ * <li><code>stageMillis</code>, <code>stageBytes</code> - то же на весь этап</li>
+ * </ul>
+ * 0 или отсутствие свойства - без ограничения.<p>
+ * Память считается как объем выделенного потоком (а не занятого после сборки мусора):
+ * его можно измерить без остановки программы, и он пропорционален работе обфускатора.<p>
+ * Бюджет класса проверяется кооперативно: долгие циклы обфускаторов вызывают {@link #check()},
+ * который бросает {@link ExceededException}, если у текущего потока есть бюджет и он исчерпан.
+ * Задачи, которые обфускатор отдает другим потокам, получают бюджет через {@link #bind},
+ * и выделенная ими память учитывается после завершения каждой задачи
+ */
+public final class Budget {
+
+    private static final String PROPERTY_PREFIX = "ru.fewizz.budget.";
+
+    private static final ThreadLocal<Budget> CURRENT = new ThreadLocal<>();
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads &&
+        threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled() ?
+            threads : null;
+
+    /**
+     * Лимиты этапа, 0 - без ограничения
+     */
+    public record Limits(long classNanos, long classBytes, long stageNanos, long stageBytes) {
+
+        public static Limits forStage(Obfuscator obfuscator) {
+            return new Limits(
+                get(obfuscator, "classMillis") * 1_000_000,
+                get(obfuscator, "classBytes"),
+                get(obfuscator, "stageMillis") * 1_000_000,
+                get(obfuscator, "stageBytes")
+            );
+        }
+
+        private static long get(Obfuscator obfuscator, String name) {
+            String value = obfuscator.getOption("budget." + name, System.getProperty(PROPERTY_PREFIX + name));
+            return value == null ? 0 : Long.parseLong(value);
+        }
+
+        public boolean hasClassLimits() {
+            return this.classNanos > 0 || this.classBytes > 0;
+        }
+
+    }
+
+    /**
+     * Превышение бюджета. Обфускаторы не должны его перехватывать
+     */
+    public static final class ExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ExceededException(String message) {
+            super(message, null, false, false);
+        }
+
+    }
+
+    private final long nanosLimit;
+    private final long bytesLimit;
+    private final long startNanos;
+    private final long startBytes;
+    private final long ownerId;
+    // Память, выделенная завершенными задачами других потоков
+    private final LongAdder boundBytes = new LongAdder();
+
+    /**
+     * Начинает отсчет бюджета в текущем потоке
+     * @param nanosLimit Лимит времени, 0 - без ограничения
+     * @param bytesLimit Лимит выделенной памяти, 0 - без ограничения
+     */
+    public Budget(long nanosLimit, long bytesLimit) {
+        this.nanosLimit = nanosLimit;
+        this.bytesLimit = bytesLimit;
+        this.startNanos = System.nanoTime();
+        this.startBytes = allocatedBytes();
+        this.ownerId = Thread.currentThread().threadId();
+    }
+
+    public long getElapsedNanos() {
+        return System.nanoTime() - this.startNanos;
+    }
+
+    /**
+     * @return Объем памяти, выделенной с начала отсчета создавшим бюджет потоком
+     *  и завершенными задачами из {@link #bind}, либо 0, если JVM этого не измеряет
+     */
+    public long getAllocatedBytes() {
+        long ownerBytes = Thread.currentThread().threadId() == this.ownerId ?
+            allocatedBytes() :
+            THREADS == null ? 0 : THREADS.getThreadAllocatedBytes(this.ownerId);
+        return ownerBytes - this.startBytes + this.boundBytes.sum();
+    }
+
+    /**
+     * @return Описание превышенного лимита, либо <code>null</code>
+     */
+    public String getExceededLimit() {
+        long nanos = this.getElapsedNanos();
+        if (this.nanosLimit > 0 && nanos > this.nanosLimit) {
+            return "time " + nanos / 1_000_000 + " ms > " + this.nanosLimit / 1_000_000 + " ms";
+        }
+        if (this.bytesLimit > 0) {
+            long bytes = this.getAllocatedBytes();
+            if (bytes > this.bytesLimit) {
+                return "memory " + bytes + " B > " + this.bytesLimit + " B";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Выполняет <code>action</code> в текущем потоке с этим бюджетом
+     * (см. {@link #check()})
+     */
+    public <T> T run(Callable<T> action) throws Exception {
+        Budget previous = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            return action.call();
+        } finally {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * @return Задача, выполняющая <code>action</code> с этим бюджетом в любом потоке
+     */
+    public <T> Callable<T> bind(Callable<T> action) {
+        return () -> {
+            if (Thread.currentThread().threadId() == this.ownerId) {
+                return this.run(action);
+            }
+            long start = allocatedBytes();
+            try {
+                return this.run(action);
+            } finally {
+                this.boundBytes.add(allocatedBytes() - start);
+            }
+        };
+    }
+
+    /**
+     * @return Бюджет текущего потока, либо <code>null</code>
+     */
+    public static Budget current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return {@link ExceededException} из цепочки причин <code>e</code>, либо <code>null</code>.
+     *  Библиотеки (например, <code>Analyzer</code> из ASM) оборачивают исключения обратных вызовов
+     */
+    public static ExceededException findExceeded(Throwable e) {
+        for (; e != null; e = e.getCause()) {
+            if (e instanceof ExceededException exceeded) {
+                return exceeded;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Бросает {@link ExceededException}, если бюджет текущего потока исчерпан.
+     * Без бюджета ничего не делает
+     */
+    public static void check() {
+        Budget budget = CURRENT.get();
+        if (budget == null) {
+            return;
+        }
+        String exceeded = budget.getExceededLimit();
+        if (exceeded != null) {
+            throw new ExceededException(exceeded);
+        }
+    }
+
+    private static long allocatedBytes() {
+        return THREADS == null ? 0 : THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+}
@@ -0,0 +1,176 @@
+package ru.fewizz;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Байты класс-файлов вне кучи: в отображенных в память файлах
+ * или в прямых (direct) буферах-аренах.<p>
+ * На куче хранятся только смещения и длины в массивах примитивов, поэтому
+ * нагрузка на сборщик мусора не растет с объемом входных данных.
+ * Копия класса на куче создается только на время его обработки ({@link #get}).<p>
+ * Память арен не освобождается, а переиспользуется после {@link #clear()}.
+ * Объем арен ограничен <code>-XX:MaxDirectMemorySize</code> (по умолчанию - размер кучи).<p>
+ * Не потокобезопасен
+ */
+public final class ClassStore {
+
+    private static final int CHUNK_SIZE = 16 << 20;
+    // Файлы меньше этого размера читаются в арену: отображение каждого
+    // маленького файла расходует страницы и лимит vm.max_map_count
+    private static final long MAP_THRESHOLD = 1 << 20;
+
+    // Арены, в том числе свободные после clear()
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private int usedChunks = 0;
+    private ByteBuffer current;
+    private int currentSegment;
+
+    // Буферы, на которые ссылаются классы: арены и отображенные файлы
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    // Буферы других хранилищ -> индекс в segments. ByteBuffer.equals сравнивает
+    // содержимое, поэтому только по ссылке
+    private final Map<ByteBuffer, Integer> sharedSegments = new IdentityHashMap<>();
+    // Класс i: segments[segmentIndices[i]], начиная с offsets[i], lengths[i] байт
+    private int[] segmentIndices = new int[1024];
+    private int[] offsets = new int[1024];
+    private int[] lengths = new int[1024];
+    private int size = 0;
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return Копия байтов класса на куче
+     */
+    public byte[] get(int index) {
+        byte[] bytes = new byte[this.lengths[index]];
+        this.segments.get(this.segmentIndices[index]).get(this.offsets[index], bytes);
+        return bytes;
+    }
+
+    public void add(byte[] bytes) {
+        int segmentIndex = this.allocate(bytes.length);
+        ByteBuffer chunk = this.segments.get(segmentIndex);
+        int offset = chunk.position();
+        chunk.put(bytes);
+        this.addEntry(segmentIndex, offset, bytes.length);
+    }
+
+    /**
+     * Добавляет класс из файла без копии на куче: большие файлы отображаются в память,
+     * остальные читаются прямо в арену
+     */
+    public void add(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            this.add(channel);
+        }
+    }
+
+    /**
+     * Добавляет все содержимое файла, см. {@link #add(Path)}
+     */
+    public void add(FileChannel channel) throws IOException {
+        long length = channel.size();
+        if (length >= MAP_THRESHOLD) {
+            this.add(channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+            return;
+        }
+        int segmentIndex = this.allocate((int) length);
+        ByteBuffer chunk = this.segments.get(segmentIndex);
+        int offset = chunk.position();
+        ByteBuffer target = chunk.slice(offset, (int) length);
+        while (target.hasRemaining()) {
+            if (channel.read(target, target.position()) == -1) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        chunk.position(offset + (int) length);
+        this.addEntry(segmentIndex, offset, (int) length);
+    }
+
+    /**
+     * Добавляет ссылку на байты буфера от <code>position</code> до <code>limit</code>,
+     * без копирования. Буфер не должен изменяться, пока класс хранится
+     */
+    public void add(ByteBuffer buffer) {
+        this.segments.add(buffer);
+        this.addEntry(this.segments.size() - 1, buffer.position(), buffer.remaining());
+    }
+
+    /**
+     * Добавляет класс из другого хранилища без копирования: буфер, в котором
+     * он лежит, становится общим. Поэтому <code>other</code> после этого
+     * нельзя очищать и заполнять заново
+     */
+    public void add(ClassStore other, int index) {
+        ByteBuffer segment = other.segments.get(other.segmentIndices[index]);
+        int segmentIndex = this.sharedSegments.computeIfAbsent(segment, s -> {
+            this.segments.add(s);
+            return this.segments.size() - 1;
+        });
+        this.addEntry(segmentIndex, other.offsets[index], other.lengths[index]);
+    }
+
+    /**
+     * Удаляет все классы. Арены остаются и заполняются заново
+     */
+    public void clear() {
+        this.segments.clear();
+        this.sharedSegments.clear();
+        this.size = 0;
+        this.usedChunks = 0;
+        this.current = null;
+    }
+
+    /**
+     * @return Индекс в <code>segments</code> буфера, в котором с его <code>position</code>
+     *  свободно не меньше <code>length</code> байт
+     */
+    private int allocate(int length) {
+        if (this.current != null && this.current.remaining() >= length) {
+            return this.currentSegment;
+        }
+        ByteBuffer chunk;
+        if (length > CHUNK_SIZE) {
+            // Слишком большой класс получает собственный буфер, который не переиспользуется
+            this.segments.add(ByteBuffer.allocateDirect(length));
+            return this.segments.size() - 1;
+        }
+        if (this.usedChunks < this.chunks.size()) {
+            chunk = this.chunks.get(this.usedChunks).clear();
+        }
+        else {
+            chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            this.chunks.add(chunk);
+        }
+        ++this.usedChunks;
+        this.segments.add(chunk);
+        this.current = chunk;
+        this.currentSegment = this.segments.size() - 1;
+        return this.currentSegment;
+    }
+
+    private void addEntry(int segmentIndex, int offset, int length) {
+        if (this.size == this.lengths.length) {
+            int capacity = this.size * 2;
+            this.segmentIndices = Arrays.copyOf(this.segmentIndices, capacity);
+            this.offsets = Arrays.copyOf(this.offsets, capacity);
+            this.lengths = Arrays.copyOf(this.lengths, capacity);
+        }
+        this.segmentIndices[this.size] = segmentIndex;
+        this.offsets[this.size] = offset;
+        this.lengths[this.size] = length;
+        ++this.size;
+    }
+
+}
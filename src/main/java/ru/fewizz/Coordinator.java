@@ -0,0 +1,286 @@
+package ru.fewizz;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Координатор распределенного режима: классы обрабатываются несколькими
+ * процессами-исполнителями ({@link Worker}), связанными с ним сокетами на loopback-интерфейсе.<p>
+ * Этапы, которым нужна вся программа (построение маппингов {@link ru.fewizz.obfuscators.LexicalObfuscator},
+ * {@link ru.fewizz.obfuscators.Shrinker}), выполняются в процессе координатора.
+ * Исполнителям отправляется сегмент - идущие подряд этапы, обрабатывающие классы
+ * независимо, во главе, возможно, с этапом, передавшим свое состояние ({@link Obfuscator#exportState()}), -
+ * и части классов по <code>SHARD_BYTES</code>. Свободный исполнитель берет следующую часть,
+ * результаты собираются в исходном порядке, поэтому результат не отличается от работы в одном процессе.<p>
+ * Число исполнителей задается системным свойством {@link #WORKERS_PROPERTY}.
+ * Системные свойства <code>ru.fewizz.*</code> (настройки обфускаторов, правила, зерно)
+ * передаются исполнителям. Бюджеты классов соблюдаются исполнителями, бюджет этапа
+ * для сегмента не проверяется
+ */
+public final class Coordinator implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger("obfuscator");
+
+    public static final String WORKERS_PROPERTY = "ru.fewizz.workers";
+
+    private static final int SHARD_BYTES = 256 << 10;
+
+    // Ожидание подключения прерывается, чтобы проверить, живы ли процессы исполнителей
+    private static final int ACCEPT_POLL_MILLIS = 500;
+    private static final long ACCEPT_TIMEOUT_NANOS = 60_000_000_000L;
+
+    private record Connection(Socket socket, DataInputStream in, DataOutputStream out) {}
+
+    private final List<Connection> connections = new ArrayList<>();
+    private final List<Process> processes = new ArrayList<>();
+
+    // Состояние текущего сегмента, доступ - под блокировкой this
+    private ClassStore classes;
+    private int nextClass;
+    private int nextShard;
+    private final List<List<byte[]>> finishedShards = new ArrayList<>();
+    private int nextOutputShard;
+    private Consumer<byte[]> output;
+
+    /**
+     * Запускает <code>workers</code> процессов-исполнителей с тем же classpath
+     */
+    public Coordinator(int workers) throws IOException {
+        try (var server = new ServerSocket(0, workers, InetAddress.getLoopbackAddress())) {
+            String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+            for (int i = 0; i < workers; ++i) {
+                List<String> command = new ArrayList<>();
+                command.add(java);
+                for (String name : System.getProperties().stringPropertyNames()) {
+                    if (name.startsWith("ru.fewizz.") && !name.equals(WORKERS_PROPERTY)) {
+                        command.add("-D" + name + "=" + System.getProperty(name));
+                    }
+                }
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(Worker.class.getName());
+                command.add(String.valueOf(server.getLocalPort()));
+                this.processes.add(new ProcessBuilder(command).inheritIO().start());
+            }
+            this.accept(server, workers);
+        } catch (IOException e) {
+            for (Connection connection : this.connections) {
+                connection.socket.close();
+            }
+            for (Process process : this.processes) {
+                process.destroyForcibly();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Принимает подключения <code>workers</code> уже запущенных исполнителей,
+     * например {@link Worker#serve} в потоках этого же процесса.
+     * Меняет <code>SO_TIMEOUT</code> сокета <code>server</code>
+     */
+    public Coordinator(ServerSocket server, int workers) throws IOException {
+        this.accept(server, workers);
+    }
+
+    /**
+     * @throws IOException Если процесс исполнителя завершился
+     *  или исполнители не подключились за <code>ACCEPT_TIMEOUT_NANOS</code>
+     */
+    private void accept(ServerSocket server, int workers) throws IOException {
+        server.setSoTimeout(ACCEPT_POLL_MILLIS);
+        long start = System.nanoTime();
+        while (this.connections.size() < workers) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (SocketTimeoutException e) {
+                for (Process process : this.processes) {
+                    if (!process.isAlive()) {
+                        throw new IOException("worker exited with code " + process.exitValue());
+                    }
+                }
+                if (System.nanoTime() - start > ACCEPT_TIMEOUT_NANOS) {
+                    throw new IOException(this.connections.size() + " of " + workers + " workers connected in time");
+                }
+                continue;
+            }
+            this.connections.add(new Connection(
+                socket,
+                new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+                new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))
+            ));
+        }
+        LOGGER.info(workers + " workers connected");
+    }
+
+    /**
+     * Пропускает классы через этапы сегмента на исполнителях
+     * @param stages Имена классов обфускаторов
+     * @param states Состояния этапов ({@link Obfuscator#exportState()}), либо <code>null</code>
+     * @param reports Отчеты этапов, в них добавляются события бюджетов
+     * @param output Получает результаты в исходном порядке классов
+     */
+    public void run(
+        List<String> stages, List<byte[]> states, ClassStore classes,
+        List<RunReport.Stage> reports, Consumer<byte[]> output
+    ) throws Exception {
+        this.classes = classes;
+        this.nextClass = 0;
+        this.nextShard = 0;
+        this.nextOutputShard = 0;
+        this.finishedShards.clear();
+        this.output = output;
+
+        List<Thread> threads = new ArrayList<>();
+        List<Exception> failures = new ArrayList<>();
+        for (Connection connection : this.connections) {
+            var thread = new Thread(() -> {
+                try {
+                    this.serve(connection, stages, states, reports);
+                } catch (Exception e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }, "coordinator-" + threads.size());
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        this.classes = null;
+        this.output = null;
+        if (!failures.isEmpty()) {
+            throw failures.get(0);
+        }
+    }
+
+    private void serve(
+        Connection connection, List<String> stages, List<byte[]> states, List<RunReport.Stage> reports
+    ) throws IOException {
+        DataOutputStream out = connection.out;
+        out.writeInt(Worker.SEGMENT);
+        out.writeInt(stages.size());
+        for (int i = 0; i < stages.size(); ++i) {
+            out.writeUTF(stages.get(i));
+            byte[] state = states.get(i);
+            out.writeInt(state == null ? -1 : state.length);
+            if (state != null) {
+                out.write(state);
+            }
+        }
+
+        List<byte[]> shard = new ArrayList<>();
+        int shardIndex;
+        while ((shardIndex = this.takeShard(shard)) >= 0) {
+            out.writeInt(Worker.SHARD);
+            out.writeInt(shard.size());
+            for (byte[] classFile : shard) {
+                out.writeInt(classFile.length);
+                out.write(classFile);
+            }
+            out.flush();
+
+            DataInputStream in = connection.in;
+            if (in.readInt() != Worker.OK) {
+                throw new IOException("worker failed: " + in.readUTF());
+            }
+            List<byte[]> results = new ArrayList<>(shard.size());
+            for (int i = 0; i < shard.size(); ++i) {
+                int length = in.readInt();
+                results.add(length < 0 ? null : in.readNBytes(length));
+            }
+            for (int i = in.readInt(); i > 0; --i) {
+                int stage = in.readInt();
+                String className = in.readUTF();
+                var outcome = RunReport.Outcome.valueOf(in.readUTF());
+                String reason = in.readUTF();
+                synchronized (this) {
+                    reports.get(stage).add(className, outcome, reason);
+                }
+            }
+            this.finishShard(shardIndex, results);
+        }
+    }
+
+    /**
+     * Заполняет <code>shard</code> следующими классами
+     * @return Номер части, либо -1, если классов не осталось
+     */
+    private synchronized int takeShard(List<byte[]> shard) {
+        shard.clear();
+        int bytes = 0;
+        while (this.nextClass < this.classes.size() && bytes < SHARD_BYTES) {
+            byte[] classFile = this.classes.get(this.nextClass++);
+            shard.add(classFile);
+            bytes += classFile.length;
+        }
+        if (shard.isEmpty()) {
+            return -1;
+        }
+        this.finishedShards.add(null);
+        return this.nextShard++;
+    }
+
+    /**
+     * Передает в <code>output</code> все готовые части, перед которыми нет неготовых
+     */
+    private synchronized void finishShard(int shardIndex, List<byte[]> results) {
+        this.finishedShards.set(shardIndex, results);
+        while (
+            this.nextOutputShard < this.finishedShards.size() &&
+            this.finishedShards.get(this.nextOutputShard) != null
+        ) {
+            for (byte[] result : this.finishedShards.get(this.nextOutputShard)) {
+                // Обфускатор мог удалить класс
+                if (result != null) {
+                    this.output.accept(result);
+                }
+            }
+            this.finishedShards.set(this.nextOutputShard++, null);
+        }
+    }
+
+    /**
+     * Завершает исполнителей и дожидается их процессов
+     * @throws InterruptedIOException Если поток прерван во время ожидания,
+     *  флаг прерывания при этом восстанавливается
+     */
+    @Override
+    public void close() throws IOException {
+        for (Connection connection : this.connections) {
+            try {
+                connection.out.writeInt(Worker.END);
+                connection.out.flush();
+            } catch (IOException e) {
+                // Исполнитель уже завершился
+            }
+            connection.socket.close();
+        }
+        try {
+            for (Process process : this.processes) {
+                process.waitFor();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            var interrupted = new InterruptedIOException("interrupted while waiting for workers");
+            interrupted.initCause(e);
+            throw interrupted;
+        }
+    }
+
+}
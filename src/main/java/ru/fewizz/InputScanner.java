@@ -0,0 +1,147 @@
+package ru.fewizz;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+
+/**
+ * Параллельное чтение входной директории.<p>
+ * Директории обходятся и файлы читаются задачами {@link ForkJoinPool}, поэтому
+ * на холодном кэше и сетевых файловых системах ожидание ввода-вывода перекрывается.
+ * Класс-файлы определяются по сигнатуре <code>CAFEBABE</code>, а не по расширению,
+ * и попадают в {@link ClassStore} (большие - отображением в память).
+ * Остальные файлы - ресурсы, они не читаются и копируются в результат как есть.<p>
+ * Порядок классов и ресурсов - по относительному пути, он не зависит от порядка обхода
+ */
+public final class InputScanner {
+    private static final Logger LOGGER = Logger.getLogger("obfuscator");
+
+    /**
+     * Системное свойство с числом потоков ввода-вывода, по умолчанию - число ядер
+     */
+    public static final String THREADS_PROPERTY = "ru.fewizz.ioThreads";
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    /**
+     * @param root Директория, относительно которой заданы пути ресурсов
+     * @param resources Относительные пути файлов, не являющихся класс-файлами
+     */
+    public record Result(ClassStore classes, Path root, List<Path> resources) {}
+
+    /**
+     * @param store Хранилище потока, прочитавшего класс, либо <code>null</code> для ресурса
+     */
+    private record Entry(Path relative, ClassStore store, int index) {}
+
+    private final int threads;
+
+    public InputScanner() {
+        this(Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public InputScanner(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param src Директория, либо отдельный файл
+     */
+    public Result scan(Path src) throws IOException {
+        src = src.toAbsolutePath();
+        Path root = Files.isDirectory(src) ? src : src.getParent();
+
+        Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+        // У каждого потока свое хранилище, общее собирается из них без копирования
+        ThreadLocal<ClassStore> stores = ThreadLocal.withInitial(ClassStore::new);
+        var pool = new ForkJoinPool(this.threads);
+        try {
+            pool.invoke(new ScanTask(root, src, entries, stores));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+
+        List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparing(Entry::relative));
+        var classes = new ClassStore();
+        List<Path> resources = new ArrayList<>();
+        for (Entry entry : sorted) {
+            if (entry.store == null) {
+                resources.add(entry.relative);
+            }
+            else {
+                classes.add(entry.store, entry.index);
+            }
+        }
+        LOGGER.info("found " + classes.size() + " class files and " + resources.size() + " resources");
+        return new Result(classes, root, resources);
+    }
+
+    // RecursiveAction сериализуем, но задачи живут только внутри прогона
+    @SuppressWarnings("serial")
+    private static final class ScanTask extends RecursiveAction {
+        private final Path root;
+        private final Path path;
+        private final Queue<Entry> entries;
+        private final ThreadLocal<ClassStore> stores;
+
+        ScanTask(Path root, Path path, Queue<Entry> entries, ThreadLocal<ClassStore> stores) {
+            this.root = root;
+            this.path = path;
+            this.entries = entries;
+            this.stores = stores;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (Files.isDirectory(this.path, LinkOption.NOFOLLOW_LINKS)) {
+                    List<ScanTask> tasks = new ArrayList<>();
+                    try (DirectoryStream<Path> children = Files.newDirectoryStream(this.path)) {
+                        for (Path child : children) {
+                            tasks.add(new ScanTask(this.root, child, this.entries, this.stores));
+                        }
+                    }
+                    invokeAll(tasks);
+                }
+                else if (Files.isRegularFile(this.path)) {
+                    this.readFile();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void readFile() throws IOException {
+            Path relative = this.root.relativize(this.path);
+            try (var channel = FileChannel.open(this.path, StandardOpenOption.READ)) {
+                ByteBuffer magic = ByteBuffer.allocate(4);
+                while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0) {}
+                if (magic.hasRemaining() || magic.getInt(0) != MAGIC) {
+                    this.entries.add(new Entry(relative, null, -1));
+                    return;
+                }
+                ClassStore store = this.stores.get();
+                store.add(channel);
+                this.entries.add(new Entry(relative, store, store.size() - 1));
+            }
+        }
+    }
+
+}
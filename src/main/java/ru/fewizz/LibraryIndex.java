@@ -0,0 +1,514 @@
+package ru.fewizz;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import java.util.jar.JarFile;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Индекс библиотечных (не входящих во входные данные) типов: супертипы,
+ * а также имена, дескрипторы и флаги доступа полей и методов.<p>
+ * Строится один раз по <code>jrt:/</code> и jar-файлам библиотек, сохраняется
+ * на диск и открывается через отображение в память, поэтому проверка
+ * переопределения библиотечного метода не требует разбора класс-файлов.
+ * Индекс неизменяем и общий для всех обфускаторов, см. {@link #shared()}.<p>
+ * Настройки - системные свойства <code>ru.fewizz.LibraryIndex.&lt;name&gt;</code>:
+ * <ul>
+ *     <li><code>javaHome</code> - JDK, классы которого индексируются (по умолчанию текущий)</li>
+ *     <li><code>classpath</code> - jar-файлы и директории библиотек через {@link File#pathSeparator}</li>
+ *     <li><code>file</code> - файл индекса (по умолчанию во временной директории)</li>
+ * </ul>
+ * Формат (все числа - int, big-endian):
+ * <pre>
+ * MAGIC VERSION stringsOffset typesOffset recordsOffset keyLength key
+ * строки:  count offsets[count + 1] UTF-8 байты
+ * типы:    count (nameId recordOffset)[count], по возрастанию байтов имени
+ * записи:  access nameId superId interfaceCount interfaceId...
+ *          fieldCount (access nameId descriptorId)... methodCount (access nameId descriptorId)...
+ * </pre>
+ * Приватные члены не индексируются: они не наследуются и не переопределяются
+ */
+public final class LibraryIndex implements Opcodes {
+    private static final Logger LOGGER = Logger.getLogger("obfuscator");
+
+    private static final int MAGIC = 0x4F424958;  // "OBIX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    public record MemberInfo(int access, String name, String descriptor) {}
+
+    /**
+     * @param name Внутреннее имя (x/y/Z)
+     * @param superName <code>null</code> для <code>java/lang/Object</code> и интерфейсов модулей
+     */
+    public record TypeInfo(
+        String name, int access, String superName, List<String> interfaces,
+        List<MemberInfo> fields, List<MemberInfo> methods
+    ) {}
+
+    private static LibraryIndex shared;
+
+    private final ByteBuffer buffer;
+    private final int stringsOffset;
+    private final int stringCount;
+    private final int typesOffset;
+    private final int typeCount;
+    private final int recordsOffset;
+    private final String key;
+
+    private final Map<String, Optional<TypeInfo>> cache = new ConcurrentHashMap<>();
+    private final Set<String> reportedMissing = ConcurrentHashMap.newKeySet();
+
+    private LibraryIndex(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("not a library index of version " + VERSION);
+        }
+        this.stringsOffset = buffer.getInt(8);
+        this.typesOffset = buffer.getInt(12);
+        this.recordsOffset = buffer.getInt(16);
+        this.key = this.readUtf8(HEADER_SIZE, buffer.getInt(20));
+        this.stringCount = buffer.getInt(this.stringsOffset);
+        this.typeCount = buffer.getInt(this.typesOffset);
+    }
+
+    /**
+     * Индекс по настройкам из системных свойств. При первом вызове открывает
+     * сохраненный индекс, а если его нет или он построен по другим библиотекам,
+     * строит и сохраняет новый
+     */
+    public static synchronized LibraryIndex shared() {
+        if (shared == null) {
+            try {
+                Path javaHome = Paths.get(getOption("javaHome", System.getProperty("java.home")));
+                List<Path> classpath = new ArrayList<>();
+                for (String entry : getOption("classpath", "").split(File.pathSeparator)) {
+                    if (!entry.isEmpty()) {
+                        classpath.add(Paths.get(entry));
+                    }
+                }
+                String key = createKey(javaHome, classpath);
+                Path file = Paths.get(getOption(
+                    "file",
+                    Paths.get(
+                        System.getProperty("java.io.tmpdir"), "class-obfuscators",
+                        "library-" + Integer.toHexString(key.hashCode()) + ".idx"
+                    ).toString()
+                ));
+                shared = openOrBuild(file, javaHome, classpath, key);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return shared;
+    }
+
+    private static String getOption(String name, String defaultValue) {
+        return System.getProperty(LibraryIndex.class.getName() + "." + name, defaultValue);
+    }
+
+    /**
+     * Ключ описывает, по чему построен индекс: при обновлении JDK
+     * или библиотек индекс строится заново
+     */
+    private static String createKey(Path javaHome, List<Path> classpath) throws IOException {
+        var sb = new StringBuilder();
+        sb.append(javaHome.toAbsolutePath());
+        Path modules = javaHome.resolve("lib").resolve("modules");
+        if (Files.exists(modules)) {
+            sb.append(':').append(Files.size(modules)).append(':').append(Files.getLastModifiedTime(modules).toMillis());
+        }
+        for (Path entry : classpath) {
+            sb.append(File.pathSeparator).append(entry.toAbsolutePath());
+            sb.append(':').append(Files.getLastModifiedTime(entry).toMillis());
+        }
+        return sb.toString();
+    }
+
+    private static LibraryIndex openOrBuild(Path file, Path javaHome, List<Path> classpath, String key) throws IOException {
+        if (Files.exists(file)) {
+            try {
+                LibraryIndex index = open(file);
+                if (index.key.equals(key)) {
+                    return index;
+                }
+            } catch (IOException e) {
+                LOGGER.warning("library index " + file + " is unreadable, rebuilding: " + e.getMessage());
+            }
+        }
+        build(file, javaHome, classpath, key);
+        return open(file);
+    }
+
+    public static LibraryIndex open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // Отображение остается действительным и после закрытия канала
+            return new LibraryIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Строит индекс по модулям JDK <code>javaHome</code> и библиотекам <code>classpath</code>.
+     * Файл сначала пишется во временный и затем переименовывается, так что
+     * параллельные запуски никогда не видят недописанный индекс
+     */
+    public static void build(Path file, Path javaHome, List<Path> classpath, String key) throws IOException {
+        long start = System.nanoTime();
+        // Класс из первого по порядку источника перекрывает одноименные из следующих
+        Map<String, TypeInfo> types = new HashMap<>();
+        Consumer<byte[]> indexClass = bytes -> {
+            TypeInfo type = readType(bytes);
+            types.putIfAbsent(type.name, type);
+        };
+
+        try (FileSystem jrt = openJrt(javaHome); Stream<Path> files = Files.walk(jrt.getPath("/modules"))) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                if (isClassFile(path.toString())) {
+                    indexClass.accept(Files.readAllBytes(path));
+                }
+            }
+        }
+        for (Path entry : classpath) {
+            if (Files.isDirectory(entry)) {
+                try (Stream<Path> files = Files.walk(entry)) {
+                    for (Path path : (Iterable<Path>) files::iterator) {
+                        if (isClassFile(path.toString())) {
+                            indexClass.accept(Files.readAllBytes(path));
+                        }
+                    }
+                }
+                continue;
+            }
+            try (var jar = new JarFile(entry.toFile())) {
+                for (var jarEntry : Collections.list(jar.entries())) {
+                    if (isClassFile(jarEntry.getName())) {
+                        try (var inputStream = jar.getInputStream(jarEntry)) {
+                            indexClass.accept(inputStream.readAllBytes());
+                        }
+                    }
+                }
+            }
+        }
+
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path tempFile = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        Files.write(tempFile, serialize(types, key));
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info(String.format(
+            "built library index %s: %d types in %d ms", file, types.size(), (System.nanoTime() - start) / 1_000_000
+        ));
+    }
+
+    private static FileSystem openJrt(Path javaHome) throws IOException {
+        return FileSystems.newFileSystem(URI.create("jrt:/"), Map.of("java.home", javaHome.toString()));
+    }
+
+    private static boolean isClassFile(String name) {
+        return name.endsWith(".class") && !name.endsWith("module-info.class");
+    }
+
+    /**
+     * Сводка класса для индекса: без кода и приватных членов
+     */
+    public static TypeInfo readType(byte[] classFileBytes) {
+        var classReader = new ClassReader(classFileBytes);
+        List<MemberInfo> fields = new ArrayList<>();
+        List<MemberInfo> methods = new ArrayList<>();
+        classReader.accept(new ClassVisitor(ASM9) {
+            @Override
+            public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+                if ((access & ACC_PRIVATE) == 0) {
+                    fields.add(new MemberInfo(access, name, descriptor));
+                }
+                return null;
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                if ((access & ACC_PRIVATE) == 0) {
+                    methods.add(new MemberInfo(access, name, descriptor));
+                }
+                return null;
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return new TypeInfo(
+            classReader.getClassName(), classReader.getAccess(), classReader.getSuperName(),
+            List.of(classReader.getInterfaces()), fields, methods
+        );
+    }
+
+    private static byte[] serialize(Map<String, TypeInfo> types, String key) throws IOException {
+        Map<String, Integer> stringIds = new HashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+        ToIntFunction<String> intern = string -> {
+            if (string == null) {
+                return -1;
+            }
+            return stringIds.computeIfAbsent(string, s -> {
+                strings.add(s.getBytes(StandardCharsets.UTF_8));
+                return strings.size() - 1;
+            });
+        };
+
+        // Порядок байтов UTF-8 совпадает с порядком кодовых точек,
+        // поэтому при поиске имена сравниваются без декодирования
+        List<TypeInfo> sortedTypes = new ArrayList<>(types.values());
+        sortedTypes.sort((a, b) -> Arrays.compareUnsigned(
+            a.name.getBytes(StandardCharsets.UTF_8), b.name.getBytes(StandardCharsets.UTF_8)
+        ));
+
+        var records = new ByteArrayOutputStream();
+        var recordsOut = new DataOutputStream(records);
+        var typeTable = new ByteArrayOutputStream();
+        var typeTableOut = new DataOutputStream(typeTable);
+        typeTableOut.writeInt(sortedTypes.size());
+        for (TypeInfo type : sortedTypes) {
+            typeTableOut.writeInt(intern.applyAsInt(type.name));
+            typeTableOut.writeInt(recordsOut.size());
+            recordsOut.writeInt(type.access);
+            recordsOut.writeInt(intern.applyAsInt(type.name));
+            recordsOut.writeInt(intern.applyAsInt(type.superName));
+            recordsOut.writeInt(type.interfaces.size());
+            for (String interfaceName : type.interfaces) {
+                recordsOut.writeInt(intern.applyAsInt(interfaceName));
+            }
+            for (List<MemberInfo> members : List.of(type.fields, type.methods)) {
+                recordsOut.writeInt(members.size());
+                for (MemberInfo member : members) {
+                    recordsOut.writeInt(member.access);
+                    recordsOut.writeInt(intern.applyAsInt(member.name));
+                    recordsOut.writeInt(intern.applyAsInt(member.descriptor));
+                }
+            }
+        }
+
+        var stringTable = new ByteArrayOutputStream();
+        var stringTableOut = new DataOutputStream(stringTable);
+        stringTableOut.writeInt(strings.size());
+        int stringOffset = 0;
+        for (byte[] string : strings) {
+            stringTableOut.writeInt(stringOffset);
+            stringOffset += string.length;
+        }
+        stringTableOut.writeInt(stringOffset);
+        for (byte[] string : strings) {
+            stringTableOut.write(string);
+        }
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int stringsOffset = HEADER_SIZE + keyBytes.length;
+        int typesOffset = stringsOffset + stringTable.size();
+        int recordsOffset = typesOffset + typeTable.size();
+
+        var result = new ByteArrayOutputStream(recordsOffset + records.size());
+        var out = new DataOutputStream(result);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(stringsOffset);
+        out.writeInt(typesOffset);
+        out.writeInt(recordsOffset);
+        out.writeInt(keyBytes.length);
+        out.write(keyBytes);
+        stringTable.writeTo(out);
+        typeTable.writeTo(out);
+        records.writeTo(out);
+        return result.toByteArray();
+    }
+
+    /**
+     * @param internalName Имя в формате x/y/Z
+     * @return Описание типа, либо <code>null</code>, если его нет в индексе
+     */
+    public TypeInfo lookup(String internalName) {
+        return this.cache.computeIfAbsent(internalName, name -> Optional.ofNullable(this.read(name))).orElse(null);
+    }
+
+    /**
+     * @return Тип и все его супертипы, каждый по одному разу.
+     *  Типы, которых нет в индексе, пропускаются
+     */
+    public List<TypeInfo> getSupertypes(String internalName) {
+        return this.getSupertypes(internalName, Map.of());
+    }
+
+    /**
+     * @param overlay Типы, которые ищутся раньше индекса (например,
+     *  классы программы, не разбираемые обфускатором)
+     */
+    public List<TypeInfo> getSupertypes(String internalName, Map<String, TypeInfo> overlay) {
+        List<TypeInfo> result = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        Deque<String> queue = new ArrayDeque<>(List.of(internalName));
+        while (!queue.isEmpty()) {
+            String name = queue.poll();
+            if (!visited.add(name)) {
+                continue;
+            }
+            TypeInfo type = overlay.containsKey(name) ? overlay.get(name) : this.lookup(name);
+            if (type == null) {
+                if (this.reportedMissing.add(name)) {
+                    LOGGER.warning("library type " + name + " is missing from the library index");
+                }
+                continue;
+            }
+            result.add(type);
+            if (type.superName != null) {
+                queue.add(type.superName);
+            }
+            queue.addAll(type.interfaces);
+        }
+        return result;
+    }
+
+    /**
+     * Есть ли в типе или его супертипах метод с таким именем и дескриптором
+     * @param filter Получает владельца и найденный метод
+     */
+    public boolean hasMethod(
+        String internalName, String name, String descriptor,
+        BiPredicate<TypeInfo, MemberInfo> filter
+    ) {
+        return this.hasMethod(internalName, name, descriptor, filter, Map.of());
+    }
+
+    public boolean hasMethod(
+        String internalName, String name, String descriptor,
+        BiPredicate<TypeInfo, MemberInfo> filter, Map<String, TypeInfo> overlay
+    ) {
+        for (TypeInfo type : this.getSupertypes(internalName, overlay)) {
+            for (MemberInfo method : type.methods) {
+                if (method.name.equals(name) && method.descriptor.equals(descriptor) && filter.test(type, method)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private TypeInfo read(String internalName) {
+        byte[] name = internalName.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = this.typeCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entry = this.typesOffset + 4 + middle * 8;
+            int comparison = this.compareString(this.buffer.getInt(entry), name);
+            if (comparison < 0) {
+                low = middle + 1;
+            }
+            else if (comparison > 0) {
+                high = middle - 1;
+            }
+            else {
+                return this.readRecord(this.recordsOffset + this.buffer.getInt(entry + 4));
+            }
+        }
+        return null;
+    }
+
+    private TypeInfo readRecord(int offset) {
+        int access = this.buffer.getInt(offset);
+        String name = this.readString(this.buffer.getInt(offset + 4));
+        String superName = this.readString(this.buffer.getInt(offset + 8));
+        int interfaceCount = this.buffer.getInt(offset + 12);
+        offset += 16;
+        List<String> interfaces = new ArrayList<>(interfaceCount);
+        for (int i = 0; i < interfaceCount; ++i, offset += 4) {
+            interfaces.add(this.readString(this.buffer.getInt(offset)));
+        }
+        List<List<MemberInfo>> members = new ArrayList<>(2);
+        for (int kind = 0; kind < 2; ++kind) {  // Поля, затем методы
+            int count = this.buffer.getInt(offset);
+            offset += 4;
+            List<MemberInfo> list = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i, offset += 12) {
+                list.add(new MemberInfo(
+                    this.buffer.getInt(offset),
+                    this.readString(this.buffer.getInt(offset + 4)),
+                    this.readString(this.buffer.getInt(offset + 8))
+                ));
+            }
+            members.add(List.copyOf(list));
+        }
+        return new TypeInfo(name, access, superName, List.copyOf(interfaces), members.get(0), members.get(1));
+    }
+
+    private String readString(int id) {
+        if (id < 0) {
+            return null;
+        }
+        int offsets = this.stringsOffset + 4;
+        int start = this.buffer.getInt(offsets + id * 4);
+        int end = this.buffer.getInt(offsets + id * 4 + 4);
+        // Имена из индекса - те же символы, что и во входных классах
+        return SymbolTable.shared().intern(this.readUtf8(offsets + (this.stringCount + 1) * 4 + start, end - start));
+    }
+
+    /**
+     * Только абсолютные чтения: они не меняют позицию буфера,
+     * поэтому индекс можно читать из нескольких потоков
+     */
+    private String readUtf8(int offset, int length) {
+        byte[] bytes = new byte[length];
+        this.buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int compareString(int id, byte[] value) {
+        int offsets = this.stringsOffset + 4;
+        int start = this.buffer.getInt(offsets + id * 4);
+        int length = this.buffer.getInt(offsets + id * 4 + 4) - start;
+        int data = offsets + (this.stringCount + 1) * 4 + start;
+        for (int i = 0; i < Math.min(length, value.length); ++i) {
+            int comparison = Integer.compare(this.buffer.get(data + i) & 0xFF, value[i] & 0xFF);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return Integer.compare(length, value.length);
+    }
+
+    /**
+     * Заранее строит общий индекс по настройкам из системных свойств
+     */
+    public static void main(String[] args) {
+        TypeInfo object = shared().lookup("java/lang/Object");
+        LOGGER.info("library index is ready, java/lang/Object has " + object.methods.size() + " methods");
+    }
+
+}
@@ -1,28 +1,55 @@
 package ru.fewizz;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
 import java.net.URL;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.logging.Logger;
 
-import org.apache.bcel.classfile.ClassParser;
+import org.objectweb.asm.ClassReader;
 
 public class Main {
     private static final Logger LOGGER = Logger.getLogger("obfuscator");
 
-    @SuppressWarnings("unchecked")
     public static void main(String[] args) throws Exception {
         Path src = Paths.get(args[0]);
         Path dst = Paths.get(args[1]);
 
+        List<Obfuscator> obfuscators = createObfuscators(
+            Arrays.asList(args).subList(2, args.length)
+        );
+
+        LOGGER.info("loading class files");
+        // Если на вход подается путь до файла, то обрабатывается только он,
+        // иначе - все файлы в исходной директории. Байты классов хранятся вне кучи,
+        // а остальные файлы копируются как есть
+        InputScanner.Result input = new InputScanner().scan(src);
+
+        // 3. Классы последнего обфускатора записываются по мере готовности,
+        // запись идет параллельно с обфускацией оставшихся классов
+        var report = new RunReport();
+        int workers = Integer.getInteger(Coordinator.WORKERS_PROPERTY, 0);
+        try (
+            var coordinator = workers > 0 ? new Coordinator(workers) : null;
+            var output = new OutputWriter(dst)
+        ) {
+            obfuscate(input.classes(), obfuscators, output::writeClass, report, coordinator);
+            for (Path resource : input.resources()) {
+                output.copy(input.root().resolve(resource), resource);
+            }
+        }
+        report.publish();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static List<Class<Obfuscator>> loadObfuscatorClasses() throws Exception {
         LOGGER.info("loading obfuscators classes");
         List<Class<Obfuscator>> obfuscatorClasses = new ArrayList<>();
         Iterable<URL> iter = () -> Main.class.getClassLoader().resources("META-INF/obfuscators").iterator();
@@ -34,65 +61,316 @@ public class Main {
                 }
             }
         }
+        return obfuscatorClasses;
+    }
+
+    /**
+     * Создает новые экземпляры обфускаторов в заданном порядке.
+     * Обфускаторы хранят состояние, поэтому на каждый прогон нужны свои экземпляры
+     */
+    public static List<Obfuscator> createObfuscators(List<String> obfuscatorNames) throws Exception {
+        List<Class<Obfuscator>> obfuscatorClasses = loadObfuscatorClasses();
 
         LOGGER.info("creating selected obfuscators");
         List<Obfuscator> obfuscators = new ArrayList<>();
-        for (var obfuscatorName : Arrays.copyOfRange(args, 2, args.length)) {
+        for (var obfuscatorName : obfuscatorNames) {
             Class<Obfuscator> obfuscatorClass = obfuscatorClasses.stream()
                 .filter(c -> c.getName().equals(obfuscatorName))
                 .findFirst().get();
             obfuscators.add(obfuscatorClass.getConstructor().newInstance());
         }
+        return obfuscators;
+    }
 
-        LOGGER.info("loading class files");
-        List<byte[]> classesBytes = new ArrayList<>();
-
-        // Если на вход подается путь до файла,
-        // то обрабатывается только один файл
-        if (!Files.isDirectory(src)) {
-            classesBytes.add(Files.readAllBytes(src));
-        }
-        // Рекурсивно обрабатываются все файлы в исходной директории
-        else {
-            Files.walk(src).forEach(srcFile -> {
-                if (Files.isDirectory(srcFile)) return;
-                try {
-                    classesBytes.add(Files.readAllBytes(srcFile));
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            });
+    /**
+     * Последовательно пропускает байты класс-файлов через все обфускаторы
+     */
+    public static List<byte[]> obfuscate(List<byte[]> classesBytes, List<Obfuscator> obfuscators) throws Exception {
+        var classes = new ClassStore();
+        for (var classBytes : classesBytes) {
+            classes.add(classBytes);
         }
+        classes = obfuscate(classes, obfuscators);
 
-        for (var obfuscator : obfuscators) {
-            LOGGER.info("obfuscating class files with " + obfuscator.getClass().getName());
+        List<byte[]> obfuscatedClassesBytes = new ArrayList<>();
+        for (int i = 0; i < classes.size(); ++i) {
+            obfuscatedClassesBytes.add(classes.get(i));
+        }
+        return obfuscatedClassesBytes;
+    }
+
+    /**
+     * Последовательно пропускает классы через все обфускаторы
+     * @return Хранилище с результатом, <code>classes</code> при этом очищается
+     */
+    public static ClassStore obfuscate(ClassStore classes, List<Obfuscator> obfuscators) throws Exception {
+        var result = new ClassStore();
+        obfuscate(classes, obfuscators, result::add);
+        return result;
+    }
+
+    /**
+     * Последовательно пропускает классы через все обфускаторы.
+     * Результат каждого обфускатора, кроме последнего, записывается в хранилище,
+     * освободившееся после предыдущего, так что арен всего две на весь прогон
+     * @param output Получает результат последнего обфускатора по мере готовности
+     *  (для обфускатора с {@link Obfuscator#isPerClass()} - сразу же).
+     *  <code>classes</code> при этом очищается
+     */
+    public static void obfuscate(
+        ClassStore classes, List<Obfuscator> obfuscators, Consumer<byte[]> output
+    ) throws Exception {
+        obfuscate(classes, obfuscators, output, new RunReport());
+    }
+
+    /**
+     * То же, с соблюдением бюджетов ({@link Budget}) и записью в <code>report</code>.<p>
+     * Класс, превысивший бюджет в обфускаторе с {@link Obfuscator#isPerClass()},
+     * обрабатывается заново более дешевой настройкой ({@link Obfuscator#getCheaperClassSupplier}),
+     * а если ее нет или и она не уложилась - передается дальше без изменений.
+     * После исчерпания бюджета этапа без изменений передаются все оставшиеся классы.
+     * Остальным обфускаторам нужна согласованная обработка всей программы,
+     * поэтому для них превышения только записываются в отчет
+     */
+    public static void obfuscate(
+        ClassStore classes, List<Obfuscator> obfuscators, Consumer<byte[]> output, RunReport report
+    ) throws Exception {
+        obfuscate(classes, obfuscators, output, report, null);
+    }
 
-            List<Supplier<byte[]>> obfuscatedClassBytesSuppliers = new ArrayList<>();
-            for (var classFile : classesBytes) {
-                obfuscatedClassBytesSuppliers.add(obfuscator.getObfuscatedClassSupplier(classFile));
+    /**
+     * То же, а если задан <code>coordinator</code>, этапы, обрабатывающие классы
+     * независимо, выполняются его исполнителями ({@link Coordinator}).
+     * Результат от этого не меняется
+     */
+    public static void obfuscate(
+        ClassStore classes, List<Obfuscator> obfuscators, Consumer<byte[]> output,
+        RunReport report, Coordinator coordinator
+    ) throws Exception {
+        try {
+            runStages(classes, obfuscators, output, report, coordinator);
+        } finally {
+            // Символы этой программы следующему прогону не нужны
+            SymbolTable.shared().clear();
+        }
+    }
+
+    private static void runStages(
+        ClassStore classes, List<Obfuscator> obfuscators, Consumer<byte[]> output,
+        RunReport report, Coordinator coordinator
+    ) throws Exception {
+        if (obfuscators.isEmpty()) {
+            for (int i = 0; i < classes.size(); ++i) {
+                output.accept(classes.get(i));
             }
-            obfuscator.onAllClassesProvided();
-            classesBytes.clear();
-            for (var supplier : obfuscatedClassBytesSuppliers) {
-                classesBytes.add(supplier.get());
+            classes.clear();
+            return;
+        }
+        var spare = new ClassStore();
+        Set<String> addedClasses = new HashSet<>();
+        for (int stage = 0; stage < obfuscators.size();) {
+            Obfuscator obfuscator = obfuscators.get(stage);
+            ClassStore next = spare;
+            // Этапы до end (не включая) выполнены на этой итерации
+            int end = stage + 1;
+
+            if (coordinator != null && obfuscator.isPerClass()) {
+                end = findSegmentEnd(obfuscators, stage);
+                // Исполнители получают только классы, поэтому добавленные
+                // этапами сегмента классы проходят весь сегмент
+                addClasses(obfuscators.subList(stage, end), classes, addedClasses);
+                runSegment(
+                    coordinator, obfuscators.subList(stage, end), null, classes, report, null,
+                    end == obfuscators.size() ? output : next::add
+                );
             }
+            else {
+                LOGGER.info("obfuscating class files with " + obfuscator.getClass().getName());
+                addClasses(List.of(obfuscator), classes, addedClasses);
+
+                Consumer<byte[]> stageOutput = end == obfuscators.size() ? output : next::add;
+                Rules.StageRules rules = obfuscator.getRules();
+                Budget.Limits limits = Budget.Limits.forStage(obfuscator);
+                RunReport.Stage stageReport = report.startStage(obfuscator.getClass().getName());
+                var stageBudget = new Budget(limits.stageNanos(), limits.stageBytes());
+                List<Supplier<byte[]>> obfuscatedClassBytesSuppliers = new ArrayList<>();
+                for (int i = 0; i < classes.size(); ++i) {
+                    byte[] classFile = classes.get(i);
+                    Supplier<byte[]> supplier;
+                    // Имя класса читается из заголовка, сам класс при этом не разбирается
+                    if (!rules.isEmpty() && rules.isSkipped(new ClassReader(classFile).getClassName())) {
+                        obfuscator.onClassSkipped(classFile);
+                        supplier = () -> classFile;
+                    }
+                    else if (obfuscator.isPerClass()) {
+                        supplier = obfuscateClass(obfuscator, classFile, limits, stageBudget, stageReport);
+                    }
+                    else {
+                        supplier = obfuscator.getObfuscatedClassSupplier(classFile);
+                    }
+                    // Такой обфускатор не ждет остальных классов,
+                    // и на куче в каждый момент только один класс
+                    if (obfuscator.isPerClass()) {
+                        addObfuscatedClass(stageOutput, supplier);
+                    }
+                    else {
+                        obfuscatedClassBytesSuppliers.add(supplier);
+                    }
+                }
+                obfuscator.onAllClassesProvided();
+
+                byte[] state = coordinator != null && !obfuscator.isPerClass() ? obfuscator.exportState() : null;
+                if (state != null) {
+                    // Переписывание по готовому состоянию уходит исполнителям вместе
+                    // со следующими независимыми этапами, Supplier'ы не нужны
+                    obfuscatedClassBytesSuppliers.clear();
+                    int segmentStart = end;
+                    end = findSegmentEnd(obfuscators, end);
+                    // Первый этап не знает добавленных классов и оставит их как есть
+                    addClasses(obfuscators.subList(segmentStart, end), classes, addedClasses);
+                    runSegment(
+                        coordinator, obfuscators.subList(stage, end), state, classes, report, stageReport,
+                        end == obfuscators.size() ? output : next::add
+                    );
+                }
+                for (var supplier : obfuscatedClassBytesSuppliers) {
+                    var classBudget = new Budget(limits.classNanos(), limits.classBytes());
+                    byte[] obfuscatedClassBytes = supplier.get();
+                    String exceeded = classBudget.getExceededLimit();
+                    if (exceeded != null && obfuscatedClassBytes != null) {
+                        stageReport.add(new ClassReader(obfuscatedClassBytes).getClassName(), RunReport.Outcome.OVERRUN, exceeded);
+                    }
+                    addObfuscatedClass(stageOutput, () -> obfuscatedClassBytes);
+                }
+                obfuscator.onAllClassesObfuscated();
+                stageReport.finish(classes.size(), stageBudget);
+            }
+
+            classes.clear();
+            spare = classes;
+            classes = next;
+            stage = end;
         }
+    }
 
-        // 3. Запись байтов класс-файла в файл назначения
-        LOGGER.info("writing obfuscated classes");
-        for (var classBytes : classesBytes) {
-            try {
-                // Костыль - парсим класс еще раз, чтобы получить (вероятно) обфусцированное имя класса
-                var inputStream = new ByteArrayInputStream(classBytes);
-                var parser = new ClassParser(inputStream, "");
-                var javaClass = parser.parse();
-                var dstPath = dst.resolve(javaClass.getClassName().replace('.', '/').concat(".class"));
-                Files.createDirectories(dstPath.getParent());
-                Files.write(dstPath, classBytes);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+    /**
+     * Добавляет к <code>classes</code> классы этапов ({@link Obfuscator#getAddedClasses()})
+     * @param added Имена уже добавленных за прогон классов
+     */
+    private static void addClasses(List<Obfuscator> stages, ClassStore classes, Set<String> added) throws Exception {
+        for (Obfuscator obfuscator : stages) {
+            for (byte[] classFile : obfuscator.getAddedClasses()) {
+                if (added.add(new ClassReader(classFile).getClassName())) {
+                    classes.add(classFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Конец (не включая) идущих с <code>from</code> этапов с {@link Obfuscator#isPerClass()}
+     */
+    private static int findSegmentEnd(List<Obfuscator> obfuscators, int from) {
+        int end = from;
+        while (end < obfuscators.size() && obfuscators.get(end).isPerClass()) {
+            ++end;
+        }
+        return end;
+    }
+
+    /**
+     * Выполняет этапы <code>segment</code> на исполнителях <code>coordinator</code>
+     * @param state Состояние первого этапа, либо <code>null</code>
+     * @param firstReport Уже начатый отчет первого этапа, либо <code>null</code>
+     */
+    private static void runSegment(
+        Coordinator coordinator, List<Obfuscator> segment, byte[] state, ClassStore classes,
+        RunReport report, RunReport.Stage firstReport, Consumer<byte[]> output
+    ) throws Exception {
+        List<String> names = new ArrayList<>();
+        List<byte[]> states = new ArrayList<>();
+        List<RunReport.Stage> reports = new ArrayList<>();
+        for (Obfuscator obfuscator : segment) {
+            String name = obfuscator.getClass().getName();
+            LOGGER.info("obfuscating class files with " + name + " on workers");
+            names.add(name);
+            states.add(states.isEmpty() ? state : null);
+            reports.add(reports.isEmpty() && firstReport != null ? firstReport : report.startStage(name));
+        }
+        // Этапы сегмента выполняются вместе, и время у них общее
+        var budget = new Budget(0, 0);
+        coordinator.run(names, states, classes, reports, output);
+        for (RunReport.Stage stageReport : reports) {
+            if (stageReport != firstReport) {
+                stageReport.finish(classes.size(), budget);
             }
         }
     }
 
+    /**
+     * Обрабатывает класс обфускатором с {@link Obfuscator#isPerClass()} в пределах бюджета
+     * @return <code>Supplier</code> результата, уже вычисленного
+     */
+    static Supplier<byte[]> obfuscateClass(
+        Obfuscator obfuscator, byte[] classFile,
+        Budget.Limits limits, Budget stageBudget, RunReport.Stage stageReport
+    ) throws Exception {
+        String stageExceeded = stageBudget.getExceededLimit();
+        if (stageExceeded != null) {
+            stageReport.add(new ClassReader(classFile).getClassName(), RunReport.Outcome.PASSED_THROUGH, "stage " + stageExceeded);
+            return () -> classFile;
+        }
+        if (!limits.hasClassLimits()) {
+            return obfuscator.getObfuscatedClassSupplier(classFile);
+        }
+
+        String exceeded;
+        try {
+            var classBudget = new Budget(limits.classNanos(), limits.classBytes());
+            byte[] result = classBudget.run(() -> obfuscator.getObfuscatedClassSupplier(classFile).get());
+            // Обфускатор мог не проверять бюджет и закончить уже за его пределами
+            String overrun = classBudget.getExceededLimit();
+            if (overrun != null) {
+                stageReport.add(new ClassReader(classFile).getClassName(), RunReport.Outcome.OVERRUN, overrun);
+            }
+            return () -> result;
+        } catch (Exception e) {
+            exceeded = getExceededLimit(e);
+        }
+        String className = new ClassReader(classFile).getClassName();
+        try {
+            var cheaperBudget = new Budget(limits.classNanos(), limits.classBytes());
+            Supplier<byte[]> cheaper = cheaperBudget.run(() -> obfuscator.getCheaperClassSupplier(classFile));
+            if (cheaper != null) {
+                byte[] result = cheaperBudget.run(cheaper::get);
+                stageReport.add(className, RunReport.Outcome.DEGRADED, exceeded);
+                return () -> result;
+            }
+        } catch (Exception e) {
+            exceeded += ", then " + getExceededLimit(e);
+        }
+        stageReport.add(className, RunReport.Outcome.PASSED_THROUGH, exceeded);
+        return () -> classFile;
+    }
+
+    /**
+     * @return Описание превышенного лимита, если <code>e</code> вызвано превышением бюджета
+     * @throws Exception <code>e</code>, если нет
+     */
+    private static String getExceededLimit(Exception e) throws Exception {
+        Budget.ExceededException exceeded = Budget.findExceeded(e);
+        if (exceeded == null) {
+            throw e;
+        }
+        return exceeded.getMessage();
+    }
+
+    private static void addObfuscatedClass(Consumer<byte[]> output, Supplier<byte[]> supplier) {
+        byte[] obfuscatedClassBytes = supplier.get();
+        // Обфускатор мог удалить класс
+        if (obfuscatedClassBytes != null) {
+            output.accept(obfuscatedClassBytes);
+        }
+    }
+
 }
@@ -1,13 +1,25 @@
 package ru.fewizz;
 
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.SplittableRandom;
 import java.util.function.Supplier;
 
 abstract public class Obfuscator {
 
+    /**
+     * Системное свойство с зерном запуска, от которого производятся
+     * все случайные решения обфускаторов
+     */
+    public static final String SEED_PROPERTY = "ru.fewizz.seed";
+
+    private Rules.StageRules rules;
+
     /**
      * @param classFileBytes Байты класс-файла, который нужно обфусцировать
      * @return Получаемый <code>Supplier</code> будет вызыван один раз, после
-     *  события <code>onAllClassesProvided</code>
+     *  события <code>onAllClassesProvided</code>. Если он вернет <code>null</code>,
+     *  класс удаляется из результата
      */
     public abstract Supplier<byte[]> getObfuscatedClassSupplier(
         byte[] classFileBytes
@@ -18,4 +30,112 @@ abstract public class Obfuscator {
      */
     public void onAllClassesProvided() throws Exception {}
 
+    /**
+     * Вызывается после того, как были вызваны все полученные <code>Supplier</code>'ы.
+     */
+    public void onAllClassesObfuscated() throws Exception {}
+
+    /**
+     * Обрабатывает ли обфускатор каждый класс независимо от остальных.
+     * Если да, <code>Supplier</code> может быть вызван сразу после
+     * <code>getObfuscatedClassSupplier</code>, еще до <code>onAllClassesProvided</code>,
+     * и на куче не нужно держать все классы одновременно
+     */
+    public boolean isPerClass() {
+        return false;
+    }
+
+    /**
+     * Состояние, по которому экземпляр этого обфускатора в другом процессе
+     * ({@link Worker}) переписывает классы так же, как этот после
+     * <code>onAllClassesProvided</code>. Получив его через {@link #importState},
+     * тот экземпляр обрабатывает каждый класс независимо, как при {@link #isPerClass()}
+     * @return <code>null</code>, если переписывание нельзя вынести из процесса
+     */
+    public byte[] exportState() throws Exception {
+        return null;
+    }
+
+    /**
+     * См. {@link #exportState()}
+     */
+    public void importState(byte[] state) throws Exception {
+        throw new UnsupportedOperationException(getClass().getName() + " has no exportable state");
+    }
+
+    /**
+     * Более дешевая обработка класса, на случай когда обычная превысила бюджет
+     * ({@link Budget}). Вызывается только для обфускаторов с {@link #isPerClass()},
+     * <code>Supplier</code> вызывается сразу же
+     * @return <code>null</code>, если дешевле нельзя, и класс останется без изменений
+     */
+    public Supplier<byte[]> getCheaperClassSupplier(byte[] classFileBytes) throws Exception {
+        return null;
+    }
+
+    /**
+     * Классы, которые обфускатор добавляет в программу, например вспомогательные
+     * классы для сгенерированного им кода. Добавляются ко входу этапа, то есть
+     * обрабатываются им и следующими обфускаторами. Класс с уже добавленным
+     * другим этапом именем не добавляется повторно
+     */
+    public List<byte[]> getAddedClasses() throws Exception {
+        return List.of();
+    }
+
+    /**
+     * Вызывается вместо <code>getObfuscatedClassSupplier</code> для класса,
+     * исключенного правилом <code>skip</code> ({@link Rules}): такой класс копируется
+     * в результат как есть. Обфускаторам, которым нужна вся программа,
+     * он виден только через этот метод
+     */
+    public void onClassSkipped(byte[] classFileBytes) throws Exception {}
+
+    /**
+     * Правила ({@link Rules}), относящиеся к этому обфускатору
+     */
+    protected synchronized Rules.StageRules getRules() {
+        if (this.rules == null) {
+            this.rules = Rules.shared().forStage(getClass().getName());
+        }
+        return this.rules;
+    }
+
+    /**
+     * Настройка обфускатора, задается системным свойством
+     * <code>&lt;полное имя класса обфускатора&gt;.&lt;name&gt;</code>,
+     * например <code>-Dru.fewizz.obfuscators.Shrinker.keep=com.example.**</code>
+     */
+    protected final String getOption(String name, String defaultValue) {
+        return System.getProperty(getClass().getName() + "." + name, defaultValue);
+    }
+
+    /**
+     * Генератор случайных чисел для сущности с ключом <code>key</code>
+     * (имя класса, либо класса и члена класса).<p>
+     * Зависит только от зерна запуска ({@link #SEED_PROPERTY}), класса
+     * обфускатора и ключа, поэтому результат не зависит ни от числа потоков,
+     * ни от порядка обработки классов. Для вложенных сущностей
+     * генератор можно разделить через {@link SplittableRandom#split()}
+     */
+    protected SplittableRandom createRandom(String key) {
+        long seed = Long.getLong(SEED_PROPERTY, 0);
+        seed = mix(seed, getClass().getName());
+        seed = mix(seed, key);
+        return new SplittableRandom(seed);
+    }
+
+    /**
+     * FNV-1a по байтам UTF-8: в отличие от <code>String.hashCode()</code>
+     * дает 64 бита
+     */
+    private static long mix(long seed, String value) {
+        long hash = seed ^ 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
 }
@@ -0,0 +1,128 @@
+package ru.fewizz;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Асинхронная запись результата в директорию.<p>
+ * Файлы пишутся несколькими потоками (см. {@link InputScanner#THREADS_PROPERTY})
+ * через ограниченную очередь: когда она заполнена, файл пишет сам вызывающий
+ * поток, так что на куче ждут записи не больше <code>QUEUE_CAPACITY</code> классов.
+ * Имя класса берется из <code>this_class</code> без разбора остального класса,
+ * созданные директории запоминаются.<p>
+ * Ошибки записи выбрасываются из {@link #close()}, остальные исключения задач -
+ * тоже, обернутыми в <code>IOException</code>: иначе поток пула завершился бы,
+ * а недописанный результат остался бы незамеченным
+ */
+public final class OutputWriter implements AutoCloseable {
+
+    private static final int QUEUE_CAPACITY = 256;
+
+    private final Path root;
+    private final ThreadPoolExecutor executor;
+    private final Map<Path, Boolean> createdDirectories = new ConcurrentHashMap<>();
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+    public OutputWriter(Path root) {
+        this(root, Integer.getInteger(InputScanner.THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public OutputWriter(Path root, int threads) {
+        this.root = root;
+        this.executor = new ThreadPoolExecutor(
+            threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+            new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+    }
+
+    /**
+     * Записывает класс в <code>&lt;root&gt;/&lt;внутреннее имя&gt;.class</code>
+     */
+    public void writeClass(byte[] classBytes) {
+        String name = new ClassReader(classBytes).getClassName();
+        this.submit(() -> Files.write(this.resolve(name + ".class"), classBytes));
+    }
+
+    /**
+     * Копирует файл <code>source</code> в <code>&lt;root&gt;/&lt;relative&gt;</code>
+     */
+    public void copy(Path source, Path relative) {
+        this.submit(() -> Files.copy(source, this.resolve(relative.toString()), StandardCopyOption.REPLACE_EXISTING));
+    }
+
+    /**
+     * Дожидается записи всех файлов
+     * @throws InterruptedIOException Если поток прерван во время ожидания,
+     *  флаг прерывания при этом восстанавливается
+     */
+    @Override
+    public void close() throws IOException {
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            var interrupted = new InterruptedIOException("interrupted while writing output");
+            interrupted.initCause(e);
+            throw interrupted;
+        }
+        if (this.failure.get() != null) {
+            throw this.failure.get();
+        }
+    }
+
+    private interface IOAction {
+        void run() throws IOException;
+    }
+
+    private void submit(IOAction action) {
+        this.executor.execute(() -> {
+            if (this.failure.get() != null) {
+                return;
+            }
+            try {
+                action.run();
+            } catch (IOException e) {
+                this.failure.compareAndSet(null, e);
+            } catch (UncheckedIOException e) {
+                this.failure.compareAndSet(null, e.getCause());
+            } catch (Throwable e) {
+                this.failure.compareAndSet(null, new IOException("failed to write output", e));
+            }
+        });
+    }
+
+    /**
+     * @return Путь файла, директория которого уже создана
+     */
+    private Path resolve(String relative) {
+        Path path = this.root.resolve(relative);
+        Path directory = path.getParent();
+        if (directory != null) {
+            // computeIfAbsent держит остальные потоки, пока директория не создана
+            this.createdDirectories.computeIfAbsent(directory, d -> {
+                try {
+                    Files.createDirectories(d);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return true;
+            });
+        }
+        return path;
+    }
+
+}
@@ -0,0 +1,248 @@
+package ru.fewizz;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Восстановление исходных имен в стектрейсах по маппингам
+ * {@link ru.fewizz.obfuscators.LexicalObfuscator} (настройка <code>mapping</code>).<p>
+ * Маппинги загружаются в индекс: обфусцированное имя класса -&gt; исходное имя
+ * и исходные имена методов по обфусцированному имени. Методы с разными дескрипторами
+ * получают одно имя, а номеров строк после {@link ru.fewizz.obfuscators.DebugMetadataDeleter}
+ * нет, поэтому неоднозначный метод выводится всеми вариантами через <code>|</code>.<p>
+ * Лог читается потоком, кусками по <code>CHUNK_SIZE</code> байт, разрезанными по концам строк.
+ * Строка длиннее куска не режется: буфер растет до ее конца.
+ * Куски обрабатываются параллельно и записываются в исходном порядке, в памяти
+ * одновременно не больше двух кусков на поток. Переписываются строки кадров
+ * (<code>at x.y.z(...)</code>) и заголовки исключений (<code>Caused by: x.y: ...</code>,
+ * <code>Exception in thread "..." x.y</code> и строка, начинающаяся с имени класса).<p>
+ * Аргументы: файл маппингов, затем входной лог (по умолчанию - stdin)
+ * и выходной файл (по умолчанию - stdout)
+ */
+public final class Retrace {
+
+    private static final int CHUNK_SIZE = 4 << 20;
+
+    /**
+     * @param methods Обфусцированное имя метода -&gt; исходные имена через <code>|</code>
+     */
+    private record ClassEntry(String name, Map<String, String> methods) {}
+
+    // Обфусцированное имя класса (x.y.z) -> класс
+    private final Map<String, ClassEntry> classes;
+
+    private Retrace(Map<String, ClassEntry> classes) {
+        this.classes = classes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Retrace retrace = load(Path.of(args[0]));
+        try (
+            InputStream in = args.length > 1 ? Files.newInputStream(Path.of(args[1])) : System.in;
+            OutputStream out = args.length > 2 ? Files.newOutputStream(Path.of(args[2])) : System.out
+        ) {
+            retrace.retrace(in, out, Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    public static Retrace load(Path mapping) throws IOException {
+        Map<String, ClassEntry> classes = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(mapping)) {
+            ClassEntry current = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int arrow = line.indexOf(" -> ");
+                if (arrow < 0) {
+                    continue;
+                }
+                if (!line.startsWith(" ")) {
+                    // x.y.Z -> a:
+                    String translated = line.substring(arrow + 4, line.length() - (line.endsWith(":") ? 1 : 0));
+                    current = new ClassEntry(line.substring(0, arrow), new HashMap<>());
+                    classes.put(translated, current);
+                    continue;
+                }
+                // Поля в стектрейсах не встречаются
+                int paren = line.lastIndexOf('(', arrow);
+                if (current == null || paren < 0) {
+                    continue;
+                }
+                String name = line.substring(line.lastIndexOf(' ', paren) + 1, paren);
+                current.methods.merge(
+                    line.substring(arrow + 4), name,
+                    (names, other) -> Arrays.asList(names.split("\\|")).contains(other) ? names : names + "|" + other
+                );
+            }
+        }
+        return new Retrace(classes);
+    }
+
+    /**
+     * Переписывает лог из <code>in</code> в <code>out</code>
+     * @param threads Число потоков, обрабатывающих куски
+     */
+    public void retrace(InputStream in, OutputStream out, int threads) throws IOException, InterruptedException {
+        this.retrace(in, out, threads, CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize Размер куска в байтах
+     */
+    void retrace(InputStream in, OutputStream out, int threads, int chunkSize) throws IOException, InterruptedException {
+        var output = new BufferedOutputStream(out, 1 << 16);
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        Queue<Future<byte[]>> pending = new ArrayDeque<>();
+        try {
+            byte[] buffer = new byte[chunkSize];
+            int carried = 0;
+            while (true) {
+                int read = in.readNBytes(buffer, carried, buffer.length - carried);
+                int length = carried + read;
+                if (length == 0) {
+                    break;
+                }
+                boolean isEnd = length < buffer.length;
+                // Кусок заканчивается последним полным переводом строки
+                int end = length;
+                if (!isEnd) {
+                    while (end > 0 && buffer[end - 1] != '\n') {
+                        --end;
+                    }
+                    // Строка длиннее буфера: он растет, пока в нем не окажется ее конец,
+                    // иначе разрез мог бы прийтись на середину символа UTF-8
+                    if (end == 0) {
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                        carried = length;
+                        continue;
+                    }
+                }
+                String chunk = new String(buffer, 0, end, StandardCharsets.UTF_8);
+                carried = length - end;
+                if (buffer.length > chunkSize && carried < chunkSize) {
+                    // После длинной строки буфер возвращается к обычному размеру
+                    byte[] next = new byte[chunkSize];
+                    System.arraycopy(buffer, end, next, 0, carried);
+                    buffer = next;
+                }
+                else {
+                    System.arraycopy(buffer, end, buffer, 0, carried);
+                }
+
+                if (executor == null) {
+                    output.write(this.retraceChunk(chunk));
+                }
+                else {
+                    pending.add(executor.submit(() -> this.retraceChunk(chunk)));
+                    while (pending.size() >= threads * 2) {
+                        output.write(pending.poll().get());
+                    }
+                }
+                if (isEnd && carried == 0) {
+                    break;
+                }
+            }
+            while (!pending.isEmpty()) {
+                output.write(pending.poll().get());
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+        output.flush();
+    }
+
+    private byte[] retraceChunk(String chunk) {
+        var result = new StringBuilder(chunk.length() + chunk.length() / 8);
+        int start = 0;
+        while (start < chunk.length()) {
+            int end = chunk.indexOf('\n', start);
+            end = end < 0 ? chunk.length() : end + 1;
+            result.append(this.retraceLine(chunk.substring(start, end)));
+            start = end;
+        }
+        return result.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Строка лога с исходными именами, либо она же, если переписывать нечего
+     */
+    public String retraceLine(String line) {
+        int i = 0;
+        while (i < line.length() && (line.charAt(i) == ' ' || line.charAt(i) == '\t')) {
+            ++i;
+        }
+        if (line.startsWith("at ", i)) {
+            return this.retraceFrame(line, i + 3);
+        }
+        if (line.startsWith("Caused by: ", i)) {
+            return this.retraceException(line, i + "Caused by: ".length());
+        }
+        if (line.startsWith("Suppressed: ", i)) {
+            return this.retraceException(line, i + "Suppressed: ".length());
+        }
+        if (line.startsWith("Exception in thread \"", i)) {
+            int quote = line.indexOf("\" ", i + "Exception in thread \"".length());
+            return quote < 0 ? line : this.retraceException(line, quote + 2);
+        }
+        return i == 0 ? this.retraceException(line, 0) : line;
+    }
+
+    /**
+     * <code>[модуль/]x.y.Z.method(источник)</code>, начиная с <code>start</code>
+     */
+    private String retraceFrame(String line, int start) {
+        int paren = line.indexOf('(', start);
+        if (paren < 0) {
+            return line;
+        }
+        int dot = line.lastIndexOf('.', paren);
+        if (dot < start) {
+            return line;
+        }
+        int classStart = Math.max(start, line.lastIndexOf('/', dot) + 1);
+        ClassEntry entry = this.classes.get(line.substring(classStart, dot));
+        if (entry == null) {
+            return line;
+        }
+        String method = line.substring(dot + 1, paren);
+        return line.substring(0, classStart) + entry.name + "." +
+            entry.methods.getOrDefault(method, method) + line.substring(paren);
+    }
+
+    /**
+     * Имя класса исключения с <code>start</code> до двоеточия или конца строки
+     */
+    private String retraceException(String line, int start) {
+        int end = line.indexOf(':', start);
+        if (end < 0) {
+            end = line.length();
+            while (end > start && Character.isWhitespace(line.charAt(end - 1))) {
+                --end;
+            }
+        }
+        ClassEntry entry = this.classes.get(line.substring(start, end));
+        if (entry == null) {
+            return line;
+        }
+        return line.substring(0, start) + entry.name + line.substring(end);
+    }
+
+}
@@ -0,0 +1,261 @@
+package ru.fewizz;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Правила, ограничивающие работу обфускаторов отдельными классами и членами классов.<p>
+ * Файл правил задается системным свойством <code>ru.fewizz.rules</code>,
+ * по правилу в строке, <code>#</code> - комментарий:
+ * <pre>
+ * &lt;действие&gt; &lt;обфускатор&gt; &lt;шаблон класса&gt;[#член] [уровень]
+ *
+ * skip  *                      com.thirdparty.**
+ * keep  LexicalObfuscator      com.example.api.*
+ * keep  LexicalObfuscator      com.example.Plugin#onLoad
+ * level ControlFlowObfuscator  com.example.hot.**  0
+ * </pre>
+ * Обфускатор - полное или простое имя класса, <code>*</code> - все обфускаторы.
+ * Шаблон класса (<code>x.y.Z</code>): <code>*</code> - часть имени без точек,
+ * <code>**</code> - любая часть. Член - имя поля или метода, <code>*</code> - любая часть имени.
+ * Имена - те, что видит обфускатор, то есть уже после предыдущих обфускаторов.
+ * <ul>
+ *     <li><code>skip</code> - класс не передается обфускатору и даже не разбирается,
+ *     а копируется в результат как есть</li>
+ *     <li><code>keep</code> - класс обрабатывается, но указанный класс или член сохраняется:
+ *     не переименовывается, не удаляется, его код не изменяется</li>
+ *     <li><code>level</code> - интенсивность обработки класса (смысл зависит от обфускатора),
+ *     из нескольких подходящих правил действует последнее</li>
+ * </ul>
+ * Шаблоны без <code>*</code> и вида <code>x.y.**</code> компилируются в префиксное дерево,
+ * остальные проверяются регулярными выражениями
+ */
+public final class Rules {
+
+    public static final String RULES_PROPERTY = "ru.fewizz.rules";
+
+    public enum Action { SKIP, KEEP, LEVEL }
+
+    /**
+     * @param index Номер правила в файле, определяет порядок применения
+     * @param memberPattern <code>null</code>, если правило относится ко всему классу
+     */
+    record Rule(int index, Action action, String stage, String classPattern, Pattern memberPattern, int level) {}
+
+    private static Rules shared;
+
+    private final List<Rule> rules;
+
+    private Rules(List<Rule> rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * Правила из файла, заданного свойством {@link #RULES_PROPERTY}, либо пустые
+     */
+    public static synchronized Rules shared() {
+        if (shared == null) {
+            String file = System.getProperty(RULES_PROPERTY);
+            try {
+                shared = file == null ? parse(List.of()) : parse(Files.readAllLines(Paths.get(file)));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return shared;
+    }
+
+    public static Rules parse(List<String> lines) {
+        List<Rule> rules = new ArrayList<>();
+        for (int lineNumber = 1; lineNumber <= lines.size(); ++lineNumber) {
+            String line = lines.get(lineNumber - 1).strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            if (parts.length < 3) {
+                throw new IllegalArgumentException("rules line " + lineNumber + ": expected <action> <obfuscator> <pattern>");
+            }
+            Action action = Action.valueOf(parts[0].toUpperCase());
+            if ((action == Action.LEVEL) != (parts.length == 4) || parts.length > 4) {
+                throw new IllegalArgumentException("rules line " + lineNumber + ": level is required for and only for 'level'");
+            }
+
+            String classPattern = parts[2];
+            Pattern memberPattern = null;
+            int hash = classPattern.indexOf('#');
+            if (hash != -1) {
+                if (action == Action.SKIP) {
+                    throw new IllegalArgumentException("rules line " + lineNumber + ": 'skip' applies to whole classes");
+                }
+                memberPattern = Pattern.compile(
+                    Pattern.quote(classPattern.substring(hash + 1)).replace("*", "\\E.*\\Q")
+                );
+                classPattern = classPattern.substring(0, hash);
+            }
+            int level = action == Action.LEVEL ? Integer.parseInt(parts[3]) : 0;
+            rules.add(new Rule(rules.size(), action, parts[1], classPattern, memberPattern, level));
+        }
+        return new Rules(rules);
+    }
+
+    /**
+     * @param stageClassName Полное имя класса обфускатора
+     */
+    public StageRules forStage(String stageClassName) {
+        String simpleName = stageClassName.substring(stageClassName.lastIndexOf('.') + 1);
+        var stageRules = new StageRules();
+        for (Rule rule : this.rules) {
+            if (rule.stage.equals("*") || rule.stage.equals(stageClassName) || rule.stage.equals(simpleName)) {
+                stageRules.add(rule);
+            }
+        }
+        return stageRules;
+    }
+
+    /**
+     * Шаблон имени класса (x.y.Z): <code>*</code> - часть имени без точек, <code>**</code> - любая часть
+     */
+    public static Pattern compileClassPattern(String pattern) {
+        var regex = new StringBuilder();
+        for (int i = 0; i < pattern.length(); ++i) {
+            char ch = pattern.charAt(i);
+            if (ch == '*') {
+                if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                    regex.append(".*");
+                    ++i;
+                }
+                else {
+                    regex.append("[^.]*");
+                }
+            }
+            else {
+                regex.append(Pattern.quote(String.valueOf(ch)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Правила одного обфускатора, скомпилированные для быстрой проверки имен классов.
+     * Все методы принимают имена в формате x.y.Z или x/y/Z
+     */
+    public static final class StageRules {
+
+        private static final class Node {
+            final Map<Character, Node> children = new HashMap<>();
+            // Шаблоны, совпадающие с путем до узла
+            final List<Rule> exact = new ArrayList<>();
+            // Шаблоны вида <путь до узла>**
+            final List<Rule> prefix = new ArrayList<>();
+        }
+
+        private final Node root = new Node();
+        private final List<Map.Entry<Pattern, Rule>> fallback = new ArrayList<>();
+        private int size = 0;
+        // Имя класса -> подходящие правила в порядке файла
+        private final Map<String, List<Rule>> cache = new ConcurrentHashMap<>();
+
+        private void add(Rule rule) {
+            ++this.size;
+            String pattern = rule.classPattern;
+            int star = pattern.indexOf('*');
+            boolean isPrefix = star == pattern.length() - 2 && pattern.endsWith("**");
+            if (star != -1 && !isPrefix) {
+                this.fallback.add(Map.entry(compileClassPattern(pattern), rule));
+                return;
+            }
+            String literal = isPrefix ? pattern.substring(0, star) : pattern;
+            Node node = this.root;
+            for (int i = 0; i < literal.length(); ++i) {
+                node = node.children.computeIfAbsent(literal.charAt(i), c -> new Node());
+            }
+            (isPrefix ? node.prefix : node.exact).add(rule);
+        }
+
+        public boolean isEmpty() {
+            return this.size == 0;
+        }
+
+        public boolean isSkipped(String className) {
+            for (Rule rule : this.match(className)) {
+                if (rule.action == Action.SKIP) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Сохраняется ли класс целиком
+         */
+        public boolean isKept(String className) {
+            for (Rule rule : this.match(className)) {
+                if (rule.action == Action.KEEP && rule.memberPattern == null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Сохраняется ли поле или метод класса (в том числе вместе со всем классом)
+         */
+        public boolean isMemberKept(String className, String memberName) {
+            for (Rule rule : this.match(className)) {
+                if (
+                    rule.action == Action.KEEP &&
+                    (rule.memberPattern == null || rule.memberPattern.matcher(memberName).matches())
+                ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public int getLevel(String className, int defaultLevel) {
+            int level = defaultLevel;
+            for (Rule rule : this.match(className)) {
+                if (rule.action == Action.LEVEL) {
+                    level = rule.level;
+                }
+            }
+            return level;
+        }
+
+        private List<Rule> match(String className) {
+            if (this.size == 0) {
+                return List.of();
+            }
+            return this.cache.computeIfAbsent(className.replace('/', '.'), name -> {
+                List<Rule> result = new ArrayList<>();
+                Node node = this.root;
+                for (int i = 0; node != null; ++i) {
+                    result.addAll(node.prefix);
+                    if (i == name.length()) {
+                        result.addAll(node.exact);
+                        break;
+                    }
+                    node = node.children.get(name.charAt(i));
+                }
+                for (var entry : this.fallback) {
+                    if (entry.getKey().matcher(name).matches()) {
+                        result.add(entry.getValue());
+                    }
+                }
+                result.sort(Comparator.comparingInt(Rule::index));
+                return List.copyOf(result);
+            });
+        }
+
+    }
+
+}
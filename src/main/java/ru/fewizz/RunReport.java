@@ -0,0 +1,127 @@
+package ru.fewizz;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Отчет о прогоне: время и выделенная память каждого этапа и классы,
+ * для которых был превышен бюджет ({@link Budget}).<p>
+ * Итоги этапов пишутся в лог, полный отчет - в файл из системного свойства
+ * {@link #PROPERTY}, если оно задано
+ */
+public final class RunReport {
+    private static final Logger LOGGER = Logger.getLogger("obfuscator");
+
+    public static final String PROPERTY = "ru.fewizz.report";
+
+    /**
+     * Что стало с классом, превысившим бюджет
+     */
+    public enum Outcome {
+        /** Обработан более дешевой настройкой обфускатора */
+        DEGRADED,
+        /** Передан дальше без изменений */
+        PASSED_THROUGH,
+        /** Бюджет превышен, но обфускатор обрабатывает всю программу сразу,
+         *  и результат для класса пришлось оставить */
+        OVERRUN
+    }
+
+    public record Event(String className, Outcome outcome, String reason) {}
+
+    public static final class Stage {
+        private final String name;
+        private final List<Event> events = new ArrayList<>();
+        private int classes;
+        private long nanos;
+        private long allocatedBytes;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public List<Event> getEvents() {
+            return this.events;
+        }
+
+        public int getClasses() {
+            return this.classes;
+        }
+
+        public long getNanos() {
+            return this.nanos;
+        }
+
+        public long getAllocatedBytes() {
+            return this.allocatedBytes;
+        }
+
+        public long count(Outcome outcome) {
+            return this.events.stream().filter(e -> e.outcome == outcome).count();
+        }
+
+        void add(String className, Outcome outcome, String reason) {
+            this.events.add(new Event(className, outcome, reason));
+        }
+
+        void finish(int classes, Budget budget) {
+            this.classes = classes;
+            this.nanos = budget.getElapsedNanos();
+            this.allocatedBytes = budget.getAllocatedBytes();
+        }
+
+        String summary() {
+            return this.name + ": " + this.classes + " classes, " +
+                this.nanos / 1_000_000 + " ms, " +
+                this.allocatedBytes / (1 << 20) + " MiB allocated, " +
+                this.count(Outcome.DEGRADED) + " degraded, " +
+                this.count(Outcome.PASSED_THROUGH) + " passed through, " +
+                this.count(Outcome.OVERRUN) + " overrun";
+        }
+    }
+
+    private final List<Stage> stages = new ArrayList<>();
+
+    public List<Stage> getStages() {
+        return this.stages;
+    }
+
+    Stage startStage(String name) {
+        var stage = new Stage(name);
+        this.stages.add(stage);
+        return stage;
+    }
+
+    /**
+     * Пишет итоги в лог и, если задано {@link #PROPERTY}, полный отчет в файл
+     */
+    public void publish() throws IOException {
+        for (Stage stage : this.stages) {
+            LOGGER.info(stage.summary());
+            for (Event event : stage.events) {
+                LOGGER.warning(stage.name + ": " + event.className + " " + event.outcome + " (" + event.reason + ")");
+            }
+        }
+        String path = System.getProperty(PROPERTY);
+        if (path == null) {
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        for (Stage stage : this.stages) {
+            lines.add(stage.summary());
+            for (Event event : stage.events) {
+                lines.add("\t" + event.className + "\t" + event.outcome + "\t" + event.reason);
+            }
+        }
+        Files.write(Path.of(path), lines);
+    }
+
+}
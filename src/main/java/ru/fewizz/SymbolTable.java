@@ -0,0 +1,115 @@
+package ru.fewizz;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantUtf8;
+import org.apache.bcel.classfile.JavaClass;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Общая на весь прогон таблица символов: имена классов и членов классов,
+ * дескрипторы и остальные строки пулов констант.<p>
+ * Без нее каждый класс декодирует <code>java/lang/Object</code>, <code>Code</code>
+ * и общие дескрипторы в собственные экземпляры <code>String</code>. Модели классов,
+ * которые обфускаторы держат до конца своей работы (<code>ClassNode</code>,
+ * <code>JavaClass</code>), получают строки через таблицу, и одинаковые символы
+ * разных классов становятся одним объектом. Поэтому и <code>equals</code> для них,
+ * как и поиск в <code>HashMap</code> по такому ключу, сводится к сравнению ссылок.<p>
+ * Потокобезопасна. Очищается в конце прогона ({@link Main#obfuscate}), чтобы символы
+ * одной программы не оставались в памяти во время следующей. Если прогоны в одном процессе
+ * пересекаются, очистка лишь уменьшает общность строк: выданные строки остаются верными
+ */
+public final class SymbolTable {
+
+    private static final SymbolTable SHARED = new SymbolTable();
+
+    private final ConcurrentHashMap<String, String> symbols = new ConcurrentHashMap<>();
+
+    public static SymbolTable shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return Единственный экземпляр строки, равной <code>symbol</code>
+     */
+    public String intern(String symbol) {
+        if (symbol == null) {
+            return null;
+        }
+        // get не блокирует, а символы почти всегда уже есть в таблице
+        String interned = this.symbols.get(symbol);
+        if (interned != null) {
+            return interned;
+        }
+        interned = this.symbols.putIfAbsent(symbol, symbol);
+        return interned != null ? interned : symbol;
+    }
+
+    public int size() {
+        return this.symbols.size();
+    }
+
+    public void clear() {
+        this.symbols.clear();
+    }
+
+    /**
+     * @return <code>ClassReader</code>, все строки пула констант которого
+     *  проходят через эту таблицу
+     */
+    public ClassReader newClassReader(byte[] classFileBytes) {
+        return new InterningClassReader(classFileBytes, this);
+    }
+
+    /**
+     * Заменяет строки пула констант и имена класса и его супертипов
+     * на экземпляры из таблицы
+     */
+    public void intern(JavaClass javaClass) {
+        // getConstant бросает исключение на пустых слотах после long и double
+        Constant[] pool = javaClass.getConstantPool().getConstantPool();
+        for (int i = 1; i < pool.length; ++i) {
+            if (pool[i] instanceof ConstantUtf8 utf8) {
+                pool[i] = new ConstantUtf8(this.intern(utf8.getBytes()));
+            }
+        }
+        javaClass.setClassName(this.intern(javaClass.getClassName()));
+        javaClass.setSuperclassName(this.intern(javaClass.getSuperclassName()));
+        String[] interfaceNames = javaClass.getInterfaceNames();
+        for (int i = 0; i < interfaceNames.length; ++i) {
+            interfaceNames[i] = this.intern(interfaceNames[i]);
+        }
+        javaClass.setInterfaceNames(interfaceNames);
+    }
+
+    private static final class InterningClassReader extends ClassReader {
+        private final SymbolTable table;
+        // Индекс в пуле констант -> строка из таблицы
+        private final String[] interned;
+
+        InterningClassReader(byte[] classFileBytes, SymbolTable table) {
+            super(classFileBytes);
+            this.table = table;
+            this.interned = new String[this.getItemCount()];
+        }
+
+        /**
+         * Через этот метод <code>ClassReader</code> читает все строки пула констант
+         */
+        @Override
+        public String readUTF8(int offset, char[] charBuffer) {
+            String value = super.readUTF8(offset, charBuffer);
+            // Конструктор ClassReader читает имена атрибутов, когда полей еще нет
+            if (value == null || this.interned == null) {
+                return value;
+            }
+            int index = this.readUnsignedShort(offset);
+            if (this.interned[index] == null) {
+                this.interned[index] = this.table.intern(value);
+            }
+            return this.interned[index];
+        }
+    }
+
+}
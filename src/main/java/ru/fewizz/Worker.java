@@ -0,0 +1,171 @@
+package ru.fewizz;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Процесс-исполнитель распределенного режима (см. {@link Coordinator}).<p>
+ * Подключается к координатору и по его командам пропускает части (shards) классов
+ * через цепочку обфускаторов, обрабатывающих классы независимо: с {@link Obfuscator#isPerClass()},
+ * либо получивших состояние через {@link Obfuscator#importState}.
+ * Обфускаторы создаются по именам классов, их настройки и правила - из системных
+ * свойств, которые координатор передает исполнителю.<p>
+ * Протокол - <code>DataInput</code>/<code>DataOutput</code>, команда начинается с int:
+ * <ul>
+ * <li>{@link #SEGMENT}: число этапов, для каждого имя класса обфускатора и
+ *  состояние (длина, -1 - нет, и байты)</li>
+ * <li>{@link #SHARD}: число классов, для каждого длина и байты. Ответ: {@link #OK},
+ *  классы (длина, -1 - класс удален, и байты), затем события бюджета (номер этапа,
+ *  имя класса, исход, причина). Либо {@link #FAILED} и текст ошибки</li>
+ * <li>{@link #END}: завершение</li>
+ * </ul>
+ * Аргументы: порт координатора на loopback-интерфейсе
+ */
+public final class Worker {
+
+    static final int END = 0;
+    static final int SEGMENT = 1;
+    static final int SHARD = 2;
+
+    static final int OK = 0;
+    static final int FAILED = 1;
+
+    private final List<Obfuscator> obfuscators = new ArrayList<>();
+    private final List<Budget.Limits> limits = new ArrayList<>();
+    // Получал ли исполнитель классы в текущем сегменте
+    private boolean hasShards = false;
+
+    public static void main(String[] args) throws Exception {
+        try (var socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0]))) {
+            new Worker().serve(socket);
+        }
+    }
+
+    /**
+     * Выполняет команды координатора, пока не получит {@link #END}
+     */
+    public void serve(Socket socket) throws Exception {
+        var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        while (true) {
+            int command = in.readInt();
+            if (command == END) {
+                this.finishSegment();
+                return;
+            }
+            if (command == SEGMENT) {
+                this.startSegment(in);
+                continue;
+            }
+            if (command != SHARD) {
+                throw new IOException("unknown command " + command);
+            }
+            List<byte[]> classes = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; --i) {
+                classes.add(in.readNBytes(in.readInt()));
+            }
+            this.hasShards = true;
+            this.processShard(classes, out);
+            out.flush();
+        }
+    }
+
+    private void startSegment(DataInputStream in) throws Exception {
+        this.finishSegment();
+        List<String> names = new ArrayList<>();
+        List<byte[]> states = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; --i) {
+            names.add(in.readUTF());
+            int length = in.readInt();
+            states.add(length < 0 ? null : in.readNBytes(length));
+        }
+        this.obfuscators.addAll(Main.createObfuscators(names));
+        for (int i = 0; i < names.size(); ++i) {
+            if (states.get(i) != null) {
+                this.obfuscators.get(i).importState(states.get(i));
+            }
+            this.limits.add(Budget.Limits.forStage(this.obfuscators.get(i)));
+        }
+    }
+
+    private void finishSegment() throws Exception {
+        if (this.hasShards) {
+            for (Obfuscator obfuscator : this.obfuscators) {
+                obfuscator.onAllClassesObfuscated();
+            }
+        }
+        this.hasShards = false;
+        this.obfuscators.clear();
+        this.limits.clear();
+    }
+
+    /**
+     * Каждый класс проходит все этапы сегмента подряд, так же, как в {@link Main#obfuscate}
+     */
+    private void processShard(List<byte[]> classes, DataOutputStream out) throws IOException {
+        List<RunReport.Stage> reports = new ArrayList<>();
+        for (Obfuscator obfuscator : this.obfuscators) {
+            reports.add(new RunReport.Stage(obfuscator.getClass().getName()));
+        }
+        // Бюджет этапа соблюдает координатор, здесь он не ограничен
+        var stageBudget = new Budget(0, 0);
+        List<byte[]> results = new ArrayList<>();
+        try {
+            for (byte[] classFile : classes) {
+                for (int stage = 0; stage < this.obfuscators.size() && classFile != null; ++stage) {
+                    Obfuscator obfuscator = this.obfuscators.get(stage);
+                    Rules.StageRules rules = obfuscator.getRules();
+                    if (!rules.isEmpty() && rules.isSkipped(new ClassReader(classFile).getClassName())) {
+                        obfuscator.onClassSkipped(classFile);
+                        continue;
+                    }
+                    Supplier<byte[]> supplier = Main.obfuscateClass(
+                        obfuscator, classFile, this.limits.get(stage), stageBudget, reports.get(stage)
+                    );
+                    classFile = supplier.get();
+                }
+                results.add(classFile);
+            }
+        } catch (Exception | LinkageError e) {
+            var trace = new StringWriter();
+            e.printStackTrace(new PrintWriter(trace));
+            out.writeInt(FAILED);
+            String message = trace.toString();
+            out.writeUTF(message.length() > 16_000 ? message.substring(0, 16_000) : message);
+            return;
+        }
+
+        out.writeInt(OK);
+        for (byte[] result : results) {
+            if (result == null) {
+                out.writeInt(-1);
+                continue;
+            }
+            out.writeInt(result.length);
+            out.write(result);
+        }
+        int events = reports.stream().mapToInt(r -> r.getEvents().size()).sum();
+        out.writeInt(events);
+        for (int stage = 0; stage < reports.size(); ++stage) {
+            for (RunReport.Event event : reports.get(stage).getEvents()) {
+                out.writeInt(stage);
+                out.writeUTF(event.className());
+                out.writeUTF(event.outcome().name());
+                out.writeUTF(event.reason());
+            }
+        }
+    }
+
+}
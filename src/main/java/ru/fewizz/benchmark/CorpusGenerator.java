@@ -0,0 +1,237 @@
+package ru.fewizz.benchmark;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.function.Consumer;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import ru.fewizz.OutputWriter;
+
+/**
+ * Генератор синтетических программ для замеров на больших объемах
+ * (см. {@link ScalingBenchmark}).<p>
+ * Классы образуют лес иерархий: у класса глубины меньше <code>depth</code> до <code>width</code>
+ * наследников. Каждый класс реализует <code>fanOut</code> из <code>interfaces</code> интерфейсов
+ * и переопределяет методы <code>m0</code>...<code>m&lt;methods-1&gt;</code> предка, так что
+ * {@link ru.fewizz.obfuscators.LexicalObfuscator} должен согласовать имена по всей иерархии.
+ * Методы вызывают предыдущий метод через <code>this</code> и статический метод случайного
+ * ранее созданного класса, загружают <code>constants</code> уникальных строк на класс
+ * (размер пула констант) и содержат цикл. Размер метода - около <code>methodSize</code> инструкций.<p>
+ * На стеке и в переменных только <code>int</code> и <code>this</code>: фреймы считаются
+ * без загрузки классов, и {@link ru.fewizz.obfuscators.ControlFlowObfuscator} обрабатывает
+ * такие классы, не имея их на classpath.<p>
+ * Результат зависит только от настроек, включая <code>seed</code>.<p>
+ * Аргументы: <code>&lt;выходная директория&gt; [настройка=значение]...</code>, см. {@link Config}
+ */
+public class CorpusGenerator implements Opcodes {
+
+    private static final String PACKAGE = "synthetic/";
+
+    /**
+     * @param classes Число классов (без интерфейсов)
+     * @param depth Наибольшая глубина наследования, 0 - все классы наследуют <code>Object</code>
+     * @param width Наибольшее число прямых наследников класса
+     * @param interfaces Число интерфейсов
+     * @param fanOut Число интерфейсов, реализуемых каждым классом
+     * @param methods Число методов в классе
+     * @param methodSize Примерное число инструкций в методе
+     * @param constants Число уникальных строковых констант в классе
+     */
+    public record Config(
+        int classes, int depth, int width, int interfaces, int fanOut,
+        int methods, int methodSize, int constants, long seed
+    ) {
+
+        public static final Config DEFAULT = new Config(1000, 4, 3, 50, 2, 8, 40, 16, 0);
+
+        /**
+         * Настройки из аргументов вида <code>имя=значение</code>, остальные - по умолчанию
+         */
+        public static Config parse(List<String> args) {
+            Config config = DEFAULT;
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                config = config.with(arg.substring(0, eq), Long.parseLong(arg.substring(eq + 1)));
+            }
+            return config;
+        }
+
+        public Config with(String name, long value) {
+            int v = (int) value;
+            return switch (name) {
+                case "classes" -> new Config(v, depth, width, interfaces, fanOut, methods, methodSize, constants, seed);
+                case "depth" -> new Config(classes, v, width, interfaces, fanOut, methods, methodSize, constants, seed);
+                case "width" -> new Config(classes, depth, v, interfaces, fanOut, methods, methodSize, constants, seed);
+                case "interfaces" -> new Config(classes, depth, width, v, fanOut, methods, methodSize, constants, seed);
+                case "fanOut" -> new Config(classes, depth, width, interfaces, v, methods, methodSize, constants, seed);
+                case "methods" -> new Config(classes, depth, width, interfaces, fanOut, v, methodSize, constants, seed);
+                case "methodSize" -> new Config(classes, depth, width, interfaces, fanOut, methods, v, constants, seed);
+                case "constants" -> new Config(classes, depth, width, interfaces, fanOut, methods, methodSize, v, seed);
+                case "seed" -> new Config(classes, depth, width, interfaces, fanOut, methods, methodSize, constants, value);
+                default -> throw new IllegalArgumentException("unknown setting " + name);
+            };
+        }
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path output = Paths.get(args[0]);
+        Config config = Config.parse(List.of(args).subList(1, args.length));
+        try (var writer = new OutputWriter(output)) {
+            generate(config, writer::writeClass);
+        }
+    }
+
+    /**
+     * Передает в <code>output</code> сначала интерфейсы, затем классы, предки раньше наследников.
+     * На куче в каждый момент только один класс
+     */
+    public static void generate(Config config, Consumer<byte[]> output) {
+        for (int i = 0; i < config.interfaces; ++i) {
+            output.accept(generateInterface(config, i));
+        }
+        // Лес полных деревьев с ветвлением width и глубиной depth, в порядке обхода в ширину:
+        // у класса с номером l в дереве предок - (l - 1) / width
+        long treeSize = 1;
+        for (long level = config.width, k = 1; k <= config.depth && treeSize < config.classes; ++k, level *= config.width) {
+            treeSize += level;
+        }
+        var random = new SplittableRandom(config.seed);
+        for (int i = 0; i < config.classes; ++i) {
+            long local = i % treeSize;
+            String parent = local == 0 || config.width == 0 ?
+                "java/lang/Object" :
+                className(i - local + (local - 1) / config.width);
+            output.accept(generateClass(config, i, parent, random.split()));
+        }
+    }
+
+    static String className(long index) {
+        return PACKAGE + "C" + index;
+    }
+
+    private static String interfaceName(int index) {
+        return PACKAGE + "I" + index;
+    }
+
+    private static byte[] generateInterface(Config config, int index) {
+        var classWriter = new ClassWriter(0);
+        classWriter.visit(V17, ACC_PUBLIC | ACC_ABSTRACT | ACC_INTERFACE, interfaceName(index), null, "java/lang/Object", null);
+        classWriter.visitMethod(ACC_PUBLIC | ACC_ABSTRACT, "i" + index, "(I)I", null, null).visitEnd();
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+
+    private static byte[] generateClass(Config config, int index, String parent, SplittableRandom random) {
+        String name = className(index);
+        List<Integer> implemented = new ArrayList<>();
+        for (int i = 0; i < Math.min(config.fanOut, config.interfaces); ++i) {
+            int candidate = random.nextInt(config.interfaces);
+            if (!implemented.contains(candidate)) {
+                implemented.add(candidate);
+            }
+        }
+        String[] interfaceNames = implemented.stream().map(CorpusGenerator::interfaceName).toArray(String[]::new);
+
+        // Фреймы только из int и this, getCommonSuperClass не вызывается
+        var classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        classWriter.visit(V17, ACC_PUBLIC, name, null, parent, interfaceNames);
+
+        MethodVisitor init = classWriter.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(INVOKESPECIAL, parent, "<init>", "()V", false);
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        int constant = 0;
+        for (int m = 0; m < config.methods; ++m) {
+            int constants = config.constants / config.methods + (m < config.constants % config.methods ? 1 : 0);
+            MethodVisitor method = classWriter.visitMethod(ACC_PUBLIC, "m" + m, "(I)I", null, null);
+            generateBody(config, index, method, m > 0 ? "m" + (m - 1) : null, name, constant, constants, random);
+            constant += constants;
+        }
+        for (int i : implemented) {
+            MethodVisitor method = classWriter.visitMethod(ACC_PUBLIC, "i" + i, "(I)I", null, null);
+            generateBody(config, index, method, config.methods > 0 ? "m0" : null, name, 0, 0, random);
+        }
+        MethodVisitor method = classWriter.visitMethod(ACC_PUBLIC | ACC_STATIC, "s", "(I)I", null, null);
+        method.visitCode();
+        method.visitVarInsn(ILOAD, 0);
+        method.visitLdcInsn(index);
+        method.visitInsn(IXOR);
+        method.visitInsn(IRETURN);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+
+    /**
+     * <code>int m(int x)</code>: переменная 2 - результат, 3 - счетчик цикла
+     */
+    private static void generateBody(
+        Config config, int index, MethodVisitor method, String previous, String owner,
+        int firstConstant, int constants, SplittableRandom random
+    ) {
+        method.visitCode();
+        method.visitVarInsn(ILOAD, 1);
+        method.visitVarInsn(ISTORE, 2);
+        int size = 2;
+        for (int c = 0; c < constants; ++c, size += 5) {
+            method.visitLdcInsn("c" + index + "_" + (firstConstant + c));
+            method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "hashCode", "()I", false);
+            method.visitVarInsn(ILOAD, 2);
+            method.visitInsn(IADD);
+            method.visitVarInsn(ISTORE, 2);
+        }
+        if (previous != null) {
+            method.visitVarInsn(ALOAD, 0);
+            method.visitVarInsn(ILOAD, 2);
+            method.visitMethodInsn(INVOKEVIRTUAL, owner, previous, "(I)I", false);
+            method.visitVarInsn(ISTORE, 2);
+            size += 4;
+        }
+        if (index > 0) {
+            method.visitVarInsn(ILOAD, 2);
+            method.visitMethodInsn(INVOKESTATIC, className(random.nextInt(index)), "s", "(I)I", false);
+            method.visitVarInsn(ISTORE, 2);
+            size += 3;
+        }
+
+        var loop = new Label();
+        var end = new Label();
+        method.visitInsn(ICONST_0);
+        method.visitVarInsn(ISTORE, 3);
+        method.visitLabel(loop);
+        method.visitVarInsn(ILOAD, 3);
+        method.visitIntInsn(BIPUSH, 4);
+        method.visitJumpInsn(IF_ICMPGE, end);
+        size += 5;
+        for (; size < config.methodSize - 5; size += 6) {
+            method.visitVarInsn(ILOAD, 2);
+            method.visitIntInsn(BIPUSH, random.nextInt(1, 127));
+            method.visitInsn(IMUL);
+            method.visitVarInsn(ILOAD, 3);
+            method.visitInsn(IXOR);
+            method.visitVarInsn(ISTORE, 2);
+        }
+        method.visitIincInsn(3, 1);
+        method.visitJumpInsn(GOTO, loop);
+        method.visitLabel(end);
+        method.visitVarInsn(ILOAD, 2);
+        method.visitInsn(IRETURN);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+    }
+
+}
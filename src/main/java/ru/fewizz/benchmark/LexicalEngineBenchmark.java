@@ -0,0 +1,103 @@
+package ru.fewizz.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import ru.fewizz.obfuscators.LexicalObfuscator;
+import ru.fewizz.obfuscators.LexicalObfuscator.Engine;
+
+/**
+ * Сравнение способов переписывания классов {@link LexicalObfuscator}
+ * по скорости и объему выделяемой памяти.<p>
+ * Каждая итерация - полный прогон обфускатора по всем классам jar-файла
+ * в текущем потоке: разбор, построение маппингов и переписывание.
+ * Выводятся медианы по измеряемым итерациям.<p>
+ * Аргументы: <code>&lt;входной jar&gt; [число итераций] [число итераций прогрева]</code>
+ */
+public class LexicalEngineBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Path inputJar = Paths.get(args[0]);
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int warmupIterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        List<byte[]> classesBytes = new ArrayList<>();
+        StartupBenchmark.readJar(inputJar, classesBytes, new HashMap<>());
+
+        List<String> report = new ArrayList<>();
+        for (Engine engine : Engine.values()) {
+            for (int i = 0; i < warmupIterations; ++i) {
+                run(engine, classesBytes);
+            }
+            Map<String, List<Long>> results = new HashMap<>();
+            for (int i = 0; i < iterations; ++i) {
+                run(engine, classesBytes).forEach((key, value) ->
+                    results.computeIfAbsent(key, k -> new ArrayList<>()).add(value)
+                );
+            }
+            results.values().forEach(Collections::sort);
+            report.add(formatRow(engine, classesBytes.size(), results));
+        }
+
+        System.out.println("engine | classes | parse ms | mappings ms | rewrite ms | classes/s | allocated KiB | output bytes");
+        for (String row : report) {
+            System.out.println(row);
+        }
+    }
+
+    private static Map<String, Long> run(Engine engine, List<byte[]> classesBytes) throws Exception {
+        var threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+
+        var obfuscator = new LexicalObfuscator(List.of(""), engine);
+        long start = System.nanoTime();
+        List<Supplier<byte[]>> suppliers = new ArrayList<>();
+        for (byte[] classBytes : classesBytes) {
+            suppliers.add(obfuscator.getObfuscatedClassSupplier(classBytes));
+        }
+        long parsed = System.nanoTime();
+        obfuscator.onAllClassesProvided();
+        long mapped = System.nanoTime();
+        long outputBytes = 0;
+        for (var supplier : suppliers) {
+            outputBytes += supplier.get().length;
+        }
+        long rewritten = System.nanoTime();
+
+        return Map.of(
+            "parseNanos", parsed - start,
+            "mappingsNanos", mapped - parsed,
+            "rewriteNanos", rewritten - mapped,
+            "totalNanos", rewritten - start,
+            "allocatedBytes", threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore,
+            "outputBytes", outputBytes
+        );
+    }
+
+    private static String formatRow(Engine engine, int classes, Map<String, List<Long>> results) {
+        return String.format(
+            "%s | %d | %.2f | %.2f | %.2f | %.0f | %d | %d",
+            engine, classes,
+            median(results, "parseNanos") / 1e6,
+            median(results, "mappingsNanos") / 1e6,
+            median(results, "rewriteNanos") / 1e6,
+            classes / (median(results, "totalNanos") / 1e9),
+            median(results, "allocatedBytes") / 1024,
+            median(results, "outputBytes")
+        );
+    }
+
+    private static long median(Map<String, List<Long>> results, String key) {
+        List<Long> values = results.get(key);
+        return values.get(values.size() / 2);
+    }
+
+}
@@ -0,0 +1,194 @@
+package ru.fewizz.benchmark;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import ru.fewizz.ClassStore;
+import ru.fewizz.Main;
+import ru.fewizz.RunReport;
+
+/**
+ * Масштабирование обфускаторов: каждый обфускатор отдельно прогоняется по программам
+ * {@link CorpusGenerator} растущего размера, для каждого размера выводятся время,
+ * пик занятой кучи и выделенная память.<p>
+ * Для соседних размеров считается показатель роста <code>log(t2/t1) / log(n2/n1)</code>:
+ * около 1 - линейное время, 2 - квадратичное. Если он больше <code>maxExponent</code>
+ * (при обоих временах не меньше <code>MIN_MILLIS</code>, иначе замер слишком шумный),
+ * программа завершается с кодом 1. В <code>check</code> она не входит: время в сборке
+ * слишком зависит от машины, поэтому задачу <code>scalingBenchmark</code> запускают отдельно.<p>
+ * Пик кучи - наибольшее суммарное заполнение кучи перед сборками мусора
+ * (из уведомлений сборщиков) и в конце прогона: между сборками заполнение только растет.
+ * Сумма пиков отдельных пулов его бы завышала - пулы достигают пиков в разное время.<p>
+ * Аргументы - настройки вида <code>имя=значение</code>:
+ * <code>sizes</code> (число классов через запятую), <code>stages</code> (обфускаторы через запятую),
+ * <code>maxExponent</code>, остальные передаются {@link CorpusGenerator.Config}
+ */
+public class ScalingBenchmark {
+
+    private static final long MIN_MILLIS = 200;
+
+    private static final List<String> DEFAULT_STAGES = List.of(
+        "ru.fewizz.obfuscators.LexicalObfuscator",
+        "ru.fewizz.obfuscators.NaiveStringConstantsObfuscator",
+        "ru.fewizz.obfuscators.InvokeDynamicStringConstantsObfuscator",
+        "ru.fewizz.obfuscators.ControlFlowObfuscator",
+        "ru.fewizz.obfuscators.DebugMetadataDeleter",
+        "ru.fewizz.obfuscators.ConstantPoolCompactor",
+        "ru.fewizz.obfuscators.PeepholeOptimizer"
+    );
+
+    private record Result(int classes, long millis, long peakHeapBytes, long allocatedBytes) {}
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> sizes = List.of(1000, 4000, 16000);
+        List<String> stages = DEFAULT_STAGES;
+        double maxExponent = 1.3;
+        List<String> corpusArgs = new ArrayList<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String value = arg.substring(eq + 1);
+            switch (arg.substring(0, eq)) {
+                case "sizes" -> sizes = Arrays.stream(value.split(",")).map(Integer::valueOf).toList();
+                case "stages" -> stages = List.of(value.split(","));
+                case "maxExponent" -> maxExponent = Double.parseDouble(value);
+                default -> corpusArgs.add(arg);
+            }
+        }
+        CorpusGenerator.Config config = CorpusGenerator.Config.parse(corpusArgs);
+
+        List<String> report = new ArrayList<>();
+        List<String> failures = new ArrayList<>();
+        // Обфускаторы пишут ход работы в лог, на время замеров он отключается
+        Logger logger = Logger.getLogger("obfuscator");
+        Level level = logger.getLevel();
+        try {
+            logger.setLevel(Level.WARNING);
+            for (String stage : stages) {
+                // Прогрев на наименьшем размере
+                run(stage, config.with("classes", sizes.get(0)));
+                Result previous = null;
+                for (int size : sizes) {
+                    Result result = run(stage, config.with("classes", size));
+                    String exponent = "-";
+                    if (previous != null) {
+                        double value = Math.log((double) result.millis / Math.max(previous.millis, 1)) /
+                            Math.log((double) result.classes / previous.classes);
+                        exponent = String.format("%.2f", value);
+                        if (value > maxExponent && previous.millis >= MIN_MILLIS && result.millis >= MIN_MILLIS) {
+                            failures.add(stage + ": " + previous.classes + " -> " + result.classes + " classes, exponent " + exponent);
+                        }
+                    }
+                    report.add(String.format(
+                        "%s | %d | %d | %.1f | %d | %d | %s",
+                        stage.substring(stage.lastIndexOf('.') + 1), result.classes, result.millis,
+                        result.millis * 1000.0 / result.classes,
+                        result.peakHeapBytes >> 20, result.allocatedBytes >> 20, exponent
+                    ));
+                    previous = result;
+                }
+            }
+        } finally {
+            logger.setLevel(level);
+        }
+
+        System.out.println("obfuscator | classes | ms | ms per 1k classes | peak heap MiB | allocated MiB | exponent");
+        for (String row : report) {
+            System.out.println(row);
+        }
+        if (!failures.isEmpty()) {
+            for (String failure : failures) {
+                System.out.println("superlinear: " + failure);
+            }
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Программа генерируется до замера в хранилище вне кучи,
+     * результат обфускатора только подсчитывается
+     */
+    private static Result run(String stage, CorpusGenerator.Config config) throws Exception {
+        var classes = new ClassStore();
+        CorpusGenerator.generate(config, classes::add);
+        int count = classes.size();
+
+        System.gc();
+        long baseline = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+        var report = new RunReport();
+        long millis;
+        long peak;
+        try (var heapPeak = new HeapPeak()) {
+            long start = System.nanoTime();
+            Main.obfuscate(classes, Main.createObfuscators(List.of(stage)), bytes -> {}, report);
+            millis = (System.nanoTime() - start) / 1_000_000;
+            peak = heapPeak.get();
+        }
+        long allocated = report.getStages().stream().mapToLong(RunReport.Stage::getAllocatedBytes).sum();
+        return new Result(count, millis, Math.max(peak - baseline, 0), allocated);
+    }
+
+    /**
+     * Наибольшее заполнение кучи с момента создания
+     */
+    private static final class HeapPeak implements NotificationListener, AutoCloseable {
+        private final Set<String> heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+            .filter(pool -> pool.getType() == MemoryType.HEAP)
+            .map(pool -> pool.getName())
+            .collect(Collectors.toSet());
+        private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        private final AtomicLong peak = new AtomicLong();
+
+        HeapPeak() {
+            for (GarbageCollectorMXBean collector : this.collectors) {
+                ((NotificationEmitter) collector).addNotificationListener(this, null, null);
+            }
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                return;
+            }
+            var info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            long used = 0;
+            for (Map.Entry<String, MemoryUsage> pool : info.getGcInfo().getMemoryUsageBeforeGc().entrySet()) {
+                if (this.heapPools.contains(pool.getKey())) {
+                    used += pool.getValue().getUsed();
+                }
+            }
+            this.peak.accumulateAndGet(used, Math::max);
+        }
+
+        long get() {
+            return Math.max(this.peak.get(), ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        }
+
+        @Override
+        public void close() throws ListenerNotFoundException {
+            for (GarbageCollectorMXBean collector : this.collectors) {
+                ((NotificationEmitter) collector).removeNotificationListener(this);
+            }
+        }
+    }
+
+}
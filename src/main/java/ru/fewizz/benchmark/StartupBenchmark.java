@@ -0,0 +1,231 @@
+package ru.fewizz.benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.logging.Logger;
+
+import org.objectweb.asm.ClassReader;
+
+import ru.fewizz.Main;
+import ru.fewizz.Obfuscator;
+import ru.fewizz.obfuscators.LexicalObfuscator;
+
+/**
+ * Замер "налога" обфускаторов на время старта.<p>
+ * Входной jar прогоняется через каждый префикс списка обфускаторов
+ * (исходный, после первого, после первых двух, ...). Для каждого варианта
+ * запускаются свежие JVM с {@link StartupProbe}, без архива AppCDS и с ним,
+ * и выводятся медианы времени загрузки классов, времени первого вызова
+ * точек входа и занимаемого Metaspace.<p>
+ * Аргументы: <code>&lt;входной jar&gt; &lt;число запусков&gt;
+ * &lt;точки входа через запятую или -&gt; [обфускаторы...]</code>.
+ * Точка входа - имя класса с методом <code>main(String[])</code>
+ * (такие методы {@link LexicalObfuscator} не переименовывает)
+ */
+public class StartupBenchmark {
+    private static final Logger LOGGER = Logger.getLogger("obfuscator");
+
+    public static void main(String[] args) throws Exception {
+        Path inputJar = Paths.get(args[0]);
+        int runs = Integer.parseInt(args[1]);
+        List<String> entryPoints = args[2].equals("-") ? List.of() : Arrays.asList(args[2].split(","));
+        List<String> stages = Arrays.asList(args).subList(3, args.length);
+
+        Path workDir = Files.createTempDirectory("startup-benchmark");
+        Path probeJar = workDir.resolve("probe.jar");
+        writeProbeJar(probeJar);
+
+        List<byte[]> classesBytes = new ArrayList<>();
+        Map<String, byte[]> resources = new LinkedHashMap<>();
+        readJar(inputJar, classesBytes, resources);
+
+        List<String> report = new ArrayList<>();
+        for (int stageCount = 0; stageCount <= stages.size(); ++stageCount) {
+            String variant = stageCount == 0 ? "original" : "+" + stages.get(stageCount - 1);
+            LOGGER.info("preparing variant " + variant);
+
+            List<Obfuscator> obfuscators = Main.createObfuscators(stages.subList(0, stageCount));
+            List<byte[]> obfuscatedClassesBytes = Main.obfuscate(classesBytes, obfuscators);
+
+            Path appJar = workDir.resolve("variant" + stageCount + ".jar");
+            writeJar(appJar, obfuscatedClassesBytes, resources);
+
+            List<String> entries = new ArrayList<>();
+            for (String entryPoint : entryPoints) {
+                entries.add(translateClassName(entryPoint, obfuscators));
+            }
+
+            // Тренировочный запуск, по завершении которого JVM создает архив AppCDS
+            Path archive = workDir.resolve("variant" + stageCount + ".jsa");
+            runProbe(appJar, probeJar, entries, List.of("-XX:ArchiveClassesAtExit=" + archive));
+
+            LOGGER.info("measuring variant " + variant);
+            var plain = measure(runs, appJar, probeJar, entries, List.of());
+            var cds = measure(runs, appJar, probeJar, entries, List.of("-XX:SharedArchiveFile=" + archive));
+
+            report.add(formatRow(variant, "-", Files.size(appJar), plain, entryPoints));
+            report.add(formatRow(variant, "AppCDS", Files.size(appJar), cds, entryPoints));
+        }
+
+        System.out.println();
+        System.out.println("variant | cds | jar bytes | load ms | metaspace KiB | uptime ms | first call ms");
+        for (String row : report) {
+            System.out.println(row);
+        }
+    }
+
+    private static String translateClassName(String className, List<Obfuscator> obfuscators) {
+        for (var obfuscator : obfuscators) {
+            if (obfuscator instanceof LexicalObfuscator lexical) {
+                String translated = lexical.getTranslatedClassName(className);
+                if (translated != null) {
+                    className = translated;
+                }
+            }
+        }
+        return className;
+    }
+
+    /**
+     * Запускает {@link StartupProbe} <code>runs</code> раз
+     * @return Для каждого ключа - значения, отсортированные по возрастанию
+     */
+    private static Map<String, List<Long>> measure(
+        int runs, Path appJar, Path probeJar,
+        List<String> entries, List<String> jvmOptions
+    ) throws Exception {
+        Map<String, List<Long>> results = new TreeMap<>();
+        for (int run = 0; run < runs; ++run) {
+            runProbe(appJar, probeJar, entries, jvmOptions).forEach((key, value) ->
+                results.computeIfAbsent(key, k -> new ArrayList<>()).add(value)
+            );
+        }
+        results.values().forEach(Collections::sort);
+        return results;
+    }
+
+    private static Map<String, Long> runProbe(
+        Path appJar, Path probeJar,
+        List<String> entries, List<String> jvmOptions
+    ) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        // Классы приложения обязаны лежать в jar-файлах, иначе AppCDS их не архивирует
+        command.add(appJar + java.io.File.pathSeparator + probeJar);
+        command.add(StartupProbe.class.getName());
+        command.add(appJar.toString());
+        command.addAll(entries);
+
+        Process process = new ProcessBuilder(command)
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+
+        Map<String, Long> values = new LinkedHashMap<>();
+        try (var reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith(StartupProbe.PREFIX)) {
+                    continue;
+                }
+                String[] keyValue = line.substring(StartupProbe.PREFIX.length()).split(" ");
+                values.put(keyValue[0], Long.parseLong(keyValue[1]));
+            }
+        }
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            throw new RuntimeException("probe exited with code " + exitCode + ": " + command);
+        }
+        return values;
+    }
+
+    private static String formatRow(
+        String variant, String cds, long jarSize,
+        Map<String, List<Long>> results, List<String> entryPoints
+    ) {
+        var sb = new StringBuilder();
+        sb.append(variant).append(" | ").append(cds).append(" | ").append(jarSize);
+        sb.append(String.format(" | %.2f", median(results, "loadNanos") / 1e6));
+        sb.append(String.format(" | %d", median(results, "metaspaceBytes") / 1024));
+        sb.append(String.format(" | %d", median(results, "uptimeMillis")));
+        for (int i = 0; i < entryPoints.size(); ++i) {
+            sb.append(String.format(
+                " | %s: %.2f",
+                entryPoints.get(i), median(results, "firstCallNanos:" + (i + 1)) / 1e6
+            ));
+        }
+        return sb.toString();
+    }
+
+    private static long median(Map<String, List<Long>> results, String key) {
+        List<Long> values = results.getOrDefault(key, List.of());
+        if (values.isEmpty()) {
+            return 0;
+        }
+        return values.get(values.size() / 2);
+    }
+
+    static void readJar(Path jarPath, List<byte[]> classesBytes, Map<String, byte[]> resources) throws IOException {
+        try (var jar = new JarFile(jarPath.toFile())) {
+            for (var entry : Collections.list(jar.entries())) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                byte[] bytes;
+                try (var inputStream = jar.getInputStream(entry)) {
+                    bytes = inputStream.readAllBytes();
+                }
+                if (entry.getName().endsWith(".class") && !entry.getName().equals("module-info.class")) {
+                    classesBytes.add(bytes);
+                }
+                else {
+                    resources.put(entry.getName(), bytes);
+                }
+            }
+        }
+    }
+
+    private static void writeJar(Path jarPath, List<byte[]> classesBytes, Map<String, byte[]> resources) throws IOException {
+        try (var outputStream = new JarOutputStream(Files.newOutputStream(jarPath))) {
+            for (var resource : resources.entrySet()) {
+                outputStream.putNextEntry(new JarEntry(resource.getKey()));
+                outputStream.write(resource.getValue());
+                outputStream.closeEntry();
+            }
+            for (var classBytes : classesBytes) {
+                String className = new ClassReader(classBytes).getClassName();
+                outputStream.putNextEntry(new JarEntry(className + ".class"));
+                outputStream.write(classBytes);
+                outputStream.closeEntry();
+            }
+        }
+    }
+
+    private static void writeProbeJar(Path jarPath) throws IOException {
+        String entryName = StartupProbe.class.getName().replace('.', '/') + ".class";
+        try (
+            var inputStream = StartupProbe.class.getClassLoader().getResourceAsStream(entryName);
+            var outputStream = new JarOutputStream(Files.newOutputStream(jarPath))
+        ) {
+            outputStream.putNextEntry(new JarEntry(entryName));
+            outputStream.write(inputStream.readAllBytes());
+            outputStream.closeEntry();
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package ru.fewizz.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarFile;
+
+/**
+ * Запускается в отдельной JVM бенчмарком {@link StartupBenchmark}.
+ * Загружает все классы из jar-файла, вызывает <code>main</code> точек входа
+ * и выводит результаты замеров строками вида <code>#probe ключ значение</code>
+ * (префикс отделяет их от вывода самого приложения).<p>
+ * Аргументы: путь до jar-файла, затем имена классов точек входа
+ */
+public class StartupProbe {
+
+    static final String PREFIX = "#probe ";
+
+    public static void main(String[] args) throws Exception {
+        List<String> classNames = new ArrayList<>();
+        try (var jar = new JarFile(args[0])) {
+            for (var entry : Collections.list(jar.entries())) {
+                String name = entry.getName();
+                if (name.endsWith(".class") && !name.equals("module-info.class")) {
+                    classNames.add(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+                }
+            }
+        }
+
+        ClassLoader loader = StartupProbe.class.getClassLoader();
+
+        // Загрузка без инициализации, чтобы не смешивать со временем первого вызова
+        int failed = 0;
+        long loadBegin = System.nanoTime();
+        for (String className : classNames) {
+            try {
+                Class.forName(className, false, loader);
+            } catch (ClassNotFoundException | LinkageError e) {
+                ++failed;
+            }
+        }
+        long loadNanos = System.nanoTime() - loadBegin;
+
+        report("classes", classNames.size());
+        report("failedClasses", failed);
+        report("loadNanos", loadNanos);
+
+        // Первый вызов включает инициализацию класса, линковку invokedynamic
+        // и деобфускацию строк, встречающихся на пути исполнения
+        for (int i = 1; i < args.length; ++i) {
+            long callBegin = System.nanoTime();
+            Class<?> entryClass = Class.forName(args[i], true, loader);
+            entryClass.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+            long callNanos = System.nanoTime() - callBegin;
+            report("firstCallNanos:" + i, callNanos);
+        }
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().equals("Metaspace")) {
+                report("metaspaceBytes", pool.getUsage().getUsed());
+            }
+        }
+        report("uptimeMillis", ManagementFactory.getRuntimeMXBean().getUptime());
+    }
+
+    private static void report(String key, long value) {
+        System.out.println(PREFIX + key + " " + value);
+    }
+
+}
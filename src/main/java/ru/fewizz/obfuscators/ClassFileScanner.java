@@ -0,0 +1,118 @@
+package ru.fewizz.obfuscators;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Быстрые предварительные проверки класс-файла,
+ * позволяющие не разбирать и не переписывать класс, которому нечего менять
+ */
+final class ClassFileScanner implements Opcodes {
+
+    // Теги записей пула констант (4.4)
+    static final int CONSTANT_STRING = 8;
+
+    private ClassFileScanner() {}
+
+    /**
+     * Проверка только по пулу констант, без разбора полей и методов
+     */
+    static boolean hasConstant(ClassReader classReader, int tag) {
+        for (int i = 1; i < classReader.getItemCount(); ++i) {
+            int offset = classReader.getItem(i);
+            // У второй половины Long и Double смещения нет
+            if (offset != 0 && classReader.readByte(offset - 1) == tag) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Обходит все атрибуты класса, полей, методов, атрибута Code
+     * и компонентов записи, не разбирая их содержимое
+     * @param consumer Получает имя атрибута и его размер вместе с заголовком
+     */
+    static void forEachAttribute(ClassReader classReader, BiConsumer<String, Integer> consumer) {
+        char[] buffer = new char[classReader.getMaxStringLength()];
+        // access_flags, this_class, super_class
+        int offset = classReader.header + 6;
+        offset += 2 + 2 * classReader.readUnsignedShort(offset);  // interfaces
+        for (int members = 0; members < 2; ++members) {  // fields, затем methods
+            int count = classReader.readUnsignedShort(offset);
+            offset += 2;
+            for (int i = 0; i < count; ++i) {
+                // access_flags, name_index, descriptor_index
+                offset = forEachAttribute(classReader, offset + 6, buffer, consumer);
+            }
+        }
+        forEachAttribute(classReader, offset, buffer, consumer);
+    }
+
+    /**
+     * @param offset Смещение attributes_count
+     * @return Смещение после таблицы атрибутов
+     */
+    private static int forEachAttribute(
+        ClassReader classReader, int offset, char[] buffer,
+        BiConsumer<String, Integer> consumer
+    ) {
+        int count = classReader.readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < count; ++i) {
+            String name = classReader.readUTF8(offset, buffer);
+            int length = classReader.readInt(offset + 2);
+            int contentOffset = offset + 6;
+            consumer.accept(name, 6 + length);
+
+            if (name.equals("Code")) {
+                // max_stack, max_locals, code_length, code
+                int nested = contentOffset + 8 + classReader.readInt(contentOffset + 4);
+                nested += 2 + 8 * classReader.readUnsignedShort(nested);  // exception_table
+                forEachAttribute(classReader, nested, buffer, consumer);
+            }
+            else if (name.equals("Record")) {
+                int components = classReader.readUnsignedShort(contentOffset);
+                int nested = contentOffset + 2;
+                for (int c = 0; c < components; ++c) {
+                    // name_index, descriptor_index
+                    nested = forEachAttribute(classReader, nested + 4, buffer, consumer);
+                }
+            }
+            offset = contentOffset + length;
+        }
+        return offset;
+    }
+
+    /**
+     * @return Имена и дескрипторы (<code>name + descriptor</code>) методов,
+     *  загружающих строковые константы инструкцией <code>ldc</code>
+     */
+    static Set<String> findMethodsWithStringLdc(ClassReader classReader) {
+        Set<String> methods = new HashSet<>();
+        if (!hasConstant(classReader, CONSTANT_STRING)) {
+            return methods;
+        }
+        classReader.accept(new ClassVisitor(ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                return new MethodVisitor(ASM9) {
+                    @Override
+                    public void visitLdcInsn(Object value) {
+                        if (value instanceof String) {
+                            methods.add(name + descriptor);
+                        }
+                    }
+                };
+            }
+        }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return methods;
+    }
+
+}
@@ -0,0 +1,64 @@
+package ru.fewizz.obfuscators;
+
+import java.util.function.Supplier;
+
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import ru.fewizz.Obfuscator;
+
+/**
+ * Удаляет из пула констант записи, на которые никто не ссылается.<p>
+ * {@link LexicalObfuscator}, если не может заменить строку или NameAndType
+ * на месте, добавляет новую запись в конец пула, а старая остается
+ * никем не используемой. Здесь класс переписывается через <code>ClassWriter</code>,
+ * созданный без <code>ClassReader</code>: пул констант строится заново,
+ * в него попадают только используемые записи, а все ссылки на них
+ * (в полях, методах, коде, фреймах и атрибутах) перенумеровываются.<p>
+ * Нестандартные атрибуты класса, полей и методов удаляются: все стандартные
+ * ASM разбирает сам, а содержимое неизвестных может ссылаться на старые индексы пула,
+ * перенумеровать которые без знания формата нельзя
+ */
+public class ConstantPoolCompactor extends Obfuscator implements Opcodes {
+
+    @Override
+    public boolean isPerClass() {
+        return true;
+    }
+
+    @Override
+    public Supplier<byte[]> getObfuscatedClassSupplier(byte[] classFileBytes) throws Exception {
+        var classWriter = new ClassWriter(0);
+        var visitor = new ClassVisitor(ASM9, classWriter) {
+
+            @Override
+            public void visitAttribute(Attribute attribute) {}
+
+            @Override
+            public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+                return new FieldVisitor(ASM9, super.visitField(access, name, descriptor, signature, value)) {
+                    @Override
+                    public void visitAttribute(Attribute attribute) {}
+                };
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                return new MethodVisitor(ASM9, super.visitMethod(access, name, descriptor, signature, exceptions)) {
+                    @Override
+                    public void visitAttribute(Attribute attribute) {}
+                };
+            }
+
+        };
+
+        new ClassReader(classFileBytes).accept(visitor, 0);
+        return () -> classWriter.toByteArray();
+    }
+
+}
@@ -9,16 +9,24 @@ import static org.objectweb.asm.tree.analysis.BasicValue.UNINITIALIZED_VALUE;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Random;
 import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.FrameNode;
@@ -27,109 +35,265 @@ import org.objectweb.asm.tree.InsnNode;
 import org.objectweb.asm.tree.JumpInsnNode;
 import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
 import org.objectweb.asm.tree.TypeInsnNode;
 import org.objectweb.asm.tree.VarInsnNode;
-import org.objectweb.asm.tree.analysis.Analyzer;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
 import org.objectweb.asm.tree.analysis.BasicValue;
 import org.objectweb.asm.tree.analysis.Frame;
 import org.objectweb.asm.tree.analysis.Interpreter;
 import org.objectweb.asm.tree.analysis.SimpleVerifier;
 
+import ru.fewizz.Budget;
 import ru.fewizz.Obfuscator;
+import ru.fewizz.Rules;
+
+/**
+ * Вставляет ложные ветвления между случайными инструкциями методов.<p>
+ * Правила ({@link Rules}): <code>keep</code> оставляет методы нетронутыми,
+ * <code>level</code> задает число ложных ветвлений - по <code>level</code>
+ * на каждые 4 инструкции метода (по умолчанию 1, 0 - класс не изменяется).<p>
+ * Настройка <code>maxLoopDepth</code> (см. {@link Obfuscator#getOption}) не дает
+ * начинать ветвления в циклах глубже заданной вложенности ({@link LoopAnalyzer}):
+ * 0 - только вне циклов, по умолчанию -1 - без ограничений.<p>
+ * Выбор места каждого ветвления проходит по всему методу, так что время растет
+ * квадратично с размером метода. Если класс не уложился в бюджет ({@link Budget}),
+ * более дешевая настройка вставляет не больше <code>CHEAP_BRANCHES</code> ветвлений на метод.<p>
+ * Методы класса, если их не меньше <code>PARALLEL_METHODS</code>, обрабатываются
+ * параллельно в <code>threads</code> потоков (настройка, по умолчанию - число ядер),
+ * так что класс с тысячами методов не задерживает весь прогон.<p>
+ * Фреймы (StackMapTable) обработанных методов строятся из фреймов того же анализа,
+ * которые поддерживаются при вставке ветвлений, а не пересчитываются
+ * <code>ClassWriter.COMPUTE_FRAMES</code> заново. Если их не записать ({@link #writeFrames}),
+ * класс записывается с пересчетом, как раньше
+ */
+public final class ControlFlowObfuscator extends Obfuscator implements Opcodes {
+
+    private static final int CHEAP_BRANCHES = 8;
+    // Для меньших классов передача задач другим потокам дороже самой обработки
+    private static final int PARALLEL_METHODS = 16;
+
+    private final int maxLoopDepth = Integer.parseInt(getOption("maxLoopDepth", "-1"));
+    private final int threads = Integer.parseInt(
+        getOption("threads", String.valueOf(Runtime.getRuntime().availableProcessors()))
+    );
+    private ForkJoinPool pool;
 
-public class ControlFlowObfuscator extends Obfuscator implements Opcodes {
+    @Override
+    public boolean isPerClass() {
+        return true;
+    }
 
     @Override
-    @SuppressWarnings("unused")
     public Supplier<byte[]> getObfuscatedClassSupplier(byte[] classFileBytes) throws AnalyzerException {
+        return this.obfuscate(classFileBytes, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Supplier<byte[]> getCheaperClassSupplier(byte[] classFileBytes) throws AnalyzerException {
+        return this.obfuscate(classFileBytes, CHEAP_BRANCHES);
+    }
+
+    /**
+     * @param maxBranches Наибольшее число ложных ветвлений в одном методе
+     */
+    private Supplier<byte[]> obfuscate(byte[] classFileBytes, int maxBranches) throws AnalyzerException {
         // Создание представления класса в виде объекта
+        // Фреймы разворачиваются: в необработанных методах они записываются как есть,
+        // а в обработанных по ним проверяется, нет ли неинициализированных значений
         var classNode = new ClassNode();
-        new ClassReader(classFileBytes).accept(classNode, 0);
+        new ClassReader(classFileBytes).accept(classNode, ClassReader.EXPAND_FRAMES);
 
-        Interpreter<BasicValue> interpreter = new SimpleVerifier();
-
-        // Псевдослучайный генератор случайных чисел,
-        // для определения позиции свободной для обработки функции
-        Random random = new Random(0);
+        Rules.StageRules rules = getRules();
+        String className = classNode.name.replace('/', '.');
+        int level = rules.getLevel(className, 1);
+        if (level == 0) {
+            return () -> classFileBytes;
+        }
 
         // Прохождение по всем методам класса
+        List<MethodNode> methods = new ArrayList<>();
         for (MethodNode methodNode : classNode.methods) {
             // Пропускаем конструкторы, либо методы,
             // не имеющие инструкций (нативные, абстрактные и т.д.)
             if (methodNode.name.equals("<init>") || methodNode.instructions.getFirst() == null) {
                 continue;
             }
+            if (rules.isMemberKept(className, methodNode.name)) {
+                continue;
+            }
+            methods.add(methodNode);
+        }
 
-            // Максимальный размер стека метода выставляется на максимальное значение,
-            // позже будет перерасчитан
-            methodNode.maxStack = 65535;
-
-            // Анализируется использование стека и локальных переменных
-            var analyzer = new Analyzer<>(interpreter);
-            var frames = new ArrayList<>(
-                Arrays.asList(analyzer.analyze(classNode.name, methodNode))
-            );
-            if (false) {
-                // Получение множества разрешенных для обработки инструкций
-                Set<AbstractInsnNode> available = collectAllowedInsns(methodNode, frames);
-
-                // Функция для случайного "вынимания" из множества
-                // одной свободной инструкции
-                Supplier<AbstractInsnNode> popRandomAvailableInsn = () -> {
-                    var allowedList = new ArrayList<>(available);
-                    int index = random.nextInt(allowedList.size());
-                    AbstractInsnNode insn = allowedList.get(index);
-                    available.remove(insn);
-                    return insn;
-                };
-
-                // Выбираются две случайные инструкции, и между ними устанавливается
-                // ложная связь
-                while (available.size() >= 2) {
-                    var src = popRandomAvailableInsn.get();
-                    var dst = popRandomAvailableInsn.get();
-                    insertFakeBranch(
-                        classNode, methodNode, frames,
-                        interpreter, src, dst
-                    );
+        // До версии 50 фреймов нет, а в методах остаются JSR.
+        // Если хоть одному методу нужен пересчет, пересчитываются все
+        var computeFrames = new AtomicBoolean(classNode.version < V1_6);
+
+        // Методы обрабатываются независимо, у каждого свой генератор,
+        // поэтому результат не зависит от числа потоков
+        List<Callable<Void>> tasks = new ArrayList<>();
+        Budget budget = Budget.current();
+        for (MethodNode methodNode : methods) {
+            Callable<Void> task = () -> {
+                if (!this.obfuscateMethod(classNode.name, methodNode, level, maxBranches, !computeFrames.get())) {
+                    computeFrames.set(true);
                 }
-            } else {
-                // Функция для случайного выбора
-                // одной разрешенной для обработки инструкции
-                Supplier<AbstractInsnNode> popRandomAllowedInsn = () -> {
-                    // Получение множества разрешенных для обработки инструкций
-                    Set<AbstractInsnNode> available = collectAllowedInsns(methodNode, frames);
-                    var availableList = new ArrayList<>(available);
-                    int index = random.nextInt(availableList.size());
-                    AbstractInsnNode insn = availableList.get(index);
-                    return insn;
-                };
-                int count = methodNode.instructions.size() / 4;
-                for (int i = 0; i < count; ++i) {
-                    var src = popRandomAllowedInsn.get();
-                    var dst = popRandomAllowedInsn.get();
-                    insertFakeBranch(
-                        classNode, methodNode, frames,
-                        interpreter, src, dst
-                    );
+                return null;
+            };
+            tasks.add(budget == null ? task : budget.bind(task));
+        }
+        if (this.threads > 1 && tasks.size() >= PARALLEL_METHODS) {
+            try {
+                for (Future<Void> future : getPool().invokeAll(tasks)) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof AnalyzerException analyzerException) {
+                    throw analyzerException;
+                }
+                if (e.getCause() instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                }
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        else {
+            for (MethodNode methodNode : methods) {
+                if (!this.obfuscateMethod(classNode.name, methodNode, level, maxBranches, !computeFrames.get())) {
+                    computeFrames.set(true);
                 }
             }
         }
 
         // Обратное преобразование объекта класс-файла в байты,
-        // С пересчетом максимального размера стека и фреймов
-        var classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        // фреймы и максимальный размер стека уже записаны, либо пересчитываются
+        var classWriter = new ClassWriter(computeFrames.get() ? ClassWriter.COMPUTE_FRAMES : 0);
         classNode.accept(classWriter);
         return () -> classWriter.toByteArray();
     }
 
+    private synchronized ForkJoinPool getPool() {
+        if (this.pool == null) {
+            // Потоки пула - демоны и завершаются сами после простоя
+            this.pool = new ForkJoinPool(this.threads);
+        }
+        return this.pool;
+    }
+
+    /**
+     * @param writeFrames Записать фреймы метода из фреймов анализатора
+     * @return false, если фреймы нужно пересчитать
+     */
+    @SuppressWarnings("unused")
+    private boolean obfuscateMethod(
+        String owner, MethodNode methodNode, int level, int maxBranches, boolean writeFrames
+    ) throws AnalyzerException {
+        Budget.check();
+        // SimpleVerifier без состояния, но свой на каждый метод,
+        // чтобы не зависеть от этого при параллельной обработке
+        Interpreter<BasicValue> interpreter = new SimpleVerifier();
+
+        // Псевдослучайный генератор случайных чисел,
+        // для определения позиции свободной для обработки функции.
+        // Свой для каждого метода, так выбор не зависит от остальных методов
+        SplittableRandom random = createRandom(owner + "." + methodNode.name + methodNode.desc);
+
+        // Ложное ветвление кладет на стек не больше 2 значений сверх стека
+        // своего начала, либо столько, сколько их в конце. Максимальный размер
+        // стека выставляется с этим запасом на каждое ветвление (позже будет перерасчитан):
+        // фреймы анализатора выделяются под него, и при 65535 метод из сотни
+        // инструкций занимал бы десятки мегабайт, а при параллельной обработке - в разы больше
+        int count = Math.min(methodNode.instructions.size() / 4 * level, maxBranches);
+        methodNode.maxStack = (int) Math.min(65535, methodNode.maxStack + 2L * count + 2);
+
+        // Анализируется использование стека и локальных переменных
+        var analyzer = new LoopAnalyzer<>(interpreter);
+        var frames = new ArrayList<>(
+            Arrays.asList(analyzer.analyze(owner, methodNode))
+        );
+        // Инструкции слишком глубоко вложенных циклов. Вставленные позже
+        // инструкции сюда не попадают, но начала ложных ветвлений и так лежат вне таких циклов
+        Set<AbstractInsnNode> hotInsns = new HashSet<>();
+        if (this.maxLoopDepth >= 0) {
+            for (int i = 0; i < frames.size(); ++i) {
+                if (analyzer.getLoopDepth(i) > this.maxLoopDepth) {
+                    hotInsns.add(methodNode.instructions.get(i));
+                }
+            }
+        }
+        if (false) {
+            // Получение множества разрешенных для обработки инструкций
+            Set<AbstractInsnNode> available = collectAllowedInsns(methodNode, frames);
+            available.removeAll(hotInsns);
+
+            // Функция для случайного "вынимания" из множества
+            // одной свободной инструкции
+            Supplier<AbstractInsnNode> popRandomAvailableInsn = () -> {
+                var allowedList = new ArrayList<>(available);
+                int index = random.nextInt(allowedList.size());
+                AbstractInsnNode insn = allowedList.get(index);
+                available.remove(insn);
+                return insn;
+            };
+
+            // Выбираются две случайные инструкции, и между ними устанавливается
+            // ложная связь
+            while (available.size() >= 2) {
+                var src = popRandomAvailableInsn.get();
+                var dst = popRandomAvailableInsn.get();
+                insertFakeBranch(
+                    methodNode, frames,
+                    interpreter, src, dst
+                );
+            }
+        } else {
+            // Функция для случайного выбора
+            // одной разрешенной для обработки инструкции.
+            // Во время работы выполняется только начало ложного ветвления,
+            // поэтому горячие циклы исключаются только для него
+            Function<Boolean, AbstractInsnNode> popRandomAllowedInsn = isSrc -> {
+                // Получение множества разрешенных для обработки инструкций
+                Set<AbstractInsnNode> available = collectAllowedInsns(methodNode, frames);
+                if (isSrc) {
+                    available.removeAll(hotInsns);
+                }
+                if (available.isEmpty()) {
+                    return null;
+                }
+                var availableList = new ArrayList<>(available);
+                int index = random.nextInt(availableList.size());
+                AbstractInsnNode insn = availableList.get(index);
+                return insn;
+            };
+            for (int i = 0; i < count; ++i) {
+                Budget.check();
+                var src = popRandomAllowedInsn.apply(true);
+                if (src == null) {
+                    break;
+                }
+                var dst = popRandomAllowedInsn.apply(false);
+                insertFakeBranch(
+                    methodNode, frames,
+                    interpreter, src, dst
+                );
+            }
+        }
+        return writeFrames && writeFrames(methodNode, frames);
+    }
+
     private static Set<AbstractInsnNode> collectAllowedInsns(
         MethodNode methodNode,
         List<Frame<BasicValue>> frames
     ) {
-        Set<AbstractInsnNode> allowed = new HashSet<>();
+        // В порядке инструкций: у HashSet порядок зависел бы от identityHashCode
+        Set<AbstractInsnNode> allowed = new LinkedHashSet<>();
 
         // Прохождение по всем инструкциям метода
         for (
@@ -146,18 +310,23 @@ public class ControlFlowObfuscator extends Obfuscator implements Opcodes {
             }
 
             // Пропускается последовательность инструкций,
-            // Отвечающая за создание и инициализацию объекта
+            // Отвечающая за создание и инициализацию объекта,
+            // вместе с вложенными в аргументы и идущими следом (f(new A(new B()), new C()))
             if (insn.getOpcode() == NEW) {
-                insn = insn.getNext();
-                if (insn == null || insn.getOpcode() != DUP) {
-                    throw new RuntimeException();
-                }
-                insn = insn.getNext();
-
-                while (insn.getOpcode() != INVOKESPECIAL) {
+                int depth = 0;
+                do {
+                    if (insn.getOpcode() == NEW) {
+                        ++depth;
+                    }
+                    else if (insn instanceof MethodInsnNode methodInsn && methodInsn.name.equals("<init>")) {
+                        --depth;
+                    }
                     insn = insn.getNext();
+                } while (depth > 0 || insn.getOpcode() == NEW);
+                // Последняя инструкция, как и в условии цикла, не рассматривается
+                if (insn.getNext() == null) {
+                    break;
                 }
-                insn = insn.getNext();
             }
 
             // Доабвление свободной инструкции в множество
@@ -167,8 +336,16 @@ public class ControlFlowObfuscator extends Obfuscator implements Opcodes {
         return allowed;
     }
 
-    static void insertFakeBranch(
-        ClassNode classNode, MethodNode methodNode,
+    /**
+     * Вставляет перед <code>srcInsn</code> ложное ветвление на <code>dstInsn</code>,
+     * поддерживая <code>frames</code> в соответствии с инструкциями
+     * @return false, если ветвление не вставлено: оно попало бы в блок try,
+     *  а обработчик не принимает значения, которые подгонка записывает в переменные.
+     *  Фреймы обработчика и следующих за ним инструкций тогда пришлось бы пересчитать,
+     *  а если обработчик читает эти переменные, код не прошел бы верификацию вовсе
+     */
+    static boolean insertFakeBranch(
+        MethodNode methodNode,
         List<Frame<BasicValue>> frames,
         Interpreter<BasicValue> interpreter,
         AbstractInsnNode srcInsn,
@@ -214,16 +391,7 @@ public class ControlFlowObfuscator extends Obfuscator implements Opcodes {
         // перед эти необходимо привести стек к нужному размеру и наполнению
         fixupStackAndLocalsUsage(srcFrame, dstFrame, addInsn);
 
-        LabelNode dstLabelInsn;
-
-        if (dstInsn instanceof LabelNode labelNode0) {
-            dstLabelInsn = labelNode0;
-        }
-        else {
-            dstLabelInsn = new LabelNode();
-            frames.add(insns.indexOf(dstInsn), new Frame<>(dstFrame));
-            insns.insertBefore(dstInsn, dstLabelInsn);
-        }
+        LabelNode dstLabelInsn = dstInsn instanceof LabelNode labelNode0 ? labelNode0 : new LabelNode();
 
         // Сам безусловный прыжок
         addInsn.accept(new JumpInsnNode(GOTO, dstLabelInsn));
@@ -234,6 +402,15 @@ public class ControlFlowObfuscator extends Obfuscator implements Opcodes {
         if (fakeInsns.size() != fakeFrames.size())
             throw new RuntimeException();
 
+        if (!isAcceptedByHandlers(methodNode, frames, interpreter, insns.indexOf(srcInsn), fakeFrames)) {
+            return false;
+        }
+
+        if (dstLabelInsn != dstInsn) {
+            frames.add(insns.indexOf(dstInsn), new Frame<>(dstFrame));
+            insns.insertBefore(dstInsn, dstLabelInsn);
+        }
+
         frames.addAll(insns.indexOf(srcInsn), fakeFrames);
 
         // Вставка созданного списка инструкций в исходный список
@@ -241,6 +418,42 @@ public class ControlFlowObfuscator extends Obfuscator implements Opcodes {
 
         if (insns.size() != frames.size())
             throw new RuntimeException();
+        return true;
+    }
+
+    /**
+     * Принимают ли обработчики блоков try, в которые попадет код, вставленный
+     * перед инструкцией с индексом <code>index</code>, переменные всех его состояний
+     * (стек обработчика - только исключение)
+     */
+    private static boolean isAcceptedByHandlers(
+        MethodNode methodNode,
+        List<Frame<BasicValue>> frames,
+        Interpreter<BasicValue> interpreter,
+        int index,
+        List<Frame<BasicValue>> fakeFrames
+    ) {
+        var insns = methodNode.instructions;
+        for (TryCatchBlockNode tryCatchBlock : methodNode.tryCatchBlocks) {
+            // Код встает после метки начала, если она раньше index, и перед меткой конца,
+            // если та не раньше index
+            if (insns.indexOf(tryCatchBlock.start) >= index || insns.indexOf(tryCatchBlock.end) < index) {
+                continue;
+            }
+            Frame<BasicValue> handlerFrame = frames.get(insns.indexOf(tryCatchBlock.handler));
+            if (handlerFrame == null) {
+                continue;
+            }
+            for (Frame<BasicValue> fakeFrame : fakeFrames) {
+                for (int i = 0; i < handlerFrame.getLocals(); ++i) {
+                    BasicValue expected = handlerFrame.getLocal(i);
+                    if (!interpreter.merge(expected, fakeFrame.getLocal(i)).equals(expected)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
     }
 
     private static void fixupStackAndLocalsUsage(
@@ -261,7 +474,7 @@ public class ControlFlowObfuscator extends Obfuscator implements Opcodes {
 
             if (value == DOUBLE_VALUE) {
                 addInsn.accept(new InsnNode(DCONST_0));
-                addInsn.accept(new VarInsnNode(FSTORE, i));
+                addInsn.accept(new VarInsnNode(DSTORE, i));
             }
             else if (value == FLOAT_VALUE) {
                 addInsn.accept(new InsnNode(FCONST_0));
@@ -276,8 +489,7 @@ public class ControlFlowObfuscator extends Obfuscator implements Opcodes {
                 addInsn.accept(new VarInsnNode(ISTORE, i));
             }
             else {
-                addInsn.accept(new InsnNode(ACONST_NULL));
-                addInsn.accept(new TypeInsnNode(CHECKCAST, value.getType().getInternalName()));
+                addNull(value, addInsn);
                 addInsn.accept(new VarInsnNode(ASTORE, i));
             }
         }
@@ -305,11 +517,158 @@ public class ControlFlowObfuscator extends Obfuscator implements Opcodes {
             else if (value == FLOAT_VALUE) addInsn.accept(new InsnNode(FCONST_0));
             else if (value == LONG_VALUE) addInsn.accept(new InsnNode(LCONST_0));
             else if (value == INT_VALUE) addInsn.accept(new InsnNode(ICONST_0));
-            else {
-                addInsn.accept(new InsnNode(ACONST_NULL));
-                addInsn.accept(new TypeInsnNode(CHECKCAST, value.getType().getInternalName()));
+            else addNull(value, addInsn);
+        }
+    }
+
+    /**
+     * <code>null</code> типа <code>value</code>. У значения, известного только
+     * как <code>null</code>, типа нет, и приведение не нужно
+     */
+    private static void addNull(BasicValue value, Consumer<AbstractInsnNode> addInsn) {
+        addInsn.accept(new InsnNode(ACONST_NULL));
+        if (!value.getType().getInternalName().equals("null")) {
+            addInsn.accept(new TypeInsnNode(CHECKCAST, value.getType().getInternalName()));
+        }
+    }
+
+    /**
+     * Заменяет фреймы метода фреймами анализатора и выставляет максимальный размер стека.
+     * Фрейм нужен в начале обработчиков исключений, в целях переходов и после инструкций,
+     * за которыми выполнение не продолжается. Фрейм анализатора у инструкции - состояние
+     * всех путей, приходящих в нее, в том числе ложных ветвлений.<p>
+     * Метод не изменяется и нужен пересчет, если фрейм требуется у недостижимой инструкции,
+     * в методе есть подпрограммы (JSR/RET) или неинициализированные объекты во фреймах:
+     * {@link SimpleVerifier} не отличает их от инициализированных
+     */
+    static boolean writeFrames(MethodNode methodNode, List<Frame<BasicValue>> frames) {
+        AbstractInsnNode[] insns = methodNode.instructions.toArray();
+        Set<LabelNode> targets = new HashSet<>();
+        for (TryCatchBlockNode tryCatchBlock : methodNode.tryCatchBlocks) {
+            targets.add(tryCatchBlock.handler);
+        }
+        for (AbstractInsnNode insn : insns) {
+            if (insn.getOpcode() == JSR || insn.getOpcode() == RET) {
+                return false;
+            }
+            if (insn instanceof JumpInsnNode jumpInsn) {
+                targets.add(jumpInsn.label);
+            }
+            else if (insn instanceof TableSwitchInsnNode switchInsn) {
+                targets.add(switchInsn.dflt);
+                targets.addAll(switchInsn.labels);
+            }
+            else if (insn instanceof LookupSwitchInsnNode switchInsn) {
+                targets.add(switchInsn.dflt);
+                targets.addAll(switchInsn.labels);
+            }
+            else if (insn instanceof FrameNode frameNode && hasUninitialized(frameNode)) {
+                return false;
             }
         }
+
+        List<AbstractInsnNode> positions = new ArrayList<>();
+        List<FrameNode> frameNodes = new ArrayList<>();
+        int maxStack = 0;
+        boolean needsFrame = false;
+        for (int i = 0; i < insns.length; ++i) {
+            AbstractInsnNode insn = insns[i];
+            Frame<BasicValue> frame = frames.get(i);
+            if (frame != null) {
+                int stackSize = 0;
+                for (int j = 0; j < frame.getStackSize(); ++j) {
+                    stackSize += frame.getStack(j).getSize();
+                }
+                maxStack = Math.max(maxStack, stackSize);
+            }
+            // Метки, номера строк и фреймы перед инструкцией - одно смещение, фрейм у него один
+            if (insn.getOpcode() < 0) {
+                needsFrame |= insn instanceof LabelNode labelNode && targets.contains(labelNode);
+                continue;
+            }
+            if (needsFrame) {
+                FrameNode frameNode = frame == null ? null : toFrameNode(frame);
+                if (frameNode == null) {
+                    return false;
+                }
+                positions.add(insn);
+                frameNodes.add(frameNode);
+            }
+            int opcode = insn.getOpcode();
+            needsFrame = opcode == GOTO || opcode == ATHROW || opcode == TABLESWITCH ||
+                opcode == LOOKUPSWITCH || (opcode >= IRETURN && opcode <= RETURN);
+        }
+
+        for (AbstractInsnNode insn : insns) {
+            if (insn instanceof FrameNode) {
+                methodNode.instructions.remove(insn);
+            }
+        }
+        for (int i = 0; i < positions.size(); ++i) {
+            methodNode.instructions.insertBefore(positions.get(i), frameNodes.get(i));
+        }
+        methodNode.maxStack = maxStack;
+        return true;
+    }
+
+    private static boolean hasUninitialized(FrameNode frameNode) {
+        for (List<Object> types : Arrays.asList(frameNode.local, frameNode.stack)) {
+            if (types == null) {
+                continue;
+            }
+            for (Object type : types) {
+                if (type instanceof LabelNode || UNINITIALIZED_THIS.equals(type)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Развернутый фрейм ({@link Opcodes#F_NEW}), <code>null</code> - если в нем адрес возврата
+     */
+    private static FrameNode toFrameNode(Frame<BasicValue> frame) {
+        List<Object> locals = new ArrayList<>();
+        for (int i = 0; i < frame.getLocals(); ++i) {
+            BasicValue value = frame.getLocal(i);
+            Object type = toFrameType(value);
+            if (type == null) {
+                return null;
+            }
+            locals.add(type);
+            // Вторая половина long и double в развернутом фрейме не указывается
+            i += value.getSize() - 1;
+        }
+        while (!locals.isEmpty() && locals.get(locals.size() - 1) == TOP) {
+            locals.remove(locals.size() - 1);
+        }
+        List<Object> stack = new ArrayList<>();
+        for (int i = 0; i < frame.getStackSize(); ++i) {
+            Object type = toFrameType(frame.getStack(i));
+            if (type == null) {
+                return null;
+            }
+            stack.add(type);
+        }
+        return new FrameNode(F_NEW, locals.size(), locals.toArray(), stack.size(), stack.toArray());
+    }
+
+    private static Object toFrameType(BasicValue value) {
+        Type type = value.getType();
+        if (type == null) {
+            return TOP;
+        }
+        return switch (type.getSort()) {
+            case Type.BOOLEAN, Type.CHAR, Type.BYTE, Type.SHORT, Type.INT -> INTEGER;
+            case Type.FLOAT -> FLOAT;
+            case Type.LONG -> LONG;
+            case Type.DOUBLE -> DOUBLE;
+            case Type.ARRAY -> type.getDescriptor();
+            case Type.OBJECT -> type.getInternalName().equals("null") ? NULL : type.getInternalName();
+            // Адрес возврата подпрограммы
+            default -> null;
+        };
     }
 
 }
@@ -1,24 +1,154 @@
 package ru.fewizz.obfuscators;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
+import java.util.logging.Logger;
 
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Attribute;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.RecordComponentVisitor;
+import org.objectweb.asm.TypePath;
 
 import ru.fewizz.Obfuscator;
 
-// Да, на этот раз не Tree API
-public class DebugMetadataDeleter extends Obfuscator implements Opcodes {
+/**
+ * Удаляет атрибуты, не нужные во время исполнения.<p>
+ * Набор удаляемых атрибутов задается настройками (см. {@link Obfuscator#getOption}):
+ * <ul>
+ *     <li><code>preset</code> - <code>safe</code> (по умолчанию) или <code>aggressive</code></li>
+ *     <li><code>attributes</code> - явный список имен атрибутов через запятую,
+ *     <code>unknown</code> - все нестандартные атрибуты</li>
+ * </ul>
+ * По завершении в лог выводится, сколько байт сэкономлено на каждом виде атрибутов
+ */
+// Core API: класс копируется за один проход, дерево не строится
+public final class DebugMetadataDeleter extends Obfuscator implements Opcodes {
+    private static final Logger LOGGER = Logger.getLogger("obfuscator");
+
+    static final String UNKNOWN = "unknown";
+
+    /**
+     * Атрибуты, которые JVM и стандартная библиотека во время исполнения не читают
+     */
+    static final Set<String> SAFE_PRESET = Set.of(
+        "SourceFile", "SourceDebugExtension",
+        "LineNumberTable", "LocalVariableTable", "LocalVariableTypeTable",
+        "RuntimeInvisibleAnnotations",
+        "RuntimeInvisibleParameterAnnotations",
+        "RuntimeInvisibleTypeAnnotations",
+        UNKNOWN
+    );
+
+    /**
+     * Плюс атрибуты, доступные через рефлексию: имена параметров,
+     * обобщенные типы и пометка <code>@Deprecated</code>.
+     * Безопасно, только если код их не запрашивает
+     */
+    static final Set<String> AGGRESSIVE_PRESET = union(SAFE_PRESET, Set.of(
+        "MethodParameters", "Signature", "Deprecated"
+    ));
+
+    // Атрибуты из 4.7, остальные считаются неизвестными
+    private static final Set<String> STANDARD_ATTRIBUTES = Set.of(
+        "ConstantValue", "Code", "StackMapTable", "Exceptions", "InnerClasses",
+        "EnclosingMethod", "Synthetic", "Signature", "SourceFile", "SourceDebugExtension",
+        "LineNumberTable", "LocalVariableTable", "LocalVariableTypeTable", "Deprecated",
+        "RuntimeVisibleAnnotations", "RuntimeInvisibleAnnotations",
+        "RuntimeVisibleParameterAnnotations", "RuntimeInvisibleParameterAnnotations",
+        "RuntimeVisibleTypeAnnotations", "RuntimeInvisibleTypeAnnotations",
+        "AnnotationDefault", "BootstrapMethods", "MethodParameters", "Module",
+        "ModulePackages", "ModuleMainClass", "NestHost", "NestMembers", "Record",
+        "PermittedSubclasses"
+    );
+
+    private final Set<String> strippedAttributes;
+
+    // Имя атрибута -> сумма размеров удаленных атрибутов (вместе с заголовком)
+    private final Map<String, LongAdder> strippedBytes = new ConcurrentHashMap<>();
+    private final LongAdder inputBytes = new LongAdder();
+    private final LongAdder outputBytes = new LongAdder();
+
+    public DebugMetadataDeleter() {
+        String attributes = getOption("attributes", null);
+        if (attributes != null) {
+            this.strippedAttributes = Set.of(attributes.split(","));
+        }
+        else {
+            String preset = getOption("preset", "safe");
+            this.strippedAttributes = switch (preset) {
+                case "safe" -> SAFE_PRESET;
+                case "aggressive" -> AGGRESSIVE_PRESET;
+                default -> throw new IllegalArgumentException("Unknown preset: " + preset);
+            };
+        }
+    }
+
+    public DebugMetadataDeleter(Set<String> strippedAttributes) {
+        this.strippedAttributes = strippedAttributes;
+    }
+
+    private static Set<String> union(Set<String> a, Set<String> b) {
+        Set<String> result = new HashSet<>(a);
+        result.addAll(b);
+        return Set.copyOf(result);
+    }
+
+    private boolean strips(String attribute) {
+        return this.strippedAttributes.contains(attribute);
+    }
+
+    @Override
+    public boolean isPerClass() {
+        return true;
+    }
 
     @Override
     public Supplier<byte[]> getObfuscatedClassSupplier(byte[] classFileBytes) throws Exception {
+        var classReader = new ClassReader(classFileBytes);
+
+        // Обход таблиц атрибутов без разбора кода: что и сколько будет удалено
+        Map<String, Long> sizes = new HashMap<>();
+        ClassFileScanner.forEachAttribute(classReader, (name, size) -> {
+            String kind = STANDARD_ATTRIBUTES.contains(name) ? name : UNKNOWN;
+            // Без LocalVariableTable не записывается и LocalVariableTypeTable
+            if (kind.equals("LocalVariableTypeTable") && this.strips("LocalVariableTable")) {
+                kind = "LocalVariableTable";
+            }
+            if (this.strips(kind)) {
+                sizes.merge(kind, size.longValue(), Long::sum);
+            }
+        });
+        if (sizes.isEmpty()) {
+            return () -> classFileBytes;
+        }
+
+        // ClassReader сюда намеренно не передается: при копировании пула констант
+        // в нем остались бы имена локальных переменных и исходного файла
         var classWriter = new ClassWriter(0);
         var visitor = new ClassVisitor(ASM9, classWriter) {
 
+            @Override
+            public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+                super.visit(
+                    version, stripAccess(access), name,
+                    strips("Signature") ? null : signature,
+                    superName, interfaces
+                );
+            }
+
             /**
              * Удаляет атрибут SourceFile (4.7.10) и SourceDebugExtension (4.7.11)
              * https://github.com/stephengold/asm/blob/bac9ddeb90c0cbd8b4739fd116bc941c9ab076e1/src/main/java/org/objectweb/asm/ClassWriter.java#L816
@@ -26,36 +156,248 @@ public class DebugMetadataDeleter extends Obfuscator implements Opcodes {
              */
             @Override
             public void visitSource(String source, String debug) {
-                // super.visitSource(source, debug);
+                source = strips("SourceFile") ? null : source;
+                debug = strips("SourceDebugExtension") ? null : debug;
+                if (source != null || debug != null) {
+                    super.visitSource(source, debug);
+                }
+            }
+
+            @Override
+            public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+                if (!visible && strips("RuntimeInvisibleAnnotations")) {
+                    return null;
+                }
+                return super.visitAnnotation(descriptor, visible);
+            }
+
+            @Override
+            public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+                if (!visible && strips("RuntimeInvisibleTypeAnnotations")) {
+                    return null;
+                }
+                return super.visitTypeAnnotation(typeRef, typePath, descriptor, visible);
+            }
+
+            @Override
+            public void visitAttribute(Attribute attribute) {
+                if (!strips(UNKNOWN)) {
+                    super.visitAttribute(attribute);
+                }
+            }
+
+            @Override
+            public RecordComponentVisitor visitRecordComponent(String name, String descriptor, String signature) {
+                var recordComponentVisitor = super.visitRecordComponent(
+                    name, descriptor, strips("Signature") ? null : signature
+                );
+                return new RecordComponentVisitor(ASM9, recordComponentVisitor) {
+
+                    @Override
+                    public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+                        if (!visible && strips("RuntimeInvisibleAnnotations")) {
+                            return null;
+                        }
+                        return super.visitAnnotation(descriptor, visible);
+                    }
+
+                    @Override
+                    public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+                        if (!visible && strips("RuntimeInvisibleTypeAnnotations")) {
+                            return null;
+                        }
+                        return super.visitTypeAnnotation(typeRef, typePath, descriptor, visible);
+                    }
+
+                    @Override
+                    public void visitAttribute(Attribute attribute) {
+                        if (!strips(UNKNOWN)) {
+                            super.visitAttribute(attribute);
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+                var fieldVisitor = super.visitField(
+                    stripAccess(access), name, descriptor,
+                    strips("Signature") ? null : signature, value
+                );
+                return new FieldVisitor(ASM9, fieldVisitor) {
+
+                    @Override
+                    public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+                        if (!visible && strips("RuntimeInvisibleAnnotations")) {
+                            return null;
+                        }
+                        return super.visitAnnotation(descriptor, visible);
+                    }
+
+                    @Override
+                    public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+                        if (!visible && strips("RuntimeInvisibleTypeAnnotations")) {
+                            return null;
+                        }
+                        return super.visitTypeAnnotation(typeRef, typePath, descriptor, visible);
+                    }
+
+                    @Override
+                    public void visitAttribute(Attribute attribute) {
+                        if (!strips(UNKNOWN)) {
+                            super.visitAttribute(attribute);
+                        }
+                    }
+                };
             }
 
             @Override
             public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
-                return new MethodVisitor(ASM9, super.visitMethod(access, name, descriptor, signature, exceptions)) {
-                    
+                var methodVisitor = super.visitMethod(
+                    stripAccess(access), name, descriptor,
+                    strips("Signature") ? null : signature, exceptions
+                );
+                return new MethodVisitor(ASM9, methodVisitor) {
+
+                    /**
+                     * Удаляет атрибут MethodParameters (4.7.24)
+                     */
+                    @Override
+                    public void visitParameter(String name, int access) {
+                        if (!strips("MethodParameters")) {
+                            super.visitParameter(name, access);
+                        }
+                    }
+
+                    @Override
+                    public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+                        if (!visible && strips("RuntimeInvisibleAnnotations")) {
+                            return null;
+                        }
+                        return super.visitAnnotation(descriptor, visible);
+                    }
+
+                    @Override
+                    public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+                        if (!visible && strips("RuntimeInvisibleTypeAnnotations")) {
+                            return null;
+                        }
+                        return super.visitTypeAnnotation(typeRef, typePath, descriptor, visible);
+                    }
+
+                    @Override
+                    public void visitAnnotableParameterCount(int parameterCount, boolean visible) {
+                        if (visible || !strips("RuntimeInvisibleParameterAnnotations")) {
+                            super.visitAnnotableParameterCount(parameterCount, visible);
+                        }
+                    }
+
+                    @Override
+                    public AnnotationVisitor visitParameterAnnotation(int parameter, String descriptor, boolean visible) {
+                        if (!visible && strips("RuntimeInvisibleParameterAnnotations")) {
+                            return null;
+                        }
+                        return super.visitParameterAnnotation(parameter, descriptor, visible);
+                    }
+
+                    @Override
+                    public AnnotationVisitor visitInsnAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+                        if (!visible && strips("RuntimeInvisibleTypeAnnotations")) {
+                            return null;
+                        }
+                        return super.visitInsnAnnotation(typeRef, typePath, descriptor, visible);
+                    }
+
+                    @Override
+                    public AnnotationVisitor visitTryCatchAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+                        if (!visible && strips("RuntimeInvisibleTypeAnnotations")) {
+                            return null;
+                        }
+                        return super.visitTryCatchAnnotation(typeRef, typePath, descriptor, visible);
+                    }
+
+                    @Override
+                    public AnnotationVisitor visitLocalVariableAnnotation(
+                        int typeRef, TypePath typePath, Label[] start, Label[] end,
+                        int[] index, String descriptor, boolean visible
+                    ) {
+                        if (!visible && strips("RuntimeInvisibleTypeAnnotations")) {
+                            return null;
+                        }
+                        return super.visitLocalVariableAnnotation(typeRef, typePath, start, end, index, descriptor, visible);
+                    }
+
+                    @Override
+                    public void visitAttribute(Attribute attribute) {
+                        if (!strips(UNKNOWN)) {
+                            super.visitAttribute(attribute);
+                        }
+                    }
+
                     /**
                      * Удаляет атрибут LineNumberTable (4.7.12) атрибута Code
                      */
                     @Override
                     public void visitLineNumber(int line, Label start) {
-                        // super.visitLineNumber(line, start);
+                        if (!strips("LineNumberTable")) {
+                            super.visitLineNumber(line, start);
+                        }
                     }
 
                     /**
                      * Удаляет атрибуты LocalVariableTable (4.7.13)
-                     * и LocalVariableTypeTable (4.7.14) атрибута Code
+                     * и LocalVariableTypeTable (4.7.14) атрибута Code.
+                     * Вторая без первой не записывается
                      */
                     @Override
                     public void visitLocalVariable(String name, String descriptor, String signature, Label start, Label end, int index) {
-                        // super.visitLocalVariable(name, descriptor, signature, start, end, index);
+                        if (!strips("LocalVariableTable")) {
+                            signature = strips("LocalVariableTypeTable") ? null : signature;
+                            super.visitLocalVariable(name, descriptor, signature, start, end, index);
+                        }
                     }
                 };
             }
 
         };
 
-        new ClassReader(classFileBytes).accept(visitor, 0);
-        return () -> classWriter.toByteArray();
+        classReader.accept(visitor, 0);
+        return () -> {
+            byte[] result = classWriter.toByteArray();
+            sizes.forEach((kind, size) ->
+                this.strippedBytes.computeIfAbsent(kind, k -> new LongAdder()).add(size)
+            );
+            this.inputBytes.add(classFileBytes.length);
+            this.outputBytes.add(result.length);
+            return result;
+        };
+    }
+
+    /**
+     * Атрибут Deprecated (4.7.15) ASM представляет псевдо-флагом доступа
+     */
+    private int stripAccess(int access) {
+        return strips("Deprecated") ? access & ~ACC_DEPRECATED : access;
     }
-    
+
+    /**
+     * @return Сколько байт удалено атрибутов данного вида
+     */
+    long getStrippedBytes(String kind) {
+        LongAdder size = this.strippedBytes.get(kind);
+        return size == null ? 0 : size.sum();
+    }
+
+    @Override
+    public void onAllClassesObfuscated() {
+        var sb = new StringBuilder("stripped attributes, bytes:");
+        new TreeMap<>(this.strippedBytes).forEach((kind, size) ->
+            sb.append("\n\t").append(kind).append(": ").append(size.sum())
+        );
+        // Разница больше суммы атрибутов за счет строк, ушедших из пула констант
+        sb.append("\n\ttotal class files size: ")
+            .append(this.inputBytes.sum()).append(" -> ").append(this.outputBytes.sum());
+        LOGGER.info(sb.toString());
+    }
+
 }
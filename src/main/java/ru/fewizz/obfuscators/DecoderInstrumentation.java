@@ -0,0 +1,151 @@
+package ru.fewizz.obfuscators;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Счетчики вызовов декодеров строк (настройка <code>counters</code> обфускаторов строк).<p>
+ * Обфусцированный класс получает статическое поле со своим экземпляром
+ * <code>ru.fewizz.runtime.DecoderCounters</code>, которое заполняется в начале
+ * статического инициализатора, а декодер <code>__deobf</code> засекает время
+ * и отчитывается в него перед возвратом. Сами классы <code>ru.fewizz.runtime</code>
+ * добавляются в программу ({@link ru.fewizz.Obfuscator#getAddedClasses()})
+ */
+final class DecoderInstrumentation implements Opcodes {
+
+    static final String RUNTIME_PACKAGE = "ru/fewizz/runtime/";
+    private static final String COUNTERS = RUNTIME_PACKAGE + "DecoderCounters";
+    private static final String COUNTERS_DESCRIPTOR = "L" + COUNTERS + ";";
+    private static final String FIELD = "__deobfCounters";
+
+    private static final String[] RUNTIME_CLASSES = {
+        "DecoderCounters", "DecoderCounters$Registry", "DecoderCountersMXBean", "DecoderEvent"
+    };
+
+    private DecoderInstrumentation() {}
+
+    /**
+     * Байты классов <code>ru.fewizz.runtime</code>, собранных в ресурсы обфускатора
+     */
+    static List<byte[]> loadRuntimeClasses() throws IOException {
+        List<byte[]> classes = new ArrayList<>();
+        for (String name : RUNTIME_CLASSES) {
+            try (InputStream in = DecoderInstrumentation.class.getResourceAsStream("/" + RUNTIME_PACKAGE + name + ".class")) {
+                if (in == null) {
+                    throw new IOException("runtime class " + name + " is missing from the obfuscator");
+                }
+                classes.add(in.readAllBytes());
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * Декодеры самих счетчиков не считаются: они вызывались бы при их же инициализации
+     */
+    static boolean isRuntimeClass(String className) {
+        return className.startsWith(RUNTIME_PACKAGE);
+    }
+
+    /**
+     * Добавляет в класс поле со счетчиками и его заполнение в статическом инициализаторе,
+     * если их еще не добавил другой обфускатор строк
+     */
+    static ClassVisitor addCounters(ClassVisitor classVisitor, String className, boolean isInterface) {
+        return new ClassVisitor(ASM9, classVisitor) {
+            private boolean hasClinit = false;
+            private boolean hasCounters = false;
+
+            @Override
+            public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+                if (name.equals(FIELD)) {
+                    this.hasCounters = true;
+                }
+                return super.visitField(access, name, descriptor, signature, value);
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                MethodVisitor methodVisitor = super.visitMethod(access, name, descriptor, signature, exceptions);
+                if (this.hasCounters || !name.equals("<clinit>")) {
+                    return methodVisitor;
+                }
+                this.hasClinit = true;
+                return new MethodVisitor(ASM9, methodVisitor) {
+                    @Override
+                    public void visitCode() {
+                        super.visitCode();
+                        register(this.mv, className);
+                    }
+                };
+            }
+
+            @Override
+            public void visitEnd() {
+                if (this.hasCounters) {
+                    super.visitEnd();
+                    return;
+                }
+                // Поля интерфейса могут быть только public static final
+                super.visitField(
+                    (isInterface ? ACC_PUBLIC : ACC_PRIVATE) | ACC_STATIC | ACC_FINAL | ACC_SYNTHETIC,
+                    FIELD, COUNTERS_DESCRIPTOR, null, null
+                ).visitEnd();
+                if (!this.hasClinit) {
+                    MethodVisitor clinit = super.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+                    clinit.visitCode();
+                    register(clinit, className);
+                    clinit.visitInsn(RETURN);
+                    clinit.visitMaxs(0, 0);
+                    clinit.visitEnd();
+                }
+                super.visitEnd();
+            }
+        };
+    }
+
+    /**
+     * Класс передается литералом: строковую константу зашифровал бы следующий
+     * обфускатор строк, и его декодер вызывался бы до заполнения поля
+     */
+    private static void register(MethodVisitor methodVisitor, String className) {
+        methodVisitor.visitLdcInsn(Type.getObjectType(className));
+        methodVisitor.visitMethodInsn(INVOKESTATIC, COUNTERS, "register", "(Ljava/lang/Class;)" + COUNTERS_DESCRIPTOR, false);
+        methodVisitor.visitFieldInsn(PUTSTATIC, className, FIELD, COUNTERS_DESCRIPTOR);
+    }
+
+    /**
+     * Засекает время в начале <code>decoder</code> и отчитывается перед каждым <code>ARETURN</code>
+     * @param local Свободная пара локальных переменных для времени начала
+     */
+    static void instrumentDecoder(String className, MethodNode decoder, int local) {
+        for (AbstractInsnNode insn : decoder.instructions.toArray()) {
+            if (insn.getOpcode() == ARETURN) {
+                InsnList record = new InsnList();
+                record.add(new FieldInsnNode(GETSTATIC, className, FIELD, COUNTERS_DESCRIPTOR));
+                record.add(new VarInsnNode(LLOAD, local));
+                record.add(new MethodInsnNode(INVOKEVIRTUAL, COUNTERS, "record", "(J)V"));
+                decoder.instructions.insertBefore(insn, record);
+            }
+        }
+        InsnList start = new InsnList();
+        start.add(new MethodInsnNode(INVOKESTATIC, "java/lang/System", "nanoTime", "()J"));
+        start.add(new VarInsnNode(LSTORE, local));
+        decoder.instructions.insert(start);
+    }
+
+}
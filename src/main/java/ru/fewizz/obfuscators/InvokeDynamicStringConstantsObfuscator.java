@@ -2,15 +2,18 @@ package ru.fewizz.obfuscators;
 
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.List;
+import java.util.Set;
 import java.util.function.Supplier;
 
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
-import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.FieldInsnNode;
 import org.objectweb.asm.tree.IincInsnNode;
 import org.objectweb.asm.tree.InsnList;
@@ -26,44 +29,107 @@ import org.objectweb.asm.tree.VarInsnNode;
 
 import ru.fewizz.Obfuscator;
 
-public class InvokeDynamicStringConstantsObfuscator extends Obfuscator implements Opcodes {
+public final class InvokeDynamicStringConstantsObfuscator extends Obfuscator implements Opcodes {
+
+    // Счетчики вызовов загрузчика __deobf (по одному на место вызова),
+    // см. DecoderInstrumentation
+    private final boolean counters = Boolean.parseBoolean(getOption("counters", "false"));
+
+    @Override
+    public boolean isPerClass() {
+        return true;
+    }
+
+    @Override
+    public List<byte[]> getAddedClasses() throws Exception {
+        return this.counters ? DecoderInstrumentation.loadRuntimeClasses() : List.of();
+    }
 
     @Override
     public Supplier<byte[]> getObfuscatedClassSupplier(byte[] classFileBytes) {
-        var classNode = new ClassNode();
-        new ClassReader(classFileBytes).accept(classNode, 0);
-
-        for (var methodNode : classNode.methods) {
-            for (AbstractInsnNode insn : methodNode.instructions) {
-                if (insn instanceof LdcInsnNode ldc && ldc.cst instanceof String) {
-                    var bytes = ((String) ldc.cst).getBytes(StandardCharsets.UTF_8);
-                    for (int i = 0; i < bytes.length; ++i) {
-                        bytes[i] ^= (byte) 0b10101010;
+        var classReader = new ClassReader(classFileBytes);
+
+        // Класс без строковых ldc возвращается как есть
+        Set<String> methodsWithStrings = ClassFileScanner.findMethodsWithStringLdc(classReader);
+        // Методы из правил keep (см. Rules) не изменяются
+        methodsWithStrings.removeIf(method ->
+            getRules().isMemberKept(classReader.getClassName(), method.substring(0, method.indexOf('(')))
+        );
+        String className = classReader.getClassName();
+        if (methodsWithStrings.isEmpty() || this.counters && DecoderInstrumentation.isRuntimeClass(className)) {
+            return () -> classFileBytes;
+        }
+
+        // Нетронутые методы копируются побайтово, см. NaiveStringConstantsObfuscator
+        var classWriter = new ClassWriter(classReader, ClassWriter.COMPUTE_FRAMES);
+        ClassVisitor target = this.counters ?
+            DecoderInstrumentation.addCounters(classWriter, className, (classReader.getAccess() & ACC_INTERFACE) != 0) :
+            classWriter;
+        var visitor = new ClassVisitor(ASM9, target) {
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                MethodVisitor methodWriter = super.visitMethod(access, name, descriptor, signature, exceptions);
+                if (!methodsWithStrings.contains(name + descriptor)) {
+                    return methodWriter;
+                }
+                return new MethodNode(ASM9, access, name, descriptor, signature, exceptions) {
+                    @Override
+                    public void visitEnd() {
+                        obfuscateStrings(className, this);
+                        this.accept(methodWriter);
                     }
-                    String obfuscatedString = Base64.getEncoder().encodeToString(bytes);
+                };
+            }
 
-                    methodNode.instructions.insertBefore(ldc, new InvokeDynamicInsnNode(
-                        "__deobf",
-                        "()Ljava/lang/String;",
-                        new Handle(
-                            Opcodes.H_INVOKESTATIC,
-                            classNode.name,
-                            "__deobf",
-                            "("+
-                                "Ljava/lang/invoke/MethodHandles$Lookup;"+
-                                "Ljava/lang/String;"+
-                                "Ljava/lang/invoke/MethodType;"+
-                                "Ljava/lang/String;"+
-                            ")Ljava/lang/invoke/CallSite;",
-                            false
-                        ),
-                        obfuscatedString
-                    ));
-                    methodNode.instructions.remove(ldc);
+            @Override
+            public void visitEnd() {
+                MethodNode deobfMethod = createDeobfMethod();
+                if (counters) {
+                    DecoderInstrumentation.instrumentDecoder(className, deobfMethod, 6);
+                }
+                deobfMethod.accept(this.cv);
+                super.visitEnd();
+            }
+
+        };
+
+        classReader.accept(visitor, 0);
+        return () -> classWriter.toByteArray();
+    }
+
+    private static void obfuscateStrings(String className, MethodNode methodNode) {
+        for (AbstractInsnNode insn : methodNode.instructions) {
+            if (insn instanceof LdcInsnNode ldc && ldc.cst instanceof String string) {
+                var bytes = string.getBytes(StandardCharsets.UTF_8);
+                for (int i = 0; i < bytes.length; ++i) {
+                    bytes[i] ^= (byte) 0b10101010;
                 }
+                String obfuscatedString = Base64.getEncoder().encodeToString(bytes);
+
+                methodNode.instructions.insertBefore(ldc, new InvokeDynamicInsnNode(
+                    "__deobf",
+                    "()Ljava/lang/String;",
+                    new Handle(
+                        Opcodes.H_INVOKESTATIC,
+                        className,
+                        "__deobf",
+                        "("+
+                            "Ljava/lang/invoke/MethodHandles$Lookup;"+
+                            "Ljava/lang/String;"+
+                            "Ljava/lang/invoke/MethodType;"+
+                            "Ljava/lang/String;"+
+                        ")Ljava/lang/invoke/CallSite;",
+                        false
+                    ),
+                    obfuscatedString
+                ));
+                methodNode.instructions.remove(ldc);
             }
         }
+    }
 
+    private static MethodNode createDeobfMethod() {
         /*
         Добавление статического метода `__deobf` для деобфускации строки:
         private static CallSite __deobf(
@@ -151,11 +217,7 @@ public class InvokeDynamicStringConstantsObfuscator extends Obfuscator implement
             null, null
         );
         deobfMethod.instructions = deobfInsns;
-        classNode.methods.add(deobfMethod);
-
-        var classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
-        classNode.accept(classWriter);
-        return () -> classWriter.toByteArray();
+        return deobfMethod;
     }
 
 }
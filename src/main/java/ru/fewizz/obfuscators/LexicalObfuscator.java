@@ -2,15 +2,30 @@ package ru.fewizz.obfuscators;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
+import org.apache.bcel.Const;
 import org.apache.bcel.classfile.Attribute;
 import org.apache.bcel.classfile.ClassParser;
 import org.apache.bcel.classfile.Code;
@@ -31,17 +46,28 @@ import org.apache.bcel.classfile.ConstantPool;
 import org.apache.bcel.classfile.ConstantString;
 import org.apache.bcel.classfile.ConstantUtf8;
 import org.apache.bcel.classfile.Field;
+import org.apache.bcel.classfile.InnerClass;
+import org.apache.bcel.classfile.InnerClasses;
 import org.apache.bcel.classfile.JavaClass;
 import org.apache.bcel.classfile.LocalVariable;
 import org.apache.bcel.classfile.LocalVariableTable;
+import org.apache.bcel.classfile.LocalVariableTypeTable;
 import org.apache.bcel.classfile.Method;
+import org.apache.bcel.classfile.Signature;
+import org.apache.bcel.classfile.Utility;
 import org.apache.commons.lang3.NotImplementedException;
-import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.commons.lang3.mutable.MutableInt;
 import org.apache.commons.lang3.tuple.Pair;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Opcodes;
 
+import ru.fewizz.LibraryIndex;
+import ru.fewizz.LibraryIndex.MemberInfo;
+import ru.fewizz.LibraryIndex.TypeInfo;
 import ru.fewizz.Obfuscator;
+import ru.fewizz.Rules;
+import ru.fewizz.SymbolTable;
 
 
 /**
@@ -49,7 +75,17 @@ import ru.fewizz.Obfuscator;
  * Думал будет проще напрямую работать с пулом констант,
  * используя библиотеку Apache BCEL вместо ASM...
  */
-public class LexicalObfuscator extends Obfuscator implements Opcodes {
+public final class LexicalObfuscator extends Obfuscator implements Opcodes {
+
+    /**
+     * Способ переписывания классов. Маппинги в обоих случаях одни и те же
+     */
+    public enum Engine {
+        /** Правка пула констант на месте, см. {@link #obfuscate(JavaClass)} */
+        BCEL,
+        /** <code>ClassRemapper</code> с новым пулом констант, см. {@link LexicalRemapper} */
+        ASM
+    }
 
     record ClassMapping(
         String translated,
@@ -58,17 +94,99 @@ public class LexicalObfuscator extends Obfuscator implements Opcodes {
     ) {}
 
     // Note: BCEL использует x.y.z как имена классов, не x/y/z
-    final Map<String, JavaClass> javaClasses = new HashMap<>();
-    final Map<JavaClass, ClassMapping> mappings = new HashMap<>();
+    // Когда маппинги построены, оба словаря заменяются неизменяемыми копиями,
+    // и переписывание классов читает их из любых потоков без блокировок
+    Map<String, JavaClass> javaClasses = new ConcurrentHashMap<>();
+    Map<JavaClass, ClassMapping> mappings = Map.of();
+
+    /**
+     * Компонента связности иерархии входных классов.
+     * Члены классов из разных компонент не могут переопределять
+     * или скрывать друг друга, поэтому имена для них выдаются независимо
+     */
+    private static final class Component {
+        // В порядке имен
+        final List<JavaClass> classes = new ArrayList<>();
+        final Map<JavaClass, ClassMapping> mappings = new HashMap<>();
+        // Дескриптор метода -> имена, выданные методам с этим дескриптором
+        final Map<String, NameAllocator> methodNameAllocators = new HashMap<>();
+    }
+
+    // Пакеты (x.y.z, "" - безымянный пакет), в которые переносятся классы,
+    // либо null, если классы остаются в своих пакетах
+    private final List<String> targetPackages;
+    // Исходный пакет -> пакет назначения
+    private final Map<String, String> packageMappings = new HashMap<>();
+    // Пакет назначения -> имена, выданные классам в нем
+    private final Map<String, NameAllocator> classNameAllocators = new HashMap<>();
+
+    // Классы, исключенные правилами skip (внутренние имена x/y/z). Для построения
+    // маппингов они - такая же библиотека, как и классы из LibraryIndex
+    private final Map<String, TypeInfo> skippedTypes = new ConcurrentHashMap<>();
+
+    private final Engine engine;
+    // Число потоков, строящих маппинги
+    private final int threads;
+    // Создается, когда все маппинги готовы, либо из importState
+    private LexicalRemapper remapper;
+    // Маппинги получены через importState, классы только переписываются
+    private boolean imported = false;
+
+    /**
+     * Пакеты назначения задаются настройкой <code>repackage</code>
+     * (см. {@link Obfuscator#getOption}): список пакетов через запятую,
+     * пустая строка (по умолчанию) - безымянный пакет,
+     * <code>keep</code> - оставить классы в своих пакетах.<p>
+     * Способ переписывания - настройкой <code>engine</code>: <code>bcel</code>
+     * (по умолчанию) или <code>asm</code>.<p>
+     * Число потоков, строящих маппинги, - настройкой <code>threads</code>
+     * (по умолчанию - число ядер).<p>
+     * Правила <code>keep</code> ({@link Rules}) сохраняют исходные имена классов и членов.<p>
+     * С движком <code>asm</code> маппинги можно передать другому процессу
+     * ({@link #exportState()}), переписывание классов там не требует их моделей.<p>
+     * Настройка <code>mapping</code> - путь, по которому записываются маппинги
+     * для {@link ru.fewizz.Retrace} (см. {@link #writeMapping})
+     */
+    public LexicalObfuscator() {
+        String repackage = getOption("repackage", "");
+        this.targetPackages = repackage.equals("keep") ? null : List.of(repackage.split(",", -1));
+        this.engine = Engine.valueOf(getOption("engine", "bcel").toUpperCase());
+        this.threads = Integer.parseInt(
+            getOption("threads", String.valueOf(Runtime.getRuntime().availableProcessors()))
+        );
+    }
+
+    public LexicalObfuscator(List<String> targetPackages) {
+        this(targetPackages, Engine.BCEL);
+    }
+
+    public LexicalObfuscator(List<String> targetPackages, Engine engine) {
+        this(targetPackages, engine, Runtime.getRuntime().availableProcessors());
+    }
+
+    public LexicalObfuscator(List<String> targetPackages, Engine engine, int threads) {
+        this.targetPackages = targetPackages;
+        this.engine = engine;
+        this.threads = threads;
+    }
 
     @Override
     public Supplier<byte[]> getObfuscatedClassSupplier(byte[] classFileBytes) throws Exception {
+        if (this.imported) {
+            return () -> this.remap(classFileBytes);
+        }
         ByteArrayInputStream inputStream = new ByteArrayInputStream(classFileBytes);
         ClassParser parser = new ClassParser(inputStream, "");
         JavaClass javaClass = parser.parse();
+        // Модели всех классов живут до конца работы, поэтому строки - из общей таблицы
+        SymbolTable.shared().intern(javaClass);
 
         this.javaClasses.put(javaClass.getClassName(), javaClass);
 
+        if (this.engine == Engine.ASM) {
+            return () -> this.remap(classFileBytes);
+        }
+
         return () -> {
             try {
                 var outputStream = new ByteArrayOutputStream();
@@ -80,44 +198,278 @@ public class LexicalObfuscator extends Obfuscator implements Opcodes {
         };
     }
 
+    private byte[] remap(byte[] classFileBytes) {
+        // Без ClassReader в конструкторе пул констант строится заново,
+        // и исходные имена в него не попадают
+        var classWriter = new ClassWriter(0);
+        new ClassReader(classFileBytes).accept(this.remapper.createClassRemapper(classWriter), 0);
+        return classWriter.toByteArray();
+    }
+
+    /**
+     * Маппинги <code>LexicalRemapper</code> в порядке ключей: пары строк UTF-8
+     * (<code>DataOutput.writeUTF</code>) после их числа
+     * @return <code>null</code> для движка <code>bcel</code>: он правит
+     *  модели классов, которые есть только в этом процессе
+     */
+    @Override
+    public byte[] exportState() throws IOException {
+        if (this.remapper == null) {
+            return null;
+        }
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        var mapping = new TreeMap<>(this.remapper.mapping);
+        out.writeInt(mapping.size());
+        for (var entry : mapping.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public void importState(byte[] state) throws IOException {
+        var in = new DataInputStream(new ByteArrayInputStream(state));
+        int size = in.readInt();
+        Map<String, String> mapping = new HashMap<>(size * 2);
+        for (int i = 0; i < size; ++i) {
+            mapping.put(in.readUTF(), in.readUTF());
+        }
+        this.remapper = new LexicalRemapper(Map.copyOf(mapping));
+        this.imported = true;
+    }
+
+    @Override
+    public void onClassSkipped(byte[] classFileBytes) throws Exception {
+        TypeInfo type = LibraryIndex.readType(classFileBytes);
+        this.skippedTypes.put(type.name(), type);
+    }
+
     @Override
     public void onAllClassesProvided() throws Exception {
-        for (JavaClass javaClass : this.javaClasses.values()) {
-            this.createMappings(javaClass);
+        // Обход в порядке имен, чтобы выданные имена не зависели от порядка входных файлов
+        List<JavaClass> sortedClasses = new ArrayList<>(new TreeMap<>(this.javaClasses).values());
+
+        // Имена, которые остаются как есть: классы из правил keep и пропущенные классы
+        Rules.StageRules rules = getRules();
+        Set<String> keptClassNames = new HashSet<>();
+        for (JavaClass javaClass : sortedClasses) {
+            if (rules.isKept(javaClass.getClassName())) {
+                keptClassNames.add(javaClass.getClassName());
+            }
+        }
+        for (String skippedName : this.skippedTypes.keySet()) {
+            keptClassNames.add(skippedName.replace('/', '.'));
+        }
+
+        // Исходные пакеты распределяются по пакетам назначения целиком, так
+        // классы, использующие package-private члены друг друга, остаются в одном пакете.
+        // По той же причине пакеты с сохраняемыми классами не переносятся
+        Set<String> pinnedPackages = new HashSet<>();
+        for (String keptName : keptClassNames) {
+            pinnedPackages.add(keptName.substring(0, Math.max(keptName.lastIndexOf('.'), 0)));
+        }
+        List<String> packages = this.javaClasses.values().stream()
+            .map(JavaClass::getPackageName)
+            .filter(p -> !pinnedPackages.contains(p))
+            .distinct().sorted().toList();
+        for (int i = 0; i < packages.size(); ++i) {
+            String targetPackage = this.targetPackages == null ?
+                packages.get(i) :
+                this.targetPackages.get(i % this.targetPackages.size());
+            this.packageMappings.put(packages.get(i), targetPackage);
+        }
+        for (String pinnedPackage : pinnedPackages) {
+            this.packageMappings.put(pinnedPackage, pinnedPackage);
+        }
+
+        // Область видимости имен классов - пакет назначения, а не иерархия,
+        // поэтому они выдаются заранее и последовательно
+        Map<JavaClass, String> classNames = new HashMap<>();
+        for (JavaClass javaClass : sortedClasses) {
+            if (keptClassNames.contains(javaClass.getClassName())) {
+                classNames.put(javaClass, javaClass.getClassName());
+                continue;
+            }
+            String targetPackage = this.packageMappings.get(javaClass.getPackageName());
+            String newName = this.classNameAllocators
+                .computeIfAbsent(targetPackage, p -> new NameAllocator())
+                .next(name -> keptClassNames.contains(targetPackage.isEmpty() ? name : targetPackage + "." + name));
+            classNames.put(javaClass, targetPackage.isEmpty() ? newName : targetPackage + "." + newName);
+        }
+
+        // Компоненты обрабатываются параллельно, но порядок обхода внутри каждой
+        // фиксирован, поэтому имена не зависят от числа потоков
+        List<Component> components = this.findComponents(sortedClasses);
+        ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Component component : components) {
+                futures.add(executor.submit(() -> {
+                    for (JavaClass javaClass : component.classes) {
+                        this.createMappings(component, javaClass, classNames);
+                    }
+                }));
+            }
+            for (var future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Map<JavaClass, ClassMapping> mappings = new HashMap<>();
+        for (Component component : components) {
+            component.mappings.forEach((javaClass, cm) -> mappings.put(javaClass, new ClassMapping(
+                cm.translated, Map.copyOf(cm.fieldMappings), Map.copyOf(cm.methodMappings)
+            )));
+        }
+        this.mappings = Map.copyOf(mappings);
+        this.javaClasses = Map.copyOf(this.javaClasses);
+
+        String mappingFile = getOption("mapping", null);
+        if (mappingFile != null) {
+            this.writeMapping(Path.of(mappingFile));
+        }
+
+        if (this.engine == Engine.ASM) {
+            this.remapper = this.createRemapper();
         }
     }
 
-    private String generateObfuscatedName() {
-        return RandomStringUtils.random(8, "abcdefghijklmnopqrstuvwxyz");
+    /**
+     * Записывает маппинги в формате ProGuard, без номеров строк: класс
+     * <code>x.y.Z -&gt; a:</code>, затем его переименованные члены с отступом,
+     * <code>int field -&gt; a</code> и <code>void method(int,x.y.Z) -&gt; b</code>.
+     * Классы - в порядке исходных имен, члены - в порядке объявления
+     */
+    void writeMapping(Path file) throws IOException {
+        try (var writer = Files.newBufferedWriter(file)) {
+            for (JavaClass javaClass : new TreeMap<>(this.javaClasses).values()) {
+                ClassMapping cm = this.mappings.get(javaClass);
+                writer.write(javaClass.getClassName() + " -> " + cm.translated + ":\n");
+                for (Field f : javaClass.getFields()) {
+                    String name = cm.fieldMappings.get(f);
+                    if (name != null) {
+                        writer.write("    " + Utility.signatureToString(f.getSignature(), false) +
+                            " " + f.getName() + " -> " + name + "\n");
+                    }
+                }
+                for (Method m : javaClass.getMethods()) {
+                    String name = cm.methodMappings.get(m);
+                    if (name != null) {
+                        writer.write("    " + Utility.methodSignatureReturnType(m.getSignature(), false) +
+                            " " + m.getName() +
+                            "(" + String.join(",", Utility.methodSignatureArgumentTypes(m.getSignature(), false)) + ")" +
+                            " -> " + name + "\n");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param className Исходное имя класса в формате x.y.z
+     * @return Обфусцированное имя класса, либо <code>null</code>,
+     *  если класс не обрабатывался этим обфускатором
+     */
+    public String getTranslatedClassName(String className) {
+        JavaClass javaClass = this.javaClasses.get(className);
+        if (javaClass == null) {
+            return null;
+        }
+        return this.mappings.get(javaClass).translated;
+    }
+
+    /**
+     * Разбиение классов на компоненты связности по отношению "наследует или реализует"
+     */
+    private List<Component> findComponents(List<JavaClass> sortedClasses) {
+        Map<String, String> parents = new HashMap<>();
+        for (JavaClass javaClass : sortedClasses) {
+            List<String> superNames = new ArrayList<>(Arrays.asList(javaClass.getInterfaceNames()));
+            superNames.add(javaClass.getSuperclassName());
+            for (String superName : superNames) {
+                if (!this.javaClasses.containsKey(superName)) {
+                    continue;
+                }
+                String root = findRoot(parents, javaClass.getClassName());
+                String superRoot = findRoot(parents, superName);
+                if (!root.equals(superRoot)) {
+                    parents.put(root, superRoot);
+                }
+            }
+        }
+
+        Map<String, Component> components = new LinkedHashMap<>();
+        for (JavaClass javaClass : sortedClasses) {
+            components.computeIfAbsent(
+                findRoot(parents, javaClass.getClassName()), root -> new Component()
+            ).classes.add(javaClass);
+        }
+        return new ArrayList<>(components.values());
+    }
+
+    private static String findRoot(Map<String, String> parents, String name) {
+        String root = name;
+        while (parents.containsKey(root)) {
+            root = parents.get(root);
+        }
+        // Сокращение путей, чтобы следующие поиски были быстрее
+        while (!name.equals(root)) {
+            name = parents.put(name, root);
+        }
+        return root;
     }
 
     /**
      * Создание маппингов для класса, его методов и полей
      */
-    private void createMappings(JavaClass javaClass) {
-        if (this.mappings.containsKey(javaClass)) {
+    private void createMappings(Component component, JavaClass javaClass, Map<JavaClass, String> classNames) {
+        if (component.mappings.containsKey(javaClass)) {
             return;
         }
 
         var baseJavaClass = this.javaClasses.get(javaClass.getSuperclassName());
         if (baseJavaClass != null) {
-            createMappings(baseJavaClass);
+            createMappings(component, baseJavaClass, classNames);
         }
 
         for (var interfaceName : javaClass.getInterfaceNames()) {
             var intface = this.javaClasses.get(interfaceName);
             if (intface != null) {
-                createMappings(intface);
+                createMappings(component, intface, classNames);
             }
         }
 
-        String newName = this.generateObfuscatedName();
-        System.out.println(javaClass.getClassName()+" -> "+newName);
+        String newName = classNames.get(javaClass);
         ClassMapping cm = new ClassMapping(newName, new HashMap<>(), new HashMap<>());
-        this.mappings.put(javaClass, cm);
+        component.mappings.put(javaClass, cm);
 
+        // Поле идентифицируется именем и дескриптором, поэтому поля с разными
+        // дескрипторами могут получить одно и то же имя.
+        // Имена полей супертипов не используем, чтобы не скрыть их (JLS 8.3)
+        Set<String> inheritedFields = new HashSet<>();
+        this.collectInheritedFields(component, javaClass, inheritedFields, new HashSet<>());
+        // Сохраняемые поля тоже занимают свои имена
+        Rules.StageRules rules = getRules();
+        String className = javaClass.getClassName();
+        for (Field f : javaClass.getFields()) {
+            if (rules.isMemberKept(className, f.getName())) {
+                inheritedFields.add(f.getName() + ":" + f.getSignature());
+            }
+        }
+        Map<String, NameAllocator> fieldNameAllocators = new HashMap<>();
         for (Field f : javaClass.getFields()) {
-            String newFieldName = this.generateObfuscatedName();
+            if (rules.isMemberKept(className, f.getName())) {
+                continue;
+            }
+            String desc = f.getSignature();
+            String newFieldName = fieldNameAllocators
+                .computeIfAbsent(desc, d -> new NameAllocator())
+                .next(name -> inheritedFields.contains(name + ":" + desc));
             cm.fieldMappings.put(f, newFieldName);
         }
 
@@ -130,27 +482,182 @@ public class LexicalObfuscator extends Obfuscator implements Opcodes {
             if (m.getName().equals("main") && m.getSignature().equals("([Ljava/lang/String;)V")) {
                 continue;
             }
+            // , и методы из правил keep. Переопределения в подклассах находят
+            // такой метод без маппинга и тоже сохраняют имя
+            if (rules.isMemberKept(className, m.getName())) {
+                continue;
+            }
+            // Библиотека может вызвать свой метод, поэтому переопределение сохраняет имя
+            if (this.hasLibraryMethod(javaClass, m.getName(), m.getSignature(), (owner, method) ->
+                canOverride(javaClass, owner, method)
+            )) {
+                continue;
+            }
             var e = resolveMethod(javaClass, m.getName(), m.getSignature(), true);
-            if (e.getValue() != null) {
+            if (e.getValue() != null && canOverride(javaClass, e.getKey(), e.getValue())) {
                 var superMethod = e.getValue();
                 var superClass = e.getKey();
-                var superMappings = this.mappings.get(superClass);
+                var superMappings = component.mappings.get(superClass);
                 if (superMappings != null) {
                     String methodName = superMappings.methodMappings.get(superMethod);
                     if (methodName != null) {
                         cm.methodMappings.put(m, methodName);
-                        System.out.println("\t"+m.toString()+" -> "+methodName);
                     }
                 }
             }
             else {
-                String newMethodName = this.generateObfuscatedName();
-                System.out.println("\t"+m.toString()+" -> "+newMethodName);
+                // Область видимости имен методов - все классы компоненты с тем же дескриптором.
+                // Так новые методы не могут случайно переопределить друг друга,
+                // в том числе у класса, реализующего несколько интерфейсов
+                String desc = m.getSignature();
+                String newMethodName = component.methodNameAllocators
+                    .computeIfAbsent(desc, d -> new NameAllocator())
+                    .next(name ->
+                        findMethod(javaClass, name, desc) != null ||
+                        resolveMethod(javaClass, name, desc, true).getValue() != null ||
+                        this.hasLibraryMethod(javaClass, name, desc, (owner, method) -> true)
+                    );
                 cm.methodMappings.put(m, newMethodName);
             }
         }
     }
 
+    /**
+     * {@link org.objectweb.asm.commons.SimpleRemapper} ищет член класса только
+     * у владельца, указанного в ссылке, а ссылка может указывать на унаследованный
+     * член через подкласс. Поэтому каждому классу добавляются и маппинги
+     * членов его супертипов из входного набора
+     */
+    private LexicalRemapper createRemapper() {
+        Map<String, String> mapping = new HashMap<>();
+        for (JavaClass javaClass : this.javaClasses.values()) {
+            String owner = javaClass.getClassName().replace('.', '/');
+            ClassMapping cm = this.mappings.get(javaClass);
+            mapping.put(owner, cm.translated.replace('.', '/'));
+            this.collectMemberMappings(owner, javaClass, mapping, new HashSet<>());
+
+            if (javaClass.isAnnotation()) {
+                // Элементы аннотации - ее методы без параметров, перегрузок у них нет
+                cm.methodMappings.forEach((m, name) ->
+                    mapping.put("L" + owner + ";." + m.getName(), name)
+                );
+            }
+        }
+        return new LexicalRemapper(Map.copyOf(mapping));
+    }
+
+    private void collectMemberMappings(
+        String owner, JavaClass javaClass, Map<String, String> mapping, Set<JavaClass> visited
+    ) {
+        if (!visited.add(javaClass)) {
+            return;
+        }
+        // Собственные члены раньше унаследованных - они их скрывают
+        ClassMapping cm = this.mappings.get(javaClass);
+        cm.fieldMappings.forEach((f, name) ->
+            mapping.putIfAbsent(owner + "." + f.getName(), name)
+        );
+        cm.methodMappings.forEach((m, name) ->
+            mapping.putIfAbsent(owner + "." + m.getName() + m.getSignature(), name)
+        );
+
+        List<String> superNames = new ArrayList<>();
+        superNames.add(javaClass.getSuperclassName());
+        superNames.addAll(Arrays.asList(javaClass.getInterfaceNames()));
+        for (String superName : superNames) {
+            JavaClass superClass = this.javaClasses.get(superName);
+            if (superClass != null) {
+                this.collectMemberMappings(owner, superClass, mapping, visited);
+            }
+        }
+    }
+
+    /**
+     * Приватный метод не переопределяется, а package-private -
+     * только из того же пакета (JVMS 5.4.5). Иначе после переноса
+     * в общий пакет методы начали бы переопределять друг друга
+     */
+    private static boolean canOverride(JavaClass javaClass, JavaClass superClass, Method superMethod) {
+        if (superMethod.isPrivate()) {
+            return false;
+        }
+        if (superMethod.isPublic() || superMethod.isProtected()) {
+            return true;
+        }
+        return superClass.getPackageName().equals(javaClass.getPackageName());
+    }
+
+    private static boolean canOverride(JavaClass javaClass, TypeInfo owner, MemberInfo method) {
+        if ((method.access() & ACC_STATIC) != 0) {
+            return false;
+        }
+        if ((method.access() & (ACC_PUBLIC | ACC_PROTECTED)) != 0) {
+            return true;
+        }
+        int packageEnd = Math.max(owner.name().lastIndexOf('/'), 0);
+        return owner.name().substring(0, packageEnd).replace('/', '.').equals(javaClass.getPackageName());
+    }
+
+    /**
+     * Ищет метод в библиотечных (не входящих во входные данные) супертипах класса
+     * по {@link LibraryIndex}, без разбора их класс-файлов
+     * @param filter Получает библиотечного владельца и найденный метод
+     */
+    private boolean hasLibraryMethod(
+        JavaClass javaClass, String name, String descriptor,
+        BiPredicate<TypeInfo, MemberInfo> filter
+    ) {
+        List<String> superNames = new ArrayList<>(Arrays.asList(javaClass.getInterfaceNames()));
+        if (!javaClass.getClassName().equals("java.lang.Object")) {
+            superNames.add(javaClass.getSuperclassName());
+        }
+        for (String superName : superNames) {
+            JavaClass superClass = this.javaClasses.get(superName);
+            boolean found = superClass != null ?
+                this.hasLibraryMethod(superClass, name, descriptor, filter) :
+                LibraryIndex.shared().hasMethod(superName.replace('.', '/'), name, descriptor, filter, this.skippedTypes);
+            if (found) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Собирает поля всех супертипов в виде <code>имя:дескриптор</code>,
+     * для классов из входного набора - с уже обфусцированными именами
+     */
+    private void collectInheritedFields(
+        Component component, JavaClass javaClass, Set<String> result, Set<String> visited
+    ) {
+        List<String> superNames = new ArrayList<>(Arrays.asList(javaClass.getInterfaceNames()));
+        if (!javaClass.getClassName().equals("java.lang.Object")) {
+            superNames.add(javaClass.getSuperclassName());
+        }
+        for (String superName : superNames) {
+            if (!visited.add(superName)) {
+                continue;
+            }
+            JavaClass superClass = this.javaClasses.get(superName);
+            if (superClass != null) {
+                ClassMapping superMappings = component.mappings.get(superClass);
+                for (Field f : superClass.getFields()) {
+                    result.add(superMappings.fieldMappings.getOrDefault(f, f.getName()) + ":" + f.getSignature());
+                }
+            }
+            else {
+                // Супертипы библиотечного класса - тоже библиотечные
+                for (var type : LibraryIndex.shared().getSupertypes(superName.replace('.', '/'), this.skippedTypes)) {
+                    for (var f : type.fields()) {
+                        result.add(f.name() + ":" + f.descriptor());
+                    }
+                }
+                continue;
+            }
+            this.collectInheritedFields(component, superClass, result, visited);
+        }
+    }
+
     /**
      * Обфускация класс-файла, согласно созданным маппингам
      */
@@ -288,17 +795,31 @@ public class LexicalObfuscator extends Obfuscator implements Opcodes {
             }
         }
 
+        // Аттрибуты самого класса
+        for (int x = 0; x < srcJavaClass.getAttributes().length; ++x) {
+            this.obfuscateAttribute(
+                dstJavaClass, srcJavaClass.getAttributes()[x], dstJavaClass.getAttributes()[x], o -> true
+            );
+        }
+
         // Все ссылки на классы
         for (int i = 1; i < srcPool.getLength(); ++i) {
             var srcC = srcPool.getConstant(i);
             if (srcC instanceof ConstantLong || srcC instanceof ConstantDouble) { ++i; continue; }
             if (srcC instanceof ConstantClass srcCC) {
                 String srcName = srcPool.getConstantUtf8(srcCC.getNameIndex()).getBytes();
-                JavaClass owner = this.javaClasses.get(srcName.replace('/', '.'));
-                if (owner == null) { continue; }
+                String dstName;
+                if (srcName.startsWith("[")) {
+                    // Класс массива задается дескриптором
+                    dstName = this.patchDescriptor(srcName);
+                    if (dstName.equals(srcName)) { continue; }
+                }
+                else {
+                    JavaClass owner = this.javaClasses.get(srcName.replace('/', '.'));
+                    if (owner == null) { continue; }
+                    dstName = this.mappings.get(owner).translated.replace('.', '/');
+                }
                 ConstantClass dstCFR = dstPool.getConstant(i);
-                String dstName = this.mappings.get(owner).translated;
-                // System.out.println(srcName+" -> "+dstName);
                 dstCFR.setNameIndex(obfuscateUTF8(dstJavaClass, srcName, dstName, (Object o) -> {
                     if (o instanceof ConstantClass) {  // Сам ConstantClass не берем в счет
                         return false;
@@ -347,14 +868,8 @@ public class LexicalObfuscator extends Obfuscator implements Opcodes {
                 }
             }
         }
+        // Библиотечные супертипы проверяются отдельно, см. hasLibraryMethod
         JavaClass owner = this.javaClasses.get(javaClass.getSuperclassName());
-        if (owner == null) {
-            try {
-                owner = javaClass.getSuperClass();
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-        }
         if (owner != null) {
             var result = resolveMethod(owner, name, descriptor, false);
             if (result.getValue() != null) { return result; }
@@ -378,13 +893,14 @@ public class LexicalObfuscator extends Obfuscator implements Opcodes {
     }
 
     /**
-     * Если обфусцированная строка <code>dst</code> уже есть в пуле констант,
-     * то ничего не проиходит.<p>
-     * В противном случае, для каждой сущности, потенциально использующую строку
-     * <code>src</code>, вызывается <code>usedByOther.apply(...)</code>.<p>
+     * Для каждой сущности, потенциально использующую строку <code>src</code>,
+     * вызывается <code>usedByOther.apply(...)</code>.<p>
      * Если все вызовы вернули <code>false</code>, значит ни одна из сущностей
-     * строку не использует, и она может быть заменена на <code>dst</code>
-     * Иначе, <code>dst</code> добавляется в конец пула констант.
+     * строку не использует, и она заменяется на <code>dst</code> на месте
+     * (даже если <code>dst</code> уже есть в пуле - иначе исходное имя
+     * осталось бы в пуле констант).<p>
+     * Иначе используется уже имеющаяся строка <code>dst</code>,
+     * либо <code>dst</code> добавляется в конец пула констант.
      * @return Индекс строки <code>dst</code> в пуле констант
      */
     static int obfuscateUTF8(
@@ -400,23 +916,24 @@ public class LexicalObfuscator extends Obfuscator implements Opcodes {
             }
             return -1;
         };
-        int i = findUTF8Index.apply(dst);
-        if (i == -1) {
+        int i = findUTF8Index.apply(src);
+        if (i != -1 && !src.equals(dst)) {
             boolean usedByOthers = false;
-            i = findUTF8Index.apply(src);
             for (var other : getUtf8Usage(dstJavaClass, i)) {
                 if (usedByOther.apply(other)) {
                     usedByOthers = true;
                     break;
                 }
             }
-            if (usedByOthers) {
-                i = addConstant(dstPool, new ConstantUtf8(dst));
-            }
-            else {
+            if (!usedByOthers) {
                 dstPool.setConstant(i, new ConstantUtf8(dst));
+                return i;
             }
         }
+        i = findUTF8Index.apply(dst);
+        if (i == -1) {
+            i = addConstant(dstPool, new ConstantUtf8(dst));
+        }
         return i;
     }
 
@@ -472,6 +989,41 @@ public class LexicalObfuscator extends Obfuscator implements Opcodes {
                 dstLVT.getLocalVariableTable()[y].setSignatureIndex(dstDescriptorIndex);
             }
         }
+        if (srcAttr instanceof LocalVariableTypeTable srcLVTT) {
+            var dstLVTT = (LocalVariableTypeTable) dstAttr;
+            for (int y = 0; y < srcLVTT.getTableLength(); ++y) {
+                LocalVariable srcLV = srcLVTT.getLocalVariableTypeTable()[y];
+                String srcSig = srcLV.getSignature();
+                String dstSig = this.patchSignature(srcSig);
+                int dstSignatureIndex = obfuscateUTF8(dstJavaClass, srcSig, dstSig, usedByOthers);
+                dstLVTT.getLocalVariableTypeTable()[y].setSignatureIndex(dstSignatureIndex);
+            }
+        }
+        if (srcAttr instanceof Signature srcSignature) {
+            var dstSignature = (Signature) dstAttr;
+            String srcSig = srcSignature.getSignature();
+            String dstSig = this.patchSignature(srcSig);
+            dstSignature.setSignatureIndex(obfuscateUTF8(dstJavaClass, srcSig, dstSig, usedByOthers));
+        }
+        if (srcAttr instanceof InnerClasses srcInnerClasses) {
+            // Ссылки на сами классы обновляются вместе с пулом констант,
+            // здесь заменяются только простые имена (inner_name_index)
+            var dstInnerClasses = (InnerClasses) dstAttr;
+            var srcPool = srcAttr.getConstantPool();
+            for (int y = 0; y < srcInnerClasses.getInnerClasses().length; ++y) {
+                InnerClass srcInnerClass = srcInnerClasses.getInnerClasses()[y];
+                if (srcInnerClass.getInnerNameIndex() == 0) { continue; }  // Анонимный класс
+                String className = srcPool.getConstantString(srcInnerClass.getInnerClassIndex(), Const.CONSTANT_Class);
+                JavaClass innerJavaClass = this.javaClasses.get(className.replace('/', '.'));
+                if (innerJavaClass == null) { continue; }
+                String translated = this.mappings.get(innerJavaClass).translated;
+                String srcName = srcPool.getConstantUtf8(srcInnerClass.getInnerNameIndex()).getBytes();
+                String dstName = translated.substring(translated.lastIndexOf('.') + 1);
+                dstInnerClasses.getInnerClasses()[y].setInnerNameIndex(
+                    obfuscateUTF8(dstJavaClass, srcName, dstName, usedByOthers)
+                );
+            }
+        }
         if (srcAttr instanceof Code srcCode) {
             var dstCode = (Code) dstAttr;
             for (int i = 0; i < srcCode.getAttributes().length; ++i) {
@@ -570,7 +1122,7 @@ public class LexicalObfuscator extends Obfuscator implements Opcodes {
                         String type = desc.substring(beginning, i.intValue());
                         JavaClass javaClass = this.javaClasses.get(type.replace('/', '.'));
                         if (javaClass != null) {
-                            type = mappings.get(javaClass).translated;
+                            type = mappings.get(javaClass).translated.replace('.', '/');
                         }
                         sb.append(type);
                         sb.append(";"); i.increment();
@@ -594,4 +1146,19 @@ public class LexicalObfuscator extends Obfuscator implements Opcodes {
         return sb.toString();
     }
 
-}
\ No newline at end of file
+    /**
+     * Замена имен классов в сигнатуре (4.7.9.1) класса, поля или метода
+     */
+    private String patchSignature(String signature) {
+        return SignatureTranslator.translate(signature, false, this::translateInternalName);
+    }
+
+    private String translateInternalName(String internalName) {
+        JavaClass javaClass = this.javaClasses.get(internalName.replace('/', '.'));
+        if (javaClass == null) {
+            return internalName;
+        }
+        return this.mappings.get(javaClass).translated.replace('.', '/');
+    }
+
+}
@@ -0,0 +1,82 @@
+package ru.fewizz.obfuscators;
+
+import java.util.Map;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.MethodRemapper;
+import org.objectweb.asm.commons.SimpleRemapper;
+
+/**
+ * Переименование средствами ASM по маппингам {@link LexicalObfuscator}.<p>
+ * Ключи - как у {@link SimpleRemapper}: <code>owner</code> для классов,
+ * <code>owner.name</code> для полей, <code>owner.name(desc)ret</code> для методов
+ * и <code>Ldesc;.name</code> для элементов аннотаций
+ */
+class LexicalRemapper extends SimpleRemapper {
+    private static final String LAMBDA_METAFACTORY = "java/lang/invoke/LambdaMetafactory";
+
+    final Map<String, String> mapping;
+
+    LexicalRemapper(Map<String, String> mapping) {
+        super(mapping);
+        this.mapping = mapping;
+    }
+
+    /**
+     * Простое имя вложенного класса в InnerClasses - новое имя самого класса,
+     * иначе исходное имя осталось бы в пуле констант
+     */
+    @Override
+    public String mapInnerClassName(String name, String ownerName, String innerName) {
+        String remapped = map(name);
+        if (remapped == null) {
+            return innerName;
+        }
+        return remapped.substring(remapped.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Вложенные типы - как в {@link LexicalObfuscator}, см. {@link SignatureTranslator}
+     */
+    @Override
+    public String mapSignature(String signature, boolean typeSignature) {
+        if (signature == null) {
+            return null;
+        }
+        return SignatureTranslator.translate(signature, typeSignature, this::mapType);
+    }
+
+    ClassVisitor createClassRemapper(ClassVisitor classVisitor) {
+        return new ClassRemapper(classVisitor, this) {
+            @Override
+            protected MethodVisitor createMethodRemapper(MethodVisitor methodVisitor) {
+                return new MethodRemapper(methodVisitor, this.remapper) {
+                    /**
+                     * Имя в invokedynamic для лямбды - имя метода функционального интерфейса,
+                     * а его дескриптор - первый статический аргумент LambdaMetafactory
+                     */
+                    @Override
+                    public void visitInvokeDynamicInsn(
+                        String name, String descriptor,
+                        Handle bootstrapMethodHandle, Object... bootstrapMethodArguments
+                    ) {
+                        if (
+                            bootstrapMethodHandle.getOwner().equals(LAMBDA_METAFACTORY) &&
+                            bootstrapMethodArguments.length > 0 &&
+                            bootstrapMethodArguments[0] instanceof Type methodType
+                        ) {
+                            String owner = Type.getReturnType(descriptor).getInternalName();
+                            name = this.remapper.mapMethodName(owner, name, methodType.getDescriptor());
+                        }
+                        super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+                    }
+                };
+            }
+        };
+    }
+
+}
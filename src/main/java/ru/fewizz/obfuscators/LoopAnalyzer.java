@@ -0,0 +1,172 @@
+package ru.fewizz.obfuscators;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.Interpreter;
+import org.objectweb.asm.tree.analysis.Value;
+
+import ru.fewizz.Budget;
+
+/**
+ * {@link Analyzer}, который попутно строит граф потока управления метода
+ * и находит в нем циклы - статическая оценка "горячего" кода без профиля.<p>
+ * Обратная дуга - дуга на инструкцию, лежащую на текущем пути обхода в глубину
+ * (код javac сводимый, и такая инструкция - заголовок цикла).
+ * Тело цикла - инструкции, из которых достижим конец обратной дуги, не проходя
+ * через заголовок. Глубина вложенности инструкции - число циклов (по заголовкам),
+ * в тела которых она входит. Для несводимого графа глубина может быть завышена,
+ * и преобразований становится только меньше.<p>
+ * Ветвление по константе (<code>iconst_0; ifeq</code> - как в ложных ветвлениях
+ * {@link ControlFlowObfuscator}) дает только одну дугу, иначе мертвые переходы
+ * назад выглядели бы как циклы.<p>
+ * На каждой дуге проверяется бюджет класса ({@link Budget#check()})
+ */
+final class LoopAnalyzer<V extends Value> extends Analyzer<V> implements Opcodes {
+
+    private InsnList instructions;
+    private List<Set<Integer>> successors;
+    private int[] loopDepths;
+
+    LoopAnalyzer(Interpreter<V> interpreter) {
+        super(interpreter);
+    }
+
+    @Override
+    protected void init(String owner, MethodNode method) throws AnalyzerException {
+        this.instructions = method.instructions;
+        int size = method.instructions.size();
+        this.successors = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            this.successors.add(new HashSet<>());
+        }
+    }
+
+    @Override
+    protected void newControlFlowEdge(int insnIndex, int successorIndex) {
+        // Анализ огромного метода сам может не уложиться в бюджет
+        Budget.check();
+        AbstractInsnNode insn = this.instructions.get(insnIndex);
+        if (
+            (insn.getOpcode() == IFEQ || insn.getOpcode() == IFNE) &&
+            insn.getPrevious() != null && insn.getPrevious().getOpcode() == ICONST_0
+        ) {
+            int realSuccessor = insn.getOpcode() == IFEQ ?
+                this.instructions.indexOf(((JumpInsnNode) insn).label) :
+                insnIndex + 1;
+            if (successorIndex != realSuccessor) {
+                return;
+            }
+        }
+        this.successors.get(insnIndex).add(successorIndex);
+    }
+
+    @Override
+    protected boolean newControlFlowExceptionEdge(int insnIndex, int successorIndex) {
+        this.successors.get(insnIndex).add(successorIndex);
+        return true;
+    }
+
+    @Override
+    public Frame<V>[] analyze(String owner, MethodNode method) throws AnalyzerException {
+        Frame<V>[] frames = super.analyze(owner, method);
+        this.loopDepths = this.computeLoopDepths(frames.length);
+        return frames;
+    }
+
+    /**
+     * @return Глубина вложенности в циклы инструкции с индексом <code>insnIndex</code>
+     *  на момент анализа, 0 - вне циклов
+     */
+    int getLoopDepth(int insnIndex) {
+        return this.loopDepths[insnIndex];
+    }
+
+    private int[] computeLoopDepths(int size) {
+        int[] depths = new int[size];
+        if (size == 0) {
+            return depths;
+        }
+
+        // Заголовок цикла -> начала обратных дуг. Обход в глубину без рекурсии,
+        // в методе могут быть десятки тысяч инструкций
+        Map<Integer, List<Integer>> backEdges = new LinkedHashMap<>();
+        BitSet visited = new BitSet(size);
+        BitSet onPath = new BitSet(size);
+        Deque<int[]> stack = new ArrayDeque<>();
+        List<List<Integer>> successorLists = new ArrayList<>(size);
+        for (Set<Integer> s : this.successors) {
+            successorLists.add(new ArrayList<>(s));
+        }
+        stack.push(new int[] { 0, 0 });
+        visited.set(0);
+        onPath.set(0);
+        while (!stack.isEmpty()) {
+            int[] top = stack.peek();
+            List<Integer> next = successorLists.get(top[0]);
+            if (top[1] == next.size()) {
+                onPath.clear(top[0]);
+                stack.pop();
+                continue;
+            }
+            int successor = next.get(top[1]++);
+            if (onPath.get(successor)) {
+                backEdges.computeIfAbsent(successor, h -> new ArrayList<>()).add(top[0]);
+            }
+            else if (!visited.get(successor)) {
+                visited.set(successor);
+                onPath.set(successor);
+                stack.push(new int[] { successor, 0 });
+            }
+        }
+        if (backEdges.isEmpty()) {
+            return depths;
+        }
+
+        List<List<Integer>> predecessors = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            predecessors.add(new ArrayList<>());
+        }
+        for (int i = 0; i < size; ++i) {
+            for (int successor : successorLists.get(i)) {
+                predecessors.get(successor).add(i);
+            }
+        }
+
+        // Циклы с общим заголовком считаются одним циклом
+        for (var entry : backEdges.entrySet()) {
+            int header = entry.getKey();
+            BitSet body = new BitSet(size);
+            body.set(header);
+            Deque<Integer> queue = new ArrayDeque<>(entry.getValue());
+            while (!queue.isEmpty()) {
+                int insn = queue.poll();
+                if (body.get(insn)) {
+                    continue;
+                }
+                body.set(insn);
+                queue.addAll(predecessors.get(insn));
+            }
+            for (int i = body.nextSetBit(0); i >= 0; i = body.nextSetBit(i + 1)) {
+                ++depths[i];
+            }
+        }
+        return depths;
+    }
+
+}
@@ -1,13 +1,16 @@
 package ru.fewizz.obfuscators;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.function.Supplier;
 
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.tree.AbstractInsnNode;
-import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.FieldInsnNode;
 import org.objectweb.asm.tree.IincInsnNode;
 import org.objectweb.asm.tree.InsnList;
@@ -19,30 +22,117 @@ import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.tree.TypeInsnNode;
 import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
 
 import ru.fewizz.Obfuscator;
 
-public class NaiveStringConstantsObfuscator extends Obfuscator implements Opcodes {
+public final class NaiveStringConstantsObfuscator extends Obfuscator implements Opcodes {
+
+    // Строки в циклах глубже этой вложенности не шифруются: __deobf вызывается
+    // при каждом выполнении ldc. Настройка maxLoopDepth, -1 - без ограничений
+    private final int maxLoopDepth = Integer.parseInt(getOption("maxLoopDepth", "-1"));
+
+    // Счетчики вызовов __deobf в обфусцированной программе, см. DecoderInstrumentation
+    private final boolean counters = Boolean.parseBoolean(getOption("counters", "false"));
+
+    @Override
+    public boolean isPerClass() {
+        return true;
+    }
+
+    @Override
+    public List<byte[]> getAddedClasses() throws Exception {
+        return this.counters ? DecoderInstrumentation.loadRuntimeClasses() : List.of();
+    }
 
     @Override
     public Supplier<byte[]> getObfuscatedClassSupplier(byte[] classFileBytes) {
-        var classNode = new ClassNode();
-        new ClassReader(classFileBytes).accept(classNode, 0);
-
-        for (var methodNode : classNode.methods) {
-            for (AbstractInsnNode insn : methodNode.instructions) {
-                if (insn instanceof LdcInsnNode ldc && ldc.cst instanceof String) {
-                    methodNode.instructions.insert(ldc, new MethodInsnNode(
-                        INVOKESTATIC,
-                        classNode.name,
-                        "__deobf",
-                        "(Ljava/lang/String;)Ljava/lang/String;"
-                    ));
-                    ldc.cst = obfuscateString((String) ldc.cst);
+        var classReader = new ClassReader(classFileBytes);
+
+        // Класс без строковых ldc возвращается как есть
+        Set<String> methodsWithStrings = ClassFileScanner.findMethodsWithStringLdc(classReader);
+        // Методы из правил keep (см. Rules) не изменяются
+        methodsWithStrings.removeIf(method ->
+            getRules().isMemberKept(classReader.getClassName(), method.substring(0, method.indexOf('(')))
+        );
+        String className = classReader.getClassName();
+        if (methodsWithStrings.isEmpty() || this.counters && DecoderInstrumentation.isRuntimeClass(className)) {
+            return () -> classFileBytes;
+        }
+
+        // Writer, созданный из reader'а, переиспользует пул констант, а методы,
+        // чей MethodVisitor получен напрямую от него, копирует побайтово.
+        // Фреймы пересчитываются только для методов, прошедших через MethodNode
+        var classWriter = new ClassWriter(classReader, ClassWriter.COMPUTE_FRAMES);
+        ClassVisitor target = this.counters ?
+            DecoderInstrumentation.addCounters(classWriter, className, (classReader.getAccess() & ACC_INTERFACE) != 0) :
+            classWriter;
+        var visitor = new ClassVisitor(ASM9, target) {
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                MethodVisitor methodWriter = super.visitMethod(access, name, descriptor, signature, exceptions);
+                if (!methodsWithStrings.contains(name + descriptor)) {
+                    return methodWriter;
+                }
+                return new MethodNode(ASM9, access, name, descriptor, signature, exceptions) {
+                    @Override
+                    public void visitEnd() {
+                        obfuscateStrings(className, this, maxLoopDepth);
+                        this.accept(methodWriter);
+                    }
+                };
+            }
+
+            @Override
+            public void visitEnd() {
+                MethodNode deobfMethod = createDeobfMethod();
+                if (counters) {
+                    DecoderInstrumentation.instrumentDecoder(className, deobfMethod, 3);
                 }
+                deobfMethod.accept(this.cv);
+                super.visitEnd();
+            }
+
+        };
+
+        classReader.accept(visitor, 0);
+        return () -> classWriter.toByteArray();
+    }
+
+    private static void obfuscateStrings(String className, MethodNode methodNode, int maxLoopDepth) {
+        // BasicInterpreter не загружает классы, а больше LoopAnalyzer'у ничего не нужно
+        var analyzer = new LoopAnalyzer<>(new BasicInterpreter());
+        if (maxLoopDepth >= 0) {
+            try {
+                analyzer.analyze(className, methodNode);
+            } catch (AnalyzerException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        // Индексы инструкций сдвигаются при вставке, поэтому ldc собираются заранее
+        List<LdcInsnNode> ldcs = new ArrayList<>();
+        for (int i = 0; i < methodNode.instructions.size(); ++i) {
+            if (
+                methodNode.instructions.get(i) instanceof LdcInsnNode ldc && ldc.cst instanceof String &&
+                (maxLoopDepth < 0 || analyzer.getLoopDepth(i) <= maxLoopDepth)
+            ) {
+                ldcs.add(ldc);
             }
         }
+        for (LdcInsnNode ldc : ldcs) {
+            methodNode.instructions.insert(ldc, new MethodInsnNode(
+                INVOKESTATIC,
+                className,
+                "__deobf",
+                "(Ljava/lang/String;)Ljava/lang/String;"
+            ));
+            ldc.cst = obfuscateString((String) ldc.cst);
+        }
+    }
 
+    private static MethodNode createDeobfMethod() {
         /*
         Добавление статического метода `__deobf` для деобфускации строк
         private static String __deobf(String str) {
@@ -115,11 +205,7 @@ public class NaiveStringConstantsObfuscator extends Obfuscator implements Opcode
             null, null
         );
         deobfMethod.instructions = deobfInsns;
-        classNode.methods.add(deobfMethod);
-
-        var classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
-        classNode.accept(classWriter);
-        return () -> classWriter.toByteArray();
+        return deobfMethod;
     }
 
     private static String obfuscateString(String str) {
@@ -0,0 +1,42 @@
+package ru.fewizz.obfuscators;
+
+import java.util.function.Predicate;
+
+/**
+ * Выдает кратчайшие свободные имена в порядке a, b, ..., z, aa, ab, ...<p>
+ * Каждый экземпляр - отдельная область видимости имен.
+ * Результат зависит только от порядка вызовов, поэтому при одинаковом
+ * порядке обхода классов имена получаются одинаковыми от запуска к запуску
+ */
+class NameAllocator {
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz";
+
+    private int nextIndex = 0;
+
+    /**
+     * @param isTaken Проверка, что имя уже занято в этой области видимости
+     *  (например, унаследованным членом класса), такие имена пропускаются
+     */
+    String next(Predicate<String> isTaken) {
+        String name;
+        do {
+            name = nameOf(this.nextIndex++);
+        } while (isTaken.test(name));
+        return name;
+    }
+
+    /**
+     * Биективная запись числа в 26-ричной системе: 0 -> a, 25 -> z, 26 -> aa
+     */
+    static String nameOf(int index) {
+        var sb = new StringBuilder();
+        ++index;
+        while (index > 0) {
+            --index;
+            sb.append(ALPHABET.charAt(index % ALPHABET.length()));
+            index /= ALPHABET.length();
+        }
+        return sb.reverse().toString();
+    }
+
+}
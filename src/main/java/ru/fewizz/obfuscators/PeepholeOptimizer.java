@@ -0,0 +1,520 @@
+package ru.fewizz.obfuscators;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+import ru.fewizz.Budget;
+import ru.fewizz.Obfuscator;
+import ru.fewizz.Rules;
+
+/**
+ * Щелевая оптимизация кода, оставленного предыдущими обфускаторами
+ * (прежде всего подгонки стека и переменных в ложных ветвлениях
+ * {@link ControlFlowObfuscator}). Ставится последним этапом:
+ * <ul>
+ * <li><code>aconst_null; checkcast</code> - приведение <code>null</code> ничего не делает
+ *  и не нужно верификатору</li>
+ * <li>Мертвые записи в локальные переменные (значение не читается ни на одном пути,
+ *  включая ложные ветвления и обработчики исключений) заменяются на <code>pop</code></li>
+ * <li>Значение без побочных эффектов, сразу снимаемое <code>pop</code>, удаляется вместе с ним</li>
+ * <li>В никогда не исполняемом продолжении <code>iconst_0; ifeq</code> (ложное ветвление)
+ *  <code>pop</code> и следующая за ним константа того же примитивного вида удаляются:
+ *  там важен только вид значения на стеке, а не оно само</li>
+ * <li>Недостижимый код удаляется (<code>ClassWriter</code> заменил бы его на
+ *  <code>nop</code>...<code>athrow</code>)</li>
+ * <li>Одинаковые хвосты перед <code>goto</code> на одну метку (ложные ветвления
+ *  в одно место) сливаются: второй переходит на начало первого</li>
+ * </ul>
+ * Ложные ветвления при этом остаются, меняется только их размер.
+ * Анализ идет на {@link BasicInterpreter}, классы программы не загружаются,
+ * а фреймы пересчитываются только для измененных методов. Если фреймы пересчитать нельзя
+ * (нужен общий предок классов, которых нет на classpath обфускатора), класс остается как есть.
+ * Правило <code>keep</code> ({@link Rules}) оставляет метод нетронутым
+ */
+public class PeepholeOptimizer extends Obfuscator implements Opcodes {
+
+    // Слияние хвоста из одной инструкции не окупает новый фрейм на метке
+    private static final int MIN_TAIL = 2;
+
+    @Override
+    public boolean isPerClass() {
+        return true;
+    }
+
+    @Override
+    public Supplier<byte[]> getObfuscatedClassSupplier(byte[] classFileBytes) {
+        var classReader = new ClassReader(classFileBytes);
+        var classNode = new ClassNode();
+        classReader.accept(classNode, 0);
+
+        Rules.StageRules rules = getRules();
+        String className = classNode.name;
+        Set<String> changed = new HashSet<>();
+        for (MethodNode methodNode : classNode.methods) {
+            if (!rules.isMemberKept(className.replace('/', '.'), methodNode.name) && optimize(className, methodNode)) {
+                changed.add(methodNode.name + methodNode.desc);
+            }
+        }
+        if (changed.isEmpty()) {
+            return () -> classFileBytes;
+        }
+
+        // Как в NaiveStringConstantsObfuscator: нетронутые методы копируются побайтово
+        var classWriter = new ClassWriter(classReader, ClassWriter.COMPUTE_FRAMES);
+        classReader.accept(new ClassVisitor(ASM9, classWriter) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                MethodVisitor methodWriter = super.visitMethod(access, name, descriptor, signature, exceptions);
+                if (!changed.contains(name + descriptor)) {
+                    return methodWriter;
+                }
+                return new MethodNode(ASM9, access, name, descriptor, signature, exceptions) {
+                    @Override
+                    public void visitEnd() {
+                        optimize(className, this);
+                        this.accept(methodWriter);
+                    }
+                };
+            }
+        }, 0);
+        try {
+            byte[] result = classWriter.toByteArray();
+            return () -> result;
+        } catch (TypeNotPresentException e) {
+            return () -> classFileBytes;
+        }
+    }
+
+    /**
+     * Результат зависит только от метода, так что для второго прохода он повторяется в точности
+     * @return Изменился ли метод
+     */
+    static boolean optimize(String owner, MethodNode methodNode) {
+        // В конструкторе неинициализированный this нельзя трогать
+        if (methodNode.instructions.size() == 0 || methodNode.name.equals("<init>")) {
+            return false;
+        }
+        for (AbstractInsnNode insn : methodNode.instructions) {
+            // Подпрограммы старых javac анализ живости не учитывает
+            if (insn.getOpcode() == JSR || insn.getOpcode() == RET) {
+                return false;
+            }
+        }
+        Budget.check();
+        boolean changed = removeNullCasts(methodNode.instructions);
+        try {
+            changed |= removeUnreachable(owner, methodNode);
+            changed |= removeDeadStores(owner, methodNode);
+            changed |= removePushPops(methodNode.instructions);
+            changed |= removeFakePopPushes(owner, methodNode);
+            changed |= removePushPops(methodNode.instructions);
+            changed |= mergeTails(owner, methodNode);
+        } catch (AnalyzerException e) {
+            // Метод, который не разбирает анализатор, оптимизируется только локально
+            changed |= removePushPops(methodNode.instructions);
+        }
+        return changed;
+    }
+
+    /**
+     * @return Предыдущая инструкция, если на нее нельзя попасть иначе, чем из нее же
+     *  (между ними нет метки), либо <code>null</code>
+     */
+    private static AbstractInsnNode previous(AbstractInsnNode insn) {
+        for (insn = insn.getPrevious(); insn != null; insn = insn.getPrevious()) {
+            if (insn instanceof LabelNode) {
+                return null;
+            }
+            if (!(insn instanceof LineNumberNode || insn instanceof FrameNode)) {
+                return insn;
+            }
+        }
+        return null;
+    }
+
+    private static boolean removeNullCasts(InsnList insns) {
+        boolean changed = false;
+        for (AbstractInsnNode insn : insns.toArray()) {
+            if (insn.getOpcode() == CHECKCAST) {
+                AbstractInsnNode previous = previous(insn);
+                if (previous != null && previous.getOpcode() == ACONST_NULL) {
+                    insns.remove(insn);
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    private static boolean removeUnreachable(String owner, MethodNode methodNode) throws AnalyzerException {
+        InsnList insns = methodNode.instructions;
+        Frame<BasicValue>[] frames = new Analyzer<>(new BasicInterpreter()).analyze(owner, methodNode);
+        boolean changed = false;
+        AbstractInsnNode[] array = insns.toArray();
+        for (int i = 0; i < array.length; ++i) {
+            // Метки нужны блокам try и таблицам отладочной информации
+            if (frames[i] == null && array[i].getOpcode() >= 0) {
+                insns.remove(array[i]);
+                changed = true;
+            }
+        }
+        // Блок try, от которого ничего не осталось, запрещен форматом класс-файла
+        methodNode.tryCatchBlocks.removeIf(block -> {
+            for (AbstractInsnNode insn = block.start; insn != block.end; insn = insn.getNext()) {
+                if (insn.getOpcode() >= 0) {
+                    return false;
+                }
+            }
+            return true;
+        });
+        return changed;
+    }
+
+    private static boolean removeDeadStores(String owner, MethodNode methodNode) throws AnalyzerException {
+        InsnList insns = methodNode.instructions;
+        int size = insns.size();
+        List<List<Integer>> successors = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            successors.add(new ArrayList<>());
+        }
+        // Все дуги, включая ложные ветвления: верификатор проходит и по ним
+        var analyzer = new Analyzer<>(new BasicInterpreter()) {
+            @Override
+            protected void newControlFlowEdge(int insnIndex, int successorIndex) {
+                successors.get(insnIndex).add(successorIndex);
+            }
+
+            @Override
+            protected boolean newControlFlowExceptionEdge(int insnIndex, int successorIndex) {
+                successors.get(insnIndex).add(successorIndex);
+                return true;
+            }
+        };
+        Frame<BasicValue>[] frames = analyzer.analyze(owner, methodNode);
+
+        // Живые на входе в инструкцию переменные, до неподвижной точки.
+        // Обработчик исключения считается преемником, как обычная дуга,
+        // и переменные, которые он читает, остаются живыми и после записи
+        BitSet[] liveIn = new BitSet[size];
+        for (int i = 0; i < size; ++i) {
+            liveIn[i] = new BitSet();
+        }
+        boolean changed = true;
+        while (changed) {
+            Budget.check();
+            changed = false;
+            for (int i = size - 1; i >= 0; --i) {
+                if (frames[i] == null) {
+                    continue;
+                }
+                BitSet live = liveOut(successors.get(i), liveIn);
+                AbstractInsnNode insn = insns.get(i);
+                if (insn instanceof VarInsnNode varInsn) {
+                    if (isStore(varInsn.getOpcode())) {
+                        live.clear(varInsn.var);
+                    }
+                    else {
+                        live.set(varInsn.var);
+                    }
+                }
+                else if (insn.getOpcode() == IINC) {
+                    live.set(((IincInsnNode) insn).var);
+                }
+                if (!live.equals(liveIn[i])) {
+                    liveIn[i] = live;
+                    changed = true;
+                }
+            }
+        }
+
+        boolean removed = false;
+        for (int i = 0; i < size; ++i) {
+            if (
+                frames[i] != null && insns.get(i) instanceof VarInsnNode store && isStore(store.getOpcode()) &&
+                !liveOut(successors.get(i), liveIn).get(store.var)
+            ) {
+                boolean isWide = store.getOpcode() == LSTORE || store.getOpcode() == DSTORE;
+                insns.set(store, new InsnNode(isWide ? POP2 : POP));
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    private static BitSet liveOut(List<Integer> successors, BitSet[] liveIn) {
+        var live = new BitSet();
+        for (int successor : successors) {
+            live.or(liveIn[successor]);
+        }
+        return live;
+    }
+
+    private static boolean isStore(int opcode) {
+        return opcode >= ISTORE && opcode <= ASTORE;
+    }
+
+    /**
+     * @return Размер (1 или 2) значения, которое инструкция кладет на стек без побочных
+     *  эффектов и исключений, либо 0
+     */
+    private static int pushedSize(AbstractInsnNode insn) {
+        switch (insn.getOpcode()) {
+            case ACONST_NULL, ICONST_M1, ICONST_0, ICONST_1, ICONST_2, ICONST_3, ICONST_4, ICONST_5,
+                 FCONST_0, FCONST_1, FCONST_2, BIPUSH, SIPUSH, ILOAD, FLOAD, ALOAD, DUP:
+                return 1;
+            case LCONST_0, LCONST_1, DCONST_0, DCONST_1, LLOAD, DLOAD, DUP2:
+                return 2;
+            case LDC:
+                // Загрузка класса или method handle может бросить исключение
+                Object cst = ((LdcInsnNode) insn).cst;
+                if (cst instanceof Integer || cst instanceof Float || cst instanceof String) {
+                    return 1;
+                }
+                return cst instanceof Long || cst instanceof Double ? 2 : 0;
+            default:
+                return 0;
+        }
+    }
+
+    private static boolean removePushPops(InsnList insns) {
+        boolean changed = false;
+        boolean found = true;
+        // Удаление пары может сделать соседними следующую (dup; iload; pop; pop)
+        while (found) {
+            found = false;
+            for (AbstractInsnNode insn : insns.toArray()) {
+                int popped = insn.getOpcode() == POP ? 1 : insn.getOpcode() == POP2 ? 2 : 0;
+                if (popped == 0) {
+                    continue;
+                }
+                AbstractInsnNode previous = previous(insn);
+                if (previous != null && pushedSize(previous) == popped) {
+                    insns.remove(previous);
+                    insns.remove(insn);
+                    found = true;
+                }
+            }
+            changed |= found;
+        }
+        return changed;
+    }
+
+    /**
+     * @return Лежит ли инструкция в продолжении <code>iconst_0; ifeq</code>, куда исполнение не попадает
+     */
+    private static boolean isInFakeBranch(AbstractInsnNode insn) {
+        for (AbstractInsnNode previous = previous(insn); previous != null; previous = previous(previous)) {
+            if (previous.getOpcode() == IFEQ) {
+                AbstractInsnNode condition = previous(previous);
+                return condition != null && condition.getOpcode() == ICONST_0;
+            }
+            if (previous instanceof JumpInsnNode || previous.getOpcode() == ATHROW || previous.getOpcode() >= IRETURN && previous.getOpcode() <= RETURN) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static boolean removeFakePopPushes(String owner, MethodNode methodNode) throws AnalyzerException {
+        InsnList insns = methodNode.instructions;
+        Frame<BasicValue>[] frames = new Analyzer<>(new BasicInterpreter()).analyze(owner, methodNode);
+        Set<AbstractInsnNode> removed = new LinkedHashSet<>();
+        for (int i = 0; i < frames.length; ++i) {
+            AbstractInsnNode pop = insns.get(i);
+            if (frames[i] == null || pop.getOpcode() != POP && pop.getOpcode() != POP2) {
+                continue;
+            }
+            AbstractInsnNode push = pop.getNext();
+            if (push == null || removed.contains(pop) || !isInFakeBranch(pop)) {
+                continue;
+            }
+            // Ссылку заменить нельзя: null подходит под любой тип, а снятое значение - нет
+            BasicValue popped = frames[i].getStack(frames[i].getStackSize() - 1);
+            BasicValue pushed = switch (push.getOpcode()) {
+                case ICONST_M1, ICONST_0, ICONST_1, ICONST_2, ICONST_3, ICONST_4, ICONST_5, BIPUSH, SIPUSH -> BasicValue.INT_VALUE;
+                case FCONST_0, FCONST_1, FCONST_2 -> BasicValue.FLOAT_VALUE;
+                case LCONST_0, LCONST_1 -> BasicValue.LONG_VALUE;
+                case DCONST_0, DCONST_1 -> BasicValue.DOUBLE_VALUE;
+                default -> null;
+            };
+            if (pushed != null && pushed.equals(popped) && (pop.getOpcode() == POP2) == (pushed.getSize() == 2)) {
+                removed.add(pop);
+                removed.add(push);
+            }
+        }
+        for (AbstractInsnNode insn : removed) {
+            insns.remove(insn);
+        }
+        return !removed.isEmpty();
+    }
+
+    /**
+     * Может ли инструкция входить в сливаемый хвост: не бросает исключений
+     * (поэтому неважно, в каком блоке try она окажется) и не читает переменные
+     * (поэтому неважно, чьи значения в них при входе в общий хвост)
+     */
+    private static boolean isTailInsn(AbstractInsnNode insn) {
+        int opcode = insn.getOpcode();
+        return
+            opcode == NOP || opcode == POP || opcode == POP2 || opcode == CHECKCAST ||
+            isStore(opcode) ||
+            pushedSize(insn) > 0 && !(insn instanceof VarInsnNode) && opcode != DUP && opcode != DUP2;
+    }
+
+    private static boolean isSameInsn(AbstractInsnNode a, AbstractInsnNode b) {
+        if (a.getOpcode() != b.getOpcode()) {
+            return false;
+        }
+        if (a instanceof VarInsnNode varA) {
+            return varA.var == ((VarInsnNode) b).var;
+        }
+        if (a instanceof IntInsnNode intA) {
+            return intA.operand == ((IntInsnNode) b).operand;
+        }
+        if (a instanceof LdcInsnNode ldcA) {
+            return ldcA.cst.equals(((LdcInsnNode) b).cst);
+        }
+        if (a instanceof TypeInsnNode typeA) {
+            return typeA.desc.equals(((TypeInsnNode) b).desc);
+        }
+        return true;
+    }
+
+    /**
+     * @return Инструкции перед <code>goto</code>, которые можно слить, в порядке исполнения
+     */
+    private static List<AbstractInsnNode> collectTail(JumpInsnNode jump) {
+        List<AbstractInsnNode> tail = new ArrayList<>();
+        for (AbstractInsnNode insn = jump.getPrevious(); insn != null && isTailInsn(insn); insn = insn.getPrevious()) {
+            tail.add(0, insn);
+        }
+        return tail;
+    }
+
+    /**
+     * Общий хвост из <code>length</code> последних инструкций корректен, если стек на входе
+     * в него совпадает с точностью до видов значений, а значения с входа только снимаются <code>pop</code>:
+     * записи и приведения работают с константами, положенными в самом хвосте
+     */
+    private static boolean canMerge(
+        List<AbstractInsnNode> tail, List<AbstractInsnNode> otherTail, int length,
+        Map<AbstractInsnNode, Frame<BasicValue>> frames
+    ) {
+        Frame<BasicValue> frame = frames.get(tail.get(tail.size() - length));
+        Frame<BasicValue> otherFrame = frames.get(otherTail.get(otherTail.size() - length));
+        if (frame == null || otherFrame == null || frame.getStackSize() != otherFrame.getStackSize()) {
+            return false;
+        }
+        for (int i = 0; i < frame.getStackSize(); ++i) {
+            if (!frame.getStack(i).equals(otherFrame.getStack(i))) {
+                return false;
+            }
+        }
+        int depth = 0;
+        for (AbstractInsnNode insn : tail.subList(tail.size() - length, tail.size())) {
+            int opcode = insn.getOpcode();
+            if (opcode == POP || opcode == POP2) {
+                depth -= opcode == POP ? 1 : 2;
+                continue;
+            }
+            int consumed = isStore(opcode) ? (opcode == LSTORE || opcode == DSTORE ? 2 : 1) : opcode == CHECKCAST ? 1 : 0;
+            if (depth < consumed) {
+                return false;
+            }
+            depth += pushedSize(insn) - consumed;
+        }
+        return true;
+    }
+
+    private static boolean mergeTails(String owner, MethodNode methodNode) throws AnalyzerException {
+        InsnList insns = methodNode.instructions;
+        Frame<BasicValue>[] frameArray = new Analyzer<>(new BasicInterpreter()).analyze(owner, methodNode);
+        // Вставка меток сдвигает индексы, поэтому фреймы привязываются к инструкциям
+        Map<AbstractInsnNode, Frame<BasicValue>> frames = new IdentityHashMap<>();
+        for (int i = 0; i < frameArray.length; ++i) {
+            frames.put(insns.get(i), frameArray[i]);
+        }
+
+        // Метка перехода -> переходы с хвостами, с которыми сливаются следующие
+        Map<LabelNode, List<JumpInsnNode>> targets = new LinkedHashMap<>();
+        Map<JumpInsnNode, List<AbstractInsnNode>> tails = new IdentityHashMap<>();
+        boolean changed = false;
+        for (AbstractInsnNode insn : insns.toArray()) {
+            if (insn.getOpcode() != GOTO || frames.get(insn) == null) {
+                continue;
+            }
+            var jump = (JumpInsnNode) insn;
+            List<AbstractInsnNode> tail = collectTail(jump);
+            List<JumpInsnNode> candidates = targets.computeIfAbsent(jump.label, label -> new ArrayList<>());
+
+            JumpInsnNode best = null;
+            int bestLength = MIN_TAIL - 1;
+            for (JumpInsnNode candidate : candidates) {
+                List<AbstractInsnNode> candidateTail = tails.get(candidate);
+                int length = 0;
+                while (
+                    length < tail.size() && length < candidateTail.size() &&
+                    isSameInsn(tail.get(tail.size() - 1 - length), candidateTail.get(candidateTail.size() - 1 - length))
+                ) {
+                    ++length;
+                }
+                for (; length > bestLength; --length) {
+                    if (canMerge(tail, candidateTail, length, frames)) {
+                        best = candidate;
+                        bestLength = length;
+                        break;
+                    }
+                }
+            }
+            if (best == null) {
+                candidates.add(jump);
+                tails.put(jump, tail);
+                continue;
+            }
+
+            List<AbstractInsnNode> bestTail = tails.get(best);
+            var start = new LabelNode();
+            insns.insertBefore(bestTail.get(bestTail.size() - bestLength), start);
+            for (AbstractInsnNode merged : tail.subList(tail.size() - bestLength, tail.size())) {
+                insns.remove(merged);
+            }
+            jump.label = start;
+            changed = true;
+        }
+        return changed;
+    }
+
+}
@@ -0,0 +1,621 @@
+package ru.fewizz.obfuscators;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.RecordComponentNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+
+import ru.fewizz.LibraryIndex;
+import ru.fewizz.Obfuscator;
+import ru.fewizz.Rules;
+import ru.fewizz.SymbolTable;
+
+/**
+ * Удаляет классы, методы и поля, недостижимые из корней.
+ * Стоит ставить первым, чтобы остальные обфускаторы не тратили время на мертвый код.<p>
+ * Корни задаются настройками (см. {@link Obfuscator#getOption}):
+ * <ul>
+ *     <li><code>keepMains</code> - методы <code>main(String[])</code> всех классов, по умолчанию <code>true</code></li>
+ *     <li><code>keep</code> - правила через запятую</li>
+ *     <li><code>keepFile</code> - файл с правилами, по одному в строке, <code>#</code> - комментарий</li>
+ *     <li><code>reflectionConfig</code> - файлы <code>reflect-config.json</code> через запятую</li>
+ * </ul>
+ * Правило - шаблон имени класса (<code>x.y.Z</code>, <code>*</code> - часть имени без точек,
+ * <code>**</code> - любая часть), сохраняющий класс целиком,
+ * либо <code>шаблон#имя</code>, сохраняющий члены класса с этим именем.
+ * Корнями также считаются классы и члены из правил <code>keep</code> общего файла правил
+ * ({@link Rules}) и классы, исключенные правилами <code>skip</code>.<p>
+ * Анализ консервативный: вызов виртуального метода делает достижимыми все
+ * методы с таким же именем и дескриптором в достижимых классах, а методы,
+ * переопределяющие библиотечные, сохраняются всегда.
+ * Если корней нет, ничего не удаляется
+ */
+public final class Shrinker extends Obfuscator implements Opcodes {
+    private static final Logger LOGGER = Logger.getLogger("obfuscator");
+
+    // Члены класса, к которым может обращаться сама JVM или библиотека через рефлексию
+    private static final Set<String> IMPLICITLY_USED_MEMBERS = Set.of(
+        "serialVersionUID", "serialPersistentFields",
+        "writeObject", "readObject", "readObjectNoData", "writeReplace", "readResolve"
+    );
+
+    record Rule(Pattern classPattern, String memberName) {}
+
+    private final List<Rule> rules = new ArrayList<>();
+    private final boolean keepMains;
+
+    // Внутренние имена (x/y/z) -> классы
+    final Map<String, ClassNode> classNodes = new HashMap<>();
+    final Set<String> reachableClasses = new HashSet<>();
+    // Ключи вида owner.name:descriptor
+    final Set<String> reachableMembers = new HashSet<>();
+
+    // Имена и дескрипторы (name:descriptor) вызываемых виртуальных методов
+    private final Set<String> virtualSignatures = new HashSet<>();
+    private final Map<String, List<MethodNode>> methodsBySignature = new HashMap<>();
+    private final Map<MethodNode, ClassNode> methodOwners = new HashMap<>();
+
+    // Классы, исключенные правилами skip: копируются как есть и считаются корнями
+    private final Set<String> skippedClasses = new HashSet<>();
+
+    private final Deque<ClassNode> classQueue = new ArrayDeque<>();
+    private final Deque<MethodNode> methodQueue = new ArrayDeque<>();
+    private boolean shrink = true;
+
+    public Shrinker() throws IOException {
+        this.keepMains = Boolean.parseBoolean(getOption("keepMains", "true"));
+        for (String rule : getOption("keep", "").split(",")) {
+            this.addRule(rule);
+        }
+        String keepFile = getOption("keepFile", null);
+        if (keepFile != null) {
+            for (String line : Files.readAllLines(Paths.get(keepFile))) {
+                this.addRule(line);
+            }
+        }
+        String reflectionConfig = getOption("reflectionConfig", "");
+        for (String file : reflectionConfig.split(",")) {
+            if (!file.isBlank()) {
+                this.addReflectionConfig(Files.readString(Paths.get(file.strip())));
+            }
+        }
+    }
+
+    public Shrinker(boolean keepMains, List<String> rules) {
+        this.keepMains = keepMains;
+        rules.forEach(this::addRule);
+    }
+
+    void addRule(String rule) {
+        rule = rule.strip();
+        if (rule.isEmpty() || rule.startsWith("#")) {
+            return;
+        }
+        String memberName = null;
+        int hash = rule.indexOf('#');
+        if (hash != -1) {
+            memberName = rule.substring(hash + 1);
+            rule = rule.substring(0, hash);
+        }
+        this.rules.add(new Rule(Rules.compileClassPattern(rule), memberName));
+    }
+
+    /**
+     * Конфигурация рефлексии в формате GraalVM разбирается консервативно:
+     * каждое значение <code>"name"</code> считается именем класса, сохраняемого целиком
+     */
+    void addReflectionConfig(String json) {
+        Matcher matcher = Pattern.compile("\"name\"\\s*:\\s*\"([^\"]+)\"").matcher(json);
+        while (matcher.find()) {
+            this.rules.add(new Rule(Pattern.compile(Pattern.quote(matcher.group(1))), null));
+        }
+    }
+
+    @Override
+    public Supplier<byte[]> getObfuscatedClassSupplier(byte[] classFileBytes) throws Exception {
+        var classNode = new ClassNode();
+        // Модели всех классов живут до конца работы, поэтому строки - из общей таблицы
+        SymbolTable.shared().newClassReader(classFileBytes).accept(classNode, 0);
+        this.classNodes.put(classNode.name, classNode);
+
+        return () -> {
+            if (!this.shrink) {
+                return classFileBytes;
+            }
+            if (!this.reachableClasses.contains(classNode.name)) {
+                return null;
+            }
+            boolean changed = false;
+            changed |= classNode.fields.removeIf(f -> !this.isReachable(classNode, f.name, f.desc));
+            changed |= classNode.methods.removeIf(m -> !this.isReachable(classNode, m.name, m.desc));
+            changed |= removeMissingClasses(classNode);
+            if (!changed) {
+                return classFileBytes;
+            }
+            // Удаление целых методов не меняет фреймы остальных
+            var classWriter = new ClassWriter(0);
+            classNode.accept(classWriter);
+            return classWriter.toByteArray();
+        };
+    }
+
+    @Override
+    public void onClassSkipped(byte[] classFileBytes) throws Exception {
+        // Разбор нужен, чтобы сохранить все, на что ссылается пропущенный класс
+        this.getObfuscatedClassSupplier(classFileBytes);
+        this.skippedClasses.add(new ClassReader(classFileBytes).getClassName());
+    }
+
+    @Override
+    public void onAllClassesProvided() throws Exception {
+        for (ClassNode classNode : this.classNodes.values()) {
+            for (MethodNode methodNode : classNode.methods) {
+                this.methodOwners.put(methodNode, classNode);
+                this.methodsBySignature
+                    .computeIfAbsent(methodNode.name + ":" + methodNode.desc, s -> new ArrayList<>())
+                    .add(methodNode);
+            }
+        }
+
+        // Корни
+        Rules.StageRules stageRules = getRules();
+        for (ClassNode classNode : this.classNodes.values()) {
+            String className = classNode.name.replace('/', '.');
+            boolean keepClass = this.skippedClasses.contains(classNode.name) || stageRules.isKept(className);
+            if (keepClass) {
+                this.markClass(classNode.name);
+            }
+            if (keepClass || !stageRules.isEmpty()) {
+                for (FieldNode fieldNode : classNode.fields) {
+                    if (keepClass || stageRules.isMemberKept(className, fieldNode.name)) {
+                        this.markClass(classNode.name);
+                        this.reachableMembers.add(memberKey(classNode.name, fieldNode.name, fieldNode.desc));
+                    }
+                }
+                for (MethodNode methodNode : classNode.methods) {
+                    if (keepClass || stageRules.isMemberKept(className, methodNode.name)) {
+                        this.markMethod(methodNode);
+                    }
+                }
+            }
+            for (Rule rule : this.rules) {
+                if (!rule.classPattern.matcher(className).matches()) {
+                    continue;
+                }
+                this.markClass(classNode.name);
+                for (FieldNode fieldNode : classNode.fields) {
+                    if (rule.memberName == null || rule.memberName.equals(fieldNode.name)) {
+                        this.reachableMembers.add(memberKey(classNode.name, fieldNode.name, fieldNode.desc));
+                    }
+                }
+                for (MethodNode methodNode : classNode.methods) {
+                    if (rule.memberName == null || rule.memberName.equals(methodNode.name)) {
+                        this.markMethod(methodNode);
+                    }
+                }
+            }
+            if (this.keepMains) {
+                for (MethodNode methodNode : classNode.methods) {
+                    if (
+                        methodNode.name.equals("main") &&
+                        methodNode.desc.equals("([Ljava/lang/String;)V") &&
+                        (methodNode.access & ACC_STATIC) != 0
+                    ) {
+                        this.markMethod(methodNode);
+                    }
+                }
+            }
+        }
+
+        if (this.classQueue.isEmpty() && this.methodQueue.isEmpty()) {
+            LOGGER.warning("no roots found, nothing will be removed");
+            this.shrink = false;
+            return;
+        }
+
+        while (!this.classQueue.isEmpty() || !this.methodQueue.isEmpty()) {
+            if (!this.classQueue.isEmpty()) {
+                this.processClass(this.classQueue.poll());
+            }
+            else {
+                this.processMethod(this.methodQueue.poll());
+            }
+        }
+
+        LOGGER.info(
+            "reachable classes: " + this.reachableClasses.size() + " of " + this.classNodes.size()
+        );
+    }
+
+    private boolean isReachable(ClassNode classNode, String name, String desc) {
+        return this.reachableMembers.contains(memberKey(classNode.name, name, desc));
+    }
+
+    private static String memberKey(String owner, String name, String desc) {
+        return owner + "." + name + ":" + desc;
+    }
+
+    private void markClass(String name) {
+        ClassNode classNode = this.classNodes.get(name);
+        if (classNode != null && this.reachableClasses.add(name)) {
+            this.classQueue.add(classNode);
+        }
+    }
+
+    private void markType(Type type) {
+        if (type.getSort() == Type.ARRAY) {
+            type = type.getElementType();
+        }
+        if (type.getSort() == Type.OBJECT) {
+            this.markClass(type.getInternalName());
+        }
+        else if (type.getSort() == Type.METHOD) {
+            for (Type argumentType : type.getArgumentTypes()) {
+                this.markType(argumentType);
+            }
+            this.markType(type.getReturnType());
+        }
+    }
+
+    private void markMethod(MethodNode methodNode) {
+        ClassNode owner = this.methodOwners.get(methodNode);
+        if (this.reachableMembers.add(memberKey(owner.name, methodNode.name, methodNode.desc))) {
+            this.markClass(owner.name);
+            this.methodQueue.add(methodNode);
+        }
+    }
+
+    private void markField(String owner, String name, String desc) {
+        // Разрешение поля (JVMS 5.4.3.2): класс, его интерфейсы, затем суперкласс
+        ClassNode classNode = this.classNodes.get(owner);
+        if (classNode == null) {
+            return;
+        }
+        for (FieldNode fieldNode : classNode.fields) {
+            if (fieldNode.name.equals(name) && fieldNode.desc.equals(desc)) {
+                this.markClass(owner);
+                this.reachableMembers.add(memberKey(owner, name, desc));
+                return;
+            }
+        }
+        for (String interfaceName : classNode.interfaces) {
+            this.markField(interfaceName, name, desc);
+        }
+        this.markField(classNode.superName, name, desc);
+    }
+
+    /**
+     * Отмечает методы, к которым может разрешиться ссылка
+     * (сам класс и все его супертипы, консервативно)
+     */
+    private void markResolvedMethod(String owner, String name, String desc) {
+        ClassNode classNode = this.classNodes.get(owner);
+        if (classNode == null) {
+            return;
+        }
+        for (MethodNode methodNode : classNode.methods) {
+            if (methodNode.name.equals(name) && methodNode.desc.equals(desc)) {
+                this.markMethod(methodNode);
+                return;
+            }
+        }
+        this.markResolvedMethod(classNode.superName, name, desc);
+        for (String interfaceName : classNode.interfaces) {
+            this.markResolvedMethod(interfaceName, name, desc);
+        }
+    }
+
+    private void markVirtualSignature(String name, String desc) {
+        String signature = name + ":" + desc;
+        if (!this.virtualSignatures.add(signature)) {
+            return;
+        }
+        for (MethodNode methodNode : this.methodsBySignature.getOrDefault(signature, List.of())) {
+            if (this.reachableClasses.contains(this.methodOwners.get(methodNode).name)) {
+                this.markMethod(methodNode);
+            }
+        }
+    }
+
+    private void markHandle(Handle handle) {
+        this.markClass(handle.getOwner());
+        this.markType(Type.getType(handle.getDesc()));
+        if (handle.getTag() <= H_PUTSTATIC) {
+            this.markField(handle.getOwner(), handle.getName(), handle.getDesc());
+        }
+        else {
+            this.markResolvedMethod(handle.getOwner(), handle.getName(), handle.getDesc());
+            if (handle.getTag() == H_INVOKEVIRTUAL || handle.getTag() == H_INVOKEINTERFACE) {
+                this.markVirtualSignature(handle.getName(), handle.getDesc());
+            }
+        }
+    }
+
+    private void markConstant(Object cst) {
+        if (cst instanceof Type type) {
+            this.markType(type);
+        }
+        else if (cst instanceof Handle handle) {
+            this.markHandle(handle);
+        }
+        else if (cst instanceof ConstantDynamic condy) {
+            this.markType(Type.getType(condy.getDescriptor()));
+            this.markHandle(condy.getBootstrapMethod());
+            for (int i = 0; i < condy.getBootstrapMethodArgumentCount(); ++i) {
+                this.markConstant(condy.getBootstrapMethodArgument(i));
+            }
+        }
+    }
+
+    private void markAnnotations(List<? extends AnnotationNode> annotations) {
+        if (annotations == null) {
+            return;
+        }
+        for (AnnotationNode annotationNode : annotations) {
+            this.markType(Type.getType(annotationNode.desc));
+            if (annotationNode.values != null) {
+                // Чередуются имя элемента и значение
+                for (int i = 1; i < annotationNode.values.size(); i += 2) {
+                    this.markAnnotationValue(annotationNode.values.get(i));
+                }
+            }
+        }
+    }
+
+    private void markParameterAnnotations(List<AnnotationNode>[] parameterAnnotations) {
+        if (parameterAnnotations == null) {
+            return;
+        }
+        for (List<AnnotationNode> annotations : parameterAnnotations) {
+            this.markAnnotations(annotations);
+        }
+    }
+
+    /**
+     * Классы и константы перечислений, на которые ссылается значение элемента аннотации
+     */
+    private void markAnnotationValue(Object value) {
+        if (value instanceof Type type) {
+            this.markType(type);
+        }
+        // Константа перечисления: дескриптор и имя
+        else if (value instanceof String[] enumValue) {
+            Type type = Type.getType(enumValue[0]);
+            this.markType(type);
+            this.markField(type.getInternalName(), enumValue[1], enumValue[0]);
+        }
+        else if (value instanceof AnnotationNode annotationNode) {
+            this.markAnnotations(List.of(annotationNode));
+        }
+        else if (value instanceof List<?> values) {
+            values.forEach(this::markAnnotationValue);
+        }
+    }
+
+    private void processClass(ClassNode classNode) {
+        if (classNode.superName != null) {
+            this.markClass(classNode.superName);
+        }
+        classNode.interfaces.forEach(this::markClass);
+        if (classNode.nestHostClass != null) {
+            this.markClass(classNode.nestHostClass);
+        }
+        if (classNode.outerClass != null) {
+            this.markClass(classNode.outerClass);
+            if (classNode.outerMethod != null) {
+                this.markResolvedMethod(classNode.outerClass, classNode.outerMethod, classNode.outerMethodDesc);
+            }
+        }
+        this.markAnnotations(classNode.visibleAnnotations);
+        this.markAnnotations(classNode.invisibleAnnotations);
+        this.markAnnotations(classNode.visibleTypeAnnotations);
+        this.markAnnotations(classNode.invisibleTypeAnnotations);
+        if (classNode.recordComponents != null) {
+            for (RecordComponentNode component : classNode.recordComponents) {
+                this.markType(Type.getType(component.descriptor));
+                this.markAnnotations(component.visibleAnnotations);
+                this.markAnnotations(component.invisibleAnnotations);
+                this.markAnnotations(component.visibleTypeAnnotations);
+                this.markAnnotations(component.invisibleTypeAnnotations);
+            }
+        }
+
+        // Записи и аннотации сохраняются целиком:
+        // к их членам обращаются через рефлексию
+        boolean keepAll =
+            "java/lang/Record".equals(classNode.superName) ||
+            (classNode.access & ACC_ANNOTATION) != 0;
+
+        for (FieldNode fieldNode : classNode.fields) {
+            if (keepAll || IMPLICITLY_USED_MEMBERS.contains(fieldNode.name)) {
+                this.reachableMembers.add(memberKey(classNode.name, fieldNode.name, fieldNode.desc));
+            }
+            if (this.isReachable(classNode, fieldNode.name, fieldNode.desc)) {
+                this.markType(Type.getType(fieldNode.desc));
+                this.markAnnotations(fieldNode.visibleAnnotations);
+                this.markAnnotations(fieldNode.invisibleAnnotations);
+                this.markAnnotations(fieldNode.visibleTypeAnnotations);
+                this.markAnnotations(fieldNode.invisibleTypeAnnotations);
+            }
+        }
+
+        for (MethodNode methodNode : classNode.methods) {
+            boolean isStatic = (methodNode.access & ACC_STATIC) != 0;
+            boolean isVirtual = !isStatic && !methodNode.name.equals("<init>");
+            if (
+                keepAll ||
+                methodNode.name.equals("<clinit>") ||
+                IMPLICITLY_USED_MEMBERS.contains(methodNode.name) ||
+                // Enum.valueOf получает константы через рефлексивный вызов values()
+                ((classNode.access & ACC_ENUM) != 0 && methodNode.name.equals("values")) ||
+                (isVirtual && this.virtualSignatures.contains(methodNode.name + ":" + methodNode.desc)) ||
+                (isVirtual && this.overridesLibraryMethod(classNode, methodNode))
+            ) {
+                this.markMethod(methodNode);
+            }
+        }
+    }
+
+    private void processMethod(MethodNode methodNode) {
+        this.markType(Type.getMethodType(methodNode.desc));
+        this.markAnnotations(methodNode.visibleAnnotations);
+        this.markAnnotations(methodNode.invisibleAnnotations);
+        this.markAnnotations(methodNode.visibleTypeAnnotations);
+        this.markAnnotations(methodNode.invisibleTypeAnnotations);
+        this.markAnnotations(methodNode.visibleLocalVariableAnnotations);
+        this.markAnnotations(methodNode.invisibleLocalVariableAnnotations);
+        this.markParameterAnnotations(methodNode.visibleParameterAnnotations);
+        this.markParameterAnnotations(methodNode.invisibleParameterAnnotations);
+        if (methodNode.annotationDefault != null) {
+            this.markAnnotationValue(methodNode.annotationDefault);
+        }
+        if (methodNode.exceptions != null) {
+            methodNode.exceptions.forEach(this::markClass);
+        }
+        for (TryCatchBlockNode tryCatch : methodNode.tryCatchBlocks) {
+            if (tryCatch.type != null) {
+                this.markClass(tryCatch.type);
+            }
+            this.markAnnotations(tryCatch.visibleTypeAnnotations);
+            this.markAnnotations(tryCatch.invisibleTypeAnnotations);
+        }
+
+        for (AbstractInsnNode insn : methodNode.instructions) {
+            this.markAnnotations(insn.visibleTypeAnnotations);
+            this.markAnnotations(insn.invisibleTypeAnnotations);
+            if (insn instanceof TypeInsnNode typeInsn) {
+                this.markType(Type.getObjectType(typeInsn.desc));
+            }
+            else if (insn instanceof MultiANewArrayInsnNode arrayInsn) {
+                this.markType(Type.getType(arrayInsn.desc));
+            }
+            else if (insn instanceof FieldInsnNode fieldInsn) {
+                this.markClass(fieldInsn.owner);
+                this.markType(Type.getType(fieldInsn.desc));
+                this.markField(fieldInsn.owner, fieldInsn.name, fieldInsn.desc);
+            }
+            else if (insn instanceof MethodInsnNode methodInsn) {
+                this.markType(Type.getObjectType(methodInsn.owner));
+                this.markType(Type.getMethodType(methodInsn.desc));
+                this.markResolvedMethod(methodInsn.owner, methodInsn.name, methodInsn.desc);
+                if (insn.getOpcode() == INVOKEVIRTUAL || insn.getOpcode() == INVOKEINTERFACE) {
+                    this.markVirtualSignature(methodInsn.name, methodInsn.desc);
+                }
+            }
+            else if (insn instanceof InvokeDynamicInsnNode indy) {
+                this.markType(Type.getMethodType(indy.desc));
+                this.markHandle(indy.bsm);
+                for (Object bsmArg : indy.bsmArgs) {
+                    this.markConstant(bsmArg);
+                }
+                // Лямбда реализует метод функционального интерфейса,
+                // который будет вызван виртуально
+                if (indy.bsmArgs.length > 0 && indy.bsmArgs[0] instanceof Type samType && samType.getSort() == Type.METHOD) {
+                    this.markVirtualSignature(indy.name, samType.getDescriptor());
+                }
+            }
+            else if (insn instanceof LdcInsnNode ldc) {
+                this.markConstant(ldc.cst);
+            }
+            else if (insn instanceof FrameNode frame) {
+                // Верификатору могут понадобиться классы из фреймов
+                for (List<Object> types : Arrays.asList(frame.local, frame.stack)) {
+                    if (types == null) {
+                        continue;
+                    }
+                    for (Object type : types) {
+                        if (type instanceof String internalName) {
+                            this.markType(Type.getObjectType(internalName));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Переопределяет ли метод метод библиотечного (не входящего во входные данные)
+     * супертипа. Такие методы может вызвать сама библиотека
+     */
+    private boolean overridesLibraryMethod(ClassNode classNode, MethodNode methodNode) {
+        List<String> superNames = new ArrayList<>(classNode.interfaces);
+        if (classNode.superName != null) {
+            superNames.add(classNode.superName);
+        }
+        for (String superName : superNames) {
+            ClassNode superNode = this.classNodes.get(superName);
+            if (superNode != null) {
+                if (this.overridesLibraryMethod(superNode, methodNode)) {
+                    return true;
+                }
+            }
+            else {
+                LibraryIndex index = LibraryIndex.shared();
+                // Неизвестный библиотечный класс - считаем, что метод может переопределять
+                if (
+                    index.lookup(superName) == null ||
+                    index.hasMethod(superName, methodNode.name, methodNode.desc, (owner, method) ->
+                        (method.access() & ACC_STATIC) == 0
+                    )
+                ) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Удаляет упоминания удаленных классов из атрибутов
+     * NestMembers, PermittedSubclasses и InnerClasses
+     */
+    private boolean removeMissingClasses(ClassNode classNode) {
+        boolean changed = false;
+        if (classNode.nestMembers != null) {
+            changed |= classNode.nestMembers.removeIf(this::isRemoved);
+        }
+        if (classNode.permittedSubclasses != null) {
+            changed |= classNode.permittedSubclasses.removeIf(this::isRemoved);
+        }
+        changed |= classNode.innerClasses.removeIf(innerClass -> this.isRemoved(innerClass.name));
+        return changed;
+    }
+
+    private boolean isRemoved(String name) {
+        return this.classNodes.containsKey(name) && !this.reachableClasses.contains(name);
+    }
+
+}
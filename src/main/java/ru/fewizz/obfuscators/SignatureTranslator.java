@@ -0,0 +1,158 @@
+package ru.fewizz.obfuscators;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.signature.SignatureReader;
+import org.objectweb.asm.signature.SignatureVisitor;
+import org.objectweb.asm.signature.SignatureWriter;
+
+/**
+ * Замена имен классов в сигнатуре (4.7.9.1) класса, поля или метода.<p>
+ * Вложенный тип <code>Outer&lt;T&gt;.Inner</code> остается вложенным, только если
+ * новое имя вложенного класса - <code>&lt;новое имя Outer&gt;$&lt;имя&gt;</code>.
+ * Иначе (после переименования классы обычно не связаны именами) записывается
+ * новое имя вложенного класса целиком, без аргументов типа внешнего:
+ * <code>Outer&lt;T&gt;.x</code> означало бы несуществующий класс <code>Outer$x</code>.
+ * Внешний тип к этому моменту уже прочитан, поэтому события сигнатуры
+ * сначала собираются и записываются в конце
+ */
+final class SignatureTranslator extends SignatureVisitor {
+
+    private final UnaryOperator<String> translateInternalName;
+    // События с уже переведенными именами, SignatureWriter возвращает себя из всех visit*
+    private final List<Consumer<SignatureVisitor>> events = new ArrayList<>();
+    // Исходные имена текущих классов и номера событий, с которых они начинаются
+    private final List<String> classNames = new ArrayList<>();
+    private final List<Integer> classStarts = new ArrayList<>();
+
+    private SignatureTranslator(UnaryOperator<String> translateInternalName) {
+        super(Opcodes.ASM9);
+        this.translateInternalName = translateInternalName;
+    }
+
+    /**
+     * @param translateInternalName Новое внутреннее имя класса по исходному
+     * @param typeSignature Сигнатура типа (поля или локальной переменной)
+     */
+    static String translate(String signature, boolean typeSignature, UnaryOperator<String> translateInternalName) {
+        var translator = new SignatureTranslator(translateInternalName);
+        if (typeSignature) {
+            new SignatureReader(signature).acceptType(translator);
+        }
+        else {
+            new SignatureReader(signature).accept(translator);
+        }
+        var writer = new SignatureWriter();
+        for (Consumer<SignatureVisitor> event : translator.events) {
+            event.accept(writer);
+        }
+        return writer.toString();
+    }
+
+    private SignatureVisitor add(Consumer<SignatureVisitor> event) {
+        this.events.add(event);
+        return this;
+    }
+
+    @Override
+    public void visitFormalTypeParameter(String name) {
+        this.add(v -> v.visitFormalTypeParameter(name));
+    }
+
+    @Override
+    public SignatureVisitor visitClassBound() {
+        return this.add(SignatureVisitor::visitClassBound);
+    }
+
+    @Override
+    public SignatureVisitor visitInterfaceBound() {
+        return this.add(SignatureVisitor::visitInterfaceBound);
+    }
+
+    @Override
+    public SignatureVisitor visitSuperclass() {
+        return this.add(SignatureVisitor::visitSuperclass);
+    }
+
+    @Override
+    public SignatureVisitor visitInterface() {
+        return this.add(SignatureVisitor::visitInterface);
+    }
+
+    @Override
+    public SignatureVisitor visitParameterType() {
+        return this.add(SignatureVisitor::visitParameterType);
+    }
+
+    @Override
+    public SignatureVisitor visitReturnType() {
+        return this.add(SignatureVisitor::visitReturnType);
+    }
+
+    @Override
+    public SignatureVisitor visitExceptionType() {
+        return this.add(SignatureVisitor::visitExceptionType);
+    }
+
+    @Override
+    public void visitBaseType(char descriptor) {
+        this.add(v -> v.visitBaseType(descriptor));
+    }
+
+    @Override
+    public void visitTypeVariable(String name) {
+        this.add(v -> v.visitTypeVariable(name));
+    }
+
+    @Override
+    public SignatureVisitor visitArrayType() {
+        return this.add(SignatureVisitor::visitArrayType);
+    }
+
+    @Override
+    public void visitClassType(String name) {
+        this.classNames.add(name);
+        this.classStarts.add(this.events.size());
+        String translated = this.translateInternalName.apply(name);
+        this.add(v -> v.visitClassType(translated));
+    }
+
+    @Override
+    public void visitInnerClassType(String name) {
+        int last = this.classNames.size() - 1;
+        String className = this.classNames.get(last) + '$' + name;
+        String translatedOuter = this.translateInternalName.apply(this.classNames.get(last)) + '$';
+        String translated = this.translateInternalName.apply(className);
+        this.classNames.set(last, className);
+        if (translated.startsWith(translatedOuter)) {
+            this.add(v -> v.visitInnerClassType(translated.substring(translatedOuter.length())));
+            return;
+        }
+        // Внешний тип вместе с аргументами заменяется вложенным
+        this.events.subList(this.classStarts.get(last), this.events.size()).clear();
+        this.add(v -> v.visitClassType(translated));
+    }
+
+    @Override
+    public void visitTypeArgument() {
+        this.add(SignatureVisitor::visitTypeArgument);
+    }
+
+    @Override
+    public SignatureVisitor visitTypeArgument(char wildcard) {
+        return this.add(v -> v.visitTypeArgument(wildcard));
+    }
+
+    @Override
+    public void visitEnd() {
+        int last = this.classNames.size() - 1;
+        this.classNames.remove(last);
+        this.classStarts.remove(last);
+        this.add(SignatureVisitor::visitEnd);
+    }
+
+}
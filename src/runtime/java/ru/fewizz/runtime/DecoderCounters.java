@@ -0,0 +1,133 @@
+package ru.fewizz.runtime;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+import javax.management.ObjectName;
+
+/**
+ * Счетчики вызовов декодеров строк (методов <code>__deobf</code>), которые
+ * обфускаторы строк добавляют в программу с настройкой <code>counters</code>.<p>
+ * Класс не используется самим обфускатором: он копируется в обфусцированную
+ * программу и выполняется в ней. Каждый обфусцированный класс при инициализации
+ * получает свой экземпляр ({@link #register}), декодер добавляет в него вызов и время.
+ * Счетчики - {@link LongAdder}: разные потоки пишут в разные ячейки и не конкурируют.<p>
+ * Итоги доступны через JMX ({@link DecoderCountersMXBean}) и печатаются в stderr
+ * при завершении JVM, если не задано <code>-D{@value #SUMMARY_PROPERTY}=false</code>.
+ * С <code>-D{@value #JFR_PROPERTY}=true</code> каждый вызов еще и пишется событием JFR
+ */
+public final class DecoderCounters {
+
+    public static final String SUMMARY_PROPERTY = "ru.fewizz.counters.summary";
+    public static final String JFR_PROPERTY = "ru.fewizz.counters.jfr";
+
+    private static final boolean JFR = Boolean.getBoolean(JFR_PROPERTY);
+
+    private static final ConcurrentMap<String, DecoderCounters> ALL = new ConcurrentHashMap<>();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new Registry(), new ObjectName("ru.fewizz:type=DecoderCounters")
+            );
+        } catch (Exception | LinkageError e) {
+            // Без JMX остается итог при завершении
+        }
+        if (!"false".equals(System.getProperty(SUMMARY_PROPERTY))) {
+            Runtime.getRuntime().addShutdownHook(new Thread(
+                () -> System.err.print(summary()), "decoder-counters"
+            ));
+        }
+    }
+
+    private final String className;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    private DecoderCounters(String className) {
+        this.className = className;
+    }
+
+    /**
+     * Вызывается из статического инициализатора обфусцированного класса
+     */
+    public static DecoderCounters register(Class<?> owner) {
+        return ALL.computeIfAbsent(owner.getName(), DecoderCounters::new);
+    }
+
+    /**
+     * Вызывается декодером перед возвратом результата
+     * @param startNanos <code>System.nanoTime()</code> в начале декодирования
+     */
+    public void record(long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        this.calls.increment();
+        this.nanos.add(elapsed);
+        if (JFR) {
+            DecoderEvent.emit(this.className, elapsed);
+        }
+    }
+
+    private static Map<String, Long> collect(ToLongFunction<DecoderCounters> counter) {
+        Map<String, Long> result = new TreeMap<>();
+        for (DecoderCounters counters : ALL.values()) {
+            result.put(counters.className, counter.applyAsLong(counters));
+        }
+        return result;
+    }
+
+    /**
+     * Классы по убыванию времени в декодере
+     */
+    static String summary() {
+        List<DecoderCounters> sorted = new ArrayList<>(ALL.values());
+        sorted.sort((a, b) -> Long.compare(b.nanos.sum(), a.nanos.sum()));
+        var result = new StringBuilder("decoder counters (class, calls, ms):\n");
+        for (DecoderCounters counters : sorted) {
+            long calls = counters.calls.sum();
+            if (calls == 0) {
+                continue;
+            }
+            result.append('\t').append(counters.className)
+                .append('\t').append(calls)
+                .append('\t').append(String.format("%.3f", counters.nanos.sum() / 1e6))
+                .append('\n');
+        }
+        return result.toString();
+    }
+
+    private static final class Registry implements DecoderCountersMXBean {
+
+        @Override
+        public Map<String, Long> getCalls() {
+            return collect(counters -> counters.calls.sum());
+        }
+
+        @Override
+        public Map<String, Long> getNanos() {
+            return collect(counters -> counters.nanos.sum());
+        }
+
+        @Override
+        public String getSummary() {
+            return summary();
+        }
+
+        @Override
+        public void reset() {
+            for (DecoderCounters counters : ALL.values()) {
+                counters.calls.reset();
+                counters.nanos.reset();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,24 @@
+package ru.fewizz.runtime;
+
+import java.util.Map;
+
+/**
+ * Счетчики декодеров строк в JMX, объект <code>ru.fewizz:type=DecoderCounters</code>
+ */
+public interface DecoderCountersMXBean {
+
+    /**
+     * @return Имя обфусцированного класса -&gt; число вызовов его декодера
+     */
+    Map<String, Long> getCalls();
+
+    /**
+     * @return Имя обфусцированного класса -&gt; суммарное время в его декодере, нс
+     */
+    Map<String, Long> getNanos();
+
+    String getSummary();
+
+    void reset();
+
+}
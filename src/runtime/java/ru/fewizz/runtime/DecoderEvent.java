@@ -0,0 +1,33 @@
+package ru.fewizz.runtime;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Событие JFR на каждый вызов декодера, см. {@link DecoderCounters#JFR_PROPERTY}
+ */
+@Name("ru.fewizz.Decoder")
+@Label("String Decoder")
+@Category("Obfuscator")
+final class DecoderEvent extends Event {
+
+    @Label("Class")
+    String className;
+
+    @Label("Decode Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long decodeNanos;
+
+    static void emit(String className, long nanos) {
+        var event = new DecoderEvent();
+        if (event.isEnabled()) {
+            event.className = className;
+            event.decodeNanos = nanos;
+            event.commit();
+        }
+    }
+
+}
@@ -0,0 +1,245 @@
+package ru.fewizz;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class BudgetTests {
+
+    private static final byte[] CLASS_FILE = classFile();
+
+    private static final byte[] CHEAPER_RESULT = new byte[0];
+
+    private static final Budget.Limits CLASS_LIMITS = new Budget.Limits(20_000_000, 0, 0, 0);
+
+    private static byte[] classFile() {
+        var classWriter = new ClassWriter(0);
+        classWriter.visit(Opcodes.V17, Opcodes.ACC_PUBLIC, "test/A", null, "java/lang/Object", null);
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+
+    /**
+     * Проверяет бюджет, пока он не будет исчерпан
+     */
+    private static void spin() {
+        while (true) {
+            Budget.check();
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * @param cheaper Более дешевая обработка, <code>null</code> - ее нет
+     */
+    private static Obfuscator expensive(Callable<byte[]> cheaper) {
+        return new Obfuscator() {
+            @Override
+            public boolean isPerClass() {
+                return true;
+            }
+
+            @Override
+            public Supplier<byte[]> getObfuscatedClassSupplier(byte[] classFileBytes) {
+                return () -> {
+                    spin();
+                    return classFileBytes;
+                };
+            }
+
+            @Override
+            public Supplier<byte[]> getCheaperClassSupplier(byte[] classFileBytes) {
+                if (cheaper == null) {
+                    return null;
+                }
+                return () -> {
+                    try {
+                        return cheaper.call();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                };
+            }
+        };
+    }
+
+    private static RunReport.Stage stage() {
+        return new RunReport().startStage("test");
+    }
+
+    @Test
+    void testCheckWithoutBudgetDoesNothing() {
+        assertNull(Budget.current());
+        Budget.check();
+    }
+
+    @Test
+    void testCheckThrowsWhenExceeded() throws Exception {
+        var budget = new Budget(1, 0);
+        Thread.sleep(1);
+        assertNotNull(budget.getExceededLimit());
+        assertThrows(Budget.ExceededException.class, () -> budget.run(() -> {
+            Budget.check();
+            return null;
+        }));
+        // Бюджет действует только внутри run
+        assertNull(Budget.current());
+        Budget.check();
+    }
+
+    @Test
+    void testUnlimitedBudgetIsNeverExceeded() throws Exception {
+        var budget = new Budget(0, 0);
+        Thread.sleep(1);
+        assertNull(budget.getExceededLimit());
+    }
+
+    @Test
+    void testBoundTaskSeesBudget() throws Exception {
+        var budget = new Budget(1, 0);
+        Thread.sleep(1);
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var future = executor.submit(budget.bind(() -> {
+                spin();
+                return null;
+            }));
+            var e = assertThrows(Exception.class, future::get);
+            assertNotNull(Budget.findExceeded(e));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testWithinBudgetIsObfuscated() throws Exception {
+        byte[] result = new byte[1];
+        var obfuscator = new Obfuscator() {
+            @Override
+            public boolean isPerClass() {
+                return true;
+            }
+
+            @Override
+            public Supplier<byte[]> getObfuscatedClassSupplier(byte[] classFileBytes) {
+                return () -> result;
+            }
+        };
+        var stage = stage();
+        assertSame(result, Main.obfuscateClass(obfuscator, CLASS_FILE, CLASS_LIMITS, new Budget(0, 0), stage).get());
+        assertTrue(stage.getEvents().isEmpty());
+    }
+
+    /**
+     * Обфускатор, не проверяющий бюджет, заканчивает за его пределами:
+     * результат остается, превышение попадает в отчет
+     */
+    @Test
+    void testOverrunIsReported() throws Exception {
+        byte[] result = new byte[1];
+        var obfuscator = new Obfuscator() {
+            @Override
+            public boolean isPerClass() {
+                return true;
+            }
+
+            @Override
+            public Supplier<byte[]> getObfuscatedClassSupplier(byte[] classFileBytes) {
+                return () -> {
+                    try {
+                        Thread.sleep(CLASS_LIMITS.classNanos() / 1_000_000 * 2);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return result;
+                };
+            }
+        };
+        var stage = stage();
+        assertSame(result, Main.obfuscateClass(obfuscator, CLASS_FILE, CLASS_LIMITS, new Budget(0, 0), stage).get());
+        assertEquals(1, stage.getEvents().size());
+        RunReport.Event event = stage.getEvents().get(0);
+        assertEquals("test/A", event.className());
+        assertEquals(RunReport.Outcome.OVERRUN, event.outcome());
+        assertTrue(event.reason().startsWith("time "), event.reason());
+    }
+
+    @Test
+    void testCheaperSupplierFallback() throws Exception {
+        var stage = stage();
+        byte[] result = Main.obfuscateClass(
+            expensive(() -> CHEAPER_RESULT), CLASS_FILE, CLASS_LIMITS, new Budget(0, 0), stage
+        ).get();
+        assertSame(CHEAPER_RESULT, result);
+        assertEquals(1, stage.getEvents().size());
+        RunReport.Event event = stage.getEvents().get(0);
+        assertEquals("test/A", event.className());
+        assertEquals(RunReport.Outcome.DEGRADED, event.outcome());
+        assertTrue(event.reason().startsWith("time "), event.reason());
+    }
+
+    @Test
+    void testPassthroughWithoutCheaperSupplier() throws Exception {
+        var stage = stage();
+        byte[] result = Main.obfuscateClass(
+            expensive(null), CLASS_FILE, CLASS_LIMITS, new Budget(0, 0), stage
+        ).get();
+        assertSame(CLASS_FILE, result);
+        assertEquals(RunReport.Outcome.PASSED_THROUGH, stage.getEvents().get(0).outcome());
+    }
+
+    @Test
+    void testPassthroughWhenCheaperSupplierIsOverBudget() throws Exception {
+        var stage = stage();
+        byte[] result = Main.obfuscateClass(
+            expensive(() -> {
+                spin();
+                return CHEAPER_RESULT;
+            }),
+            CLASS_FILE, CLASS_LIMITS, new Budget(0, 0), stage
+        ).get();
+        assertSame(CLASS_FILE, result);
+        RunReport.Event event = stage.getEvents().get(0);
+        assertEquals(RunReport.Outcome.PASSED_THROUGH, event.outcome());
+        assertTrue(event.reason().contains(", then time "), event.reason());
+    }
+
+    @Test
+    void testPassthroughAfterStageBudget() throws Exception {
+        var stageBudget = new Budget(1, 0);
+        Thread.sleep(1);
+        var stage = stage();
+        // Обфускатор даже не вызывается
+        var obfuscator = new Obfuscator() {
+            @Override
+            public Supplier<byte[]> getObfuscatedClassSupplier(byte[] classFileBytes) {
+                throw new AssertionError();
+            }
+        };
+        byte[] result = Main.obfuscateClass(obfuscator, CLASS_FILE, CLASS_LIMITS, stageBudget, stage).get();
+        assertSame(CLASS_FILE, result);
+        RunReport.Event event = stage.getEvents().get(0);
+        assertEquals(RunReport.Outcome.PASSED_THROUGH, event.outcome());
+        assertTrue(event.reason().startsWith("stage "), event.reason());
+    }
+
+    @Test
+    void testOtherExceptionsArePropagated() {
+        var obfuscator = new Obfuscator() {
+            @Override
+            public Supplier<byte[]> getObfuscatedClassSupplier(byte[] classFileBytes) {
+                throw new IllegalStateException("broken");
+            }
+        };
+        var e = assertThrows(IllegalStateException.class, () ->
+            Main.obfuscateClass(obfuscator, CLASS_FILE, CLASS_LIMITS, new Budget(0, 0), stage())
+        );
+        assertEquals("broken", e.getMessage());
+    }
+
+}
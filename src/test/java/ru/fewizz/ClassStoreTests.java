@@ -0,0 +1,144 @@
+package ru.fewizz;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ClassStoreTests {
+
+    private static final int CHUNK_SIZE = 16 << 20;
+
+    @TempDir
+    Path dir;
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void assertContents(List<byte[]> expected, ClassStore store) {
+        assertEquals(expected.size(), store.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertArrayEquals(expected.get(i), store.get(i), "class " + i);
+        }
+    }
+
+    @Test
+    void testClassesSpanSeveralChunks() {
+        var store = new ClassStore();
+        List<byte[]> expected = new ArrayList<>();
+        // Арена вмещает пять больших классов, шестой попадает в следующую
+        for (int i = 0; i < 30; ++i) {
+            byte[] bytes = bytes(i % 2 == 0 ? 3 << 20 : 123, i);
+            expected.add(bytes);
+            store.add(bytes);
+        }
+        assertContents(expected, store);
+    }
+
+    @Test
+    void testClassLargerThanChunk() {
+        var store = new ClassStore();
+        byte[] small = bytes(100, 1);
+        byte[] large = bytes(CHUNK_SIZE + 1, 2);
+        byte[] after = bytes(200, 3);
+        store.add(small);
+        store.add(large);
+        store.add(after);
+        assertContents(List.of(small, large, after), store);
+
+        // Собственный буфер большого класса не переиспользуется как арена
+        store.clear();
+        byte[] reused = bytes(CHUNK_SIZE - 10, 4);
+        store.add(reused);
+        store.add(small);
+        assertContents(List.of(reused, small), store);
+    }
+
+    @Test
+    void testClearReusesChunks() {
+        var store = new ClassStore();
+        store.add(bytes(1000, 1));
+        store.clear();
+        assertEquals(0, store.size());
+        byte[] bytes = bytes(500, 2);
+        store.add(bytes);
+        assertContents(List.of(bytes), store);
+    }
+
+    @Test
+    void testByteBufferRange() {
+        var store = new ClassStore();
+        byte[] bytes = bytes(100, 1);
+        store.add(ByteBuffer.wrap(bytes, 10, 20));
+        assertArrayEquals(Arrays.copyOfRange(bytes, 10, 30), store.get(0));
+    }
+
+    @Test
+    void testFiles() throws Exception {
+        byte[] small = bytes(1000, 1);
+        byte[] large = bytes(1 << 20, 2);
+        Path smallFile = Files.write(this.dir.resolve("Small.class"), small);
+        Path largeFile = Files.write(this.dir.resolve("Large.class"), large);
+        var store = new ClassStore();
+        store.add(smallFile);
+        store.add(largeFile);
+        store.add(smallFile);
+        assertContents(List.of(small, large, small), store);
+
+        // Маленький файл скопирован в арену, а большой отображен в память
+        // и видит изменения файла
+        byte[] changed = bytes(1 << 20, 3);
+        for (Path file : List.of(smallFile, largeFile)) {
+            try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(changed, 0, (int) channel.size()), 0);
+            }
+        }
+        assertContents(List.of(small, changed, small), store);
+    }
+
+    @Test
+    void testSharedSegmentsSurviveClear() {
+        var other = new ClassStore();
+        List<byte[]> expected = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            byte[] bytes = bytes(1000 + i, i);
+            expected.add(bytes);
+            other.add(bytes);
+        }
+
+        var store = new ClassStore();
+        store.add(bytes(10, 100));
+        for (int i = 9; i >= 0; --i) {
+            store.add(other, i);
+        }
+        List<byte[]> reversed = new ArrayList<>(expected.reversed());
+        reversed.add(0, bytes(10, 100));
+        assertContents(reversed, store);
+
+        // Очищенное хранилище заполняет свои арены, а не общие буферы
+        store.clear();
+        List<byte[]> refilled = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            byte[] bytes = bytes(2000, 50 + i);
+            refilled.add(bytes);
+            store.add(bytes);
+        }
+        store.add(other, 3);
+        refilled.add(expected.get(3));
+        assertContents(refilled, store);
+        assertContents(expected, other);
+    }
+
+}
@@ -0,0 +1,75 @@
+package ru.fewizz;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import ru.fewizz.benchmark.CorpusGenerator;
+
+public class CoordinatorTests {
+
+    // Этап всей программы передает состояние исполнителям вместе со следующими
+    private static final List<String> STAGES = List.of(
+        "ru.fewizz.obfuscators.LexicalObfuscator",
+        "ru.fewizz.obfuscators.NaiveStringConstantsObfuscator",
+        "ru.fewizz.obfuscators.ControlFlowObfuscator",
+        "ru.fewizz.obfuscators.DebugMetadataDeleter"
+    );
+
+    private static List<byte[]> corpus() {
+        // Больше нескольких частей по SHARD_BYTES, чтобы исполнители обрабатывали их вперемешку
+        var config = CorpusGenerator.Config.DEFAULT.with("classes", 600);
+        List<byte[]> corpus = new ArrayList<>();
+        CorpusGenerator.generate(config, corpus::add);
+        return corpus;
+    }
+
+    /**
+     * Исполнители в потоках этого процесса дают тот же результат, что и один процесс
+     */
+    @Test
+    void testWorkersMatchSingleProcess() throws Exception {
+        List<byte[]> corpus = corpus();
+        List<byte[]> expected = Main.obfuscate(corpus, Main.createObfuscators(STAGES));
+
+        var classes = new ClassStore();
+        corpus.forEach(classes::add);
+        List<byte[]> actual = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        List<Exception> failures = new ArrayList<>();
+        try (var server = new ServerSocket(0, 3, InetAddress.getLoopbackAddress())) {
+            for (int i = 0; i < 3; ++i) {
+                var worker = new Thread(() -> {
+                    try (var socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+                        new Worker().serve(socket);
+                    } catch (Exception e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }, "worker-" + i);
+                worker.start();
+                workers.add(worker);
+            }
+            var report = new RunReport();
+            try (var coordinator = new Coordinator(server, workers.size())) {
+                Main.obfuscate(classes, Main.createObfuscators(STAGES), actual::add, report, coordinator);
+            }
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(List.of(), failures);
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertArrayEquals(expected.get(i), actual.get(i), "class " + i);
+        }
+    }
+
+}
@@ -0,0 +1,110 @@
+package ru.fewizz;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class InputScannerTests {
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Байты с сигнатурой класс-файла, остальное содержимое сканер не разбирает
+     */
+    private static byte[] classBytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        ByteBuffer.wrap(bytes).putInt(0xCAFEBABE);
+        return bytes;
+    }
+
+    private Path write(String relative, byte[] bytes) throws Exception {
+        Path file = this.dir.resolve(relative);
+        Files.createDirectories(file.getParent());
+        return Files.write(file, bytes);
+    }
+
+    private static List<byte[]> classes(InputScanner.Result result) {
+        List<byte[]> classes = new ArrayList<>();
+        for (int i = 0; i < result.classes().size(); ++i) {
+            classes.add(result.classes().get(i));
+        }
+        return classes;
+    }
+
+    @Test
+    void testClassesAreDetectedByMagic() throws Exception {
+        byte[] a = classBytes(100, 1);
+        byte[] hidden = classBytes(50, 2);
+        byte[] large = classBytes(3 << 20, 3);
+        write("b/A.class", a);
+        write("a/data.bin", hidden);
+        write("c/Large.class", large);
+        write("b/NotAClass.class", "plain text".getBytes());
+        write("a/readme.txt", "CAFEBABE".getBytes());
+        write("b/Short.class", new byte[] { (byte) 0xCA, (byte) 0xFE });
+        write("b/Empty.class", new byte[0]);
+
+        var result = new InputScanner(4).scan(this.dir);
+        assertEquals(this.dir.toAbsolutePath(), result.root());
+        // Классы и ресурсы - в порядке относительных путей
+        List<byte[]> classes = classes(result);
+        assertEquals(3, classes.size());
+        assertArrayEquals(hidden, classes.get(0));
+        assertArrayEquals(a, classes.get(1));
+        assertArrayEquals(large, classes.get(2));
+        assertEquals(
+            List.of(Path.of("a/readme.txt"), Path.of("b/Empty.class"), Path.of("b/NotAClass.class"), Path.of("b/Short.class")),
+            result.resources()
+        );
+    }
+
+    @Test
+    void testSingleFile() throws Exception {
+        byte[] bytes = classBytes(100, 1);
+        Path file = write("x/A.class", bytes);
+        write("x/B.class", classBytes(100, 2));
+
+        var result = new InputScanner(2).scan(file);
+        assertEquals(file.getParent(), result.root());
+        assertEquals(1, result.classes().size());
+        assertArrayEquals(bytes, result.classes().get(0));
+        assertEquals(List.of(), result.resources());
+    }
+
+    @Test
+    void testOrderDoesNotDependOnThreadCount() throws Exception {
+        var random = new Random(0);
+        for (int i = 0; i < 300; ++i) {
+            String relative = "p" + random.nextInt(5) + "/q" + random.nextInt(5) + "/F" + i;
+            if (random.nextInt(4) == 0) {
+                write(relative + ".txt", ("resource " + i).getBytes());
+            }
+            else {
+                // Часть классов больше порога отображения в память
+                write(relative + ".class", classBytes(i % 50 == 0 ? 1 << 20 : 64 + i, i));
+            }
+        }
+
+        var expected = new InputScanner(1).scan(this.dir);
+        List<byte[]> expectedClasses = classes(expected);
+        for (int threads : new int[] { 2, 8 }) {
+            var result = new InputScanner(threads).scan(this.dir);
+            assertEquals(expected.resources(), result.resources());
+            List<byte[]> classes = classes(result);
+            assertEquals(expectedClasses.size(), classes.size());
+            for (int i = 0; i < classes.size(); ++i) {
+                assertArrayEquals(expectedClasses.get(i), classes.get(i), threads + " threads, class " + i);
+            }
+        }
+    }
+
+}
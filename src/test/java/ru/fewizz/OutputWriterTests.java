@@ -0,0 +1,93 @@
+package ru.fewizz;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class OutputWriterTests {
+
+    @TempDir
+    Path dir;
+
+    private static byte[] classFile(String name) {
+        var classWriter = new ClassWriter(0);
+        classWriter.visit(Opcodes.V17, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+
+    @Test
+    void testClassesAndResourcesAreWritten() throws Exception {
+        Path out = this.dir.resolve("out");
+        Path resource = Files.writeString(this.dir.resolve("resource.txt"), "data");
+        byte[][] classes = new byte[600][];
+        try (var writer = new OutputWriter(out, 4)) {
+            // Больше, чем вмещает очередь, так что часть файлов пишет вызывающий поток
+            for (int i = 0; i < classes.length; ++i) {
+                classes[i] = classFile("a/b" + i % 7 + "/c/C" + i);
+                writer.writeClass(classes[i]);
+            }
+            writer.copy(resource, Path.of("META-INF", "x", "resource.txt"));
+        }
+        for (int i = 0; i < classes.length; ++i) {
+            assertArrayEquals(classes[i], Files.readAllBytes(out.resolve("a/b" + i % 7 + "/c/C" + i + ".class")));
+        }
+        assertEquals("data", Files.readString(out.resolve("META-INF/x/resource.txt")));
+        // Класс без пакета пишется в сам корень
+        try (var writer = new OutputWriter(out, 2)) {
+            writer.writeClass(classFile("Root"));
+        }
+        assertTrue(Files.isRegularFile(out.resolve("Root.class")));
+    }
+
+    /**
+     * Созданная директория запоминается и повторно не создается:
+     * удаленная после первой записи, она не появляется снова, а ошибка
+     * следующей записи выбрасывается из close
+     */
+    @Test
+    void testDirectoriesAreCreatedOnce() throws Exception {
+        Path out = this.dir.resolve("out");
+        var writer = new OutputWriter(out, 1);
+        writer.writeClass(classFile("p/A"));
+        // Ожидание записи первого класса
+        while (!Files.exists(out.resolve("p/A.class"))) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        Files.delete(out.resolve("p/A.class"));
+        Files.delete(out.resolve("p"));
+        writer.writeClass(classFile("p/B"));
+        var e = assertThrows(NoSuchFileException.class, writer::close);
+        assertTrue(e.getMessage().endsWith("B.class"), e.getMessage());
+        assertFalse(Files.exists(out.resolve("p")));
+    }
+
+    @Test
+    void testIOExceptionIsThrownFromClose() throws Exception {
+        Path out = this.dir.resolve("out");
+        var writer = new OutputWriter(out, 2);
+        writer.copy(this.dir.resolve("missing.txt"), Path.of("missing.txt"));
+        writer.writeClass(classFile("p/A"));
+        assertThrows(NoSuchFileException.class, writer::close);
+    }
+
+    @Test
+    void testRuntimeExceptionIsThrownFromClose() throws Exception {
+        // Нулевой символ недопустим в пути
+        byte[] invalid = classFile("p/A\0B");
+        var writer = new OutputWriter(this.dir.resolve("out"), 2);
+        writer.writeClass(invalid);
+        var e = assertThrows(IOException.class, writer::close);
+        assertInstanceOf(InvalidPathException.class, e.getCause());
+    }
+
+}
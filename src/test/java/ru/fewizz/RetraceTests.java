@@ -0,0 +1,120 @@
+package ru.fewizz;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class RetraceTests {
+
+    private static final String MAPPING =
+        "x.y.Service -> a:\n" +
+        "    int count -> a\n" +
+        "    void run(int) -> b\n" +
+        "    void run(java.lang.String) -> b\n" +
+        "    java.lang.String name() -> c\n" +
+        "x.y.Failure -> b:\n";
+
+    @TempDir
+    Path dir;
+
+    private Retrace load() throws Exception {
+        Path mapping = this.dir.resolve("mapping.txt");
+        Files.writeString(mapping, MAPPING);
+        return Retrace.load(mapping);
+    }
+
+    private static String retrace(Retrace retrace, String log, int threads, int chunkSize) throws Exception {
+        var out = new ByteArrayOutputStream();
+        retrace.retrace(new ByteArrayInputStream(log.getBytes(StandardCharsets.UTF_8)), out, threads, chunkSize);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Лог из <code>count</code> трейсов, каждый со своим номером,
+     * чтобы перестановка кусков была видна
+     */
+    private static String log(int count, boolean retraced) {
+        var log = new StringBuilder();
+        for (int i = 0; i < count; ++i) {
+            log.append("Exception in thread \"worker-").append(i).append("\" ")
+                .append(retraced ? "x.y.Failure" : "b").append(": ошибка ").append(i).append('\n');
+            log.append("\tat ").append(retraced ? "x.y.Service.name" : "a.c").append("(Unknown Source)\n");
+            log.append("\tat ").append(retraced ? "x.y.Service.run" : "a.b").append("(Unknown Source)\n");
+            log.append("\tat java.base/java.lang.Thread.run(Thread.java:1583)\n");
+            log.append("запись ").append(i).append('\n');
+        }
+        return log.toString();
+    }
+
+    @Test
+    void testRetraceLine() throws Exception {
+        Retrace retrace = load();
+        assertEquals("\tat x.y.Service.name(Unknown Source)\n", retrace.retraceLine("\tat a.c(Unknown Source)\n"));
+        assertEquals("\tat app/x.y.Service.run(Unknown Source)", retrace.retraceLine("\tat app/a.b(Unknown Source)"));
+        assertEquals("Caused by: x.y.Failure: a.b", retrace.retraceLine("Caused by: b: a.b"));
+        assertEquals("x.y.Failure", retrace.retraceLine("b"));
+        // Неизвестные классы не меняются, у известного класса неизвестный метод сохраняет имя
+        assertEquals("\tat x.y.Service.z(Unknown Source)", retrace.retraceLine("\tat a.z(Unknown Source)"));
+        assertEquals("\tat q.b(Unknown Source)", retrace.retraceLine("\tat q.b(Unknown Source)"));
+    }
+
+    /**
+     * Перегрузки с общим обфусцированным именем выводятся через |
+     */
+    @Test
+    void testOverloads() throws Exception {
+        Retrace retrace = load();
+        // Оба метода b исходно называются run, поэтому вариант один
+        assertEquals("\tat x.y.Service.run(Unknown Source)", retrace.retraceLine("\tat a.b(Unknown Source)"));
+        Path mapping = this.dir.resolve("overloads.txt");
+        Files.writeString(mapping, "x.y.Service -> a:\n    void run() -> b\n    void stop() -> b\n");
+        assertEquals(
+            "\tat x.y.Service.run|stop(Unknown Source)",
+            Retrace.load(mapping).retraceLine("\tat a.b(Unknown Source)")
+        );
+    }
+
+    /**
+     * Лог из многих кусков переписывается одинаково при любом числе потоков,
+     * куски записываются в исходном порядке
+     */
+    @Test
+    void testChunksInOrder() throws Exception {
+        Retrace retrace = load();
+        String log = log(2000, false);
+        String expected = log(2000, true);
+        for (int threads : new int[] { 1, 2, 8 }) {
+            assertEquals(expected, retrace(retrace, log, threads, 256), "threads " + threads);
+        }
+        // Лог без перевода строки в конце
+        String tail = "\tat a.c(Unknown Source)";
+        assertEquals(expected + "\tat x.y.Service.name(Unknown Source)", retrace(retrace, log + tail, 4, 256));
+        assertEquals("", retrace(retrace, "", 4, 256));
+    }
+
+    /**
+     * Строка длиннее куска не разрезается, в том числе посреди символа UTF-8
+     */
+    @Test
+    void testLineLongerThanChunk() throws Exception {
+        Retrace retrace = load();
+        String longLine = "b: " + "ж".repeat(1000) + "\n";
+        String longFrame = "\tat a.b(" + "я".repeat(1000) + ")\n";
+        String log = longLine + log(10, false) + longFrame + longLine + log(10, false) + longLine.strip();
+        String expected = "x.y.Failure: " + "ж".repeat(1000) + "\n" + log(10, true) +
+            "\tat x.y.Service.run(" + "я".repeat(1000) + ")\n" +
+            "x.y.Failure: " + "ж".repeat(1000) + "\n" + log(10, true) +
+            "x.y.Failure: " + "ж".repeat(1000);
+        for (int threads : new int[] { 1, 4 }) {
+            // Нечетный размер куска, чтобы разрез приходился на середину двухбайтовых символов
+            assertEquals(expected, retrace(retrace, log, threads, 61), "threads " + threads);
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+package ru.fewizz;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class RulesTests {
+
+    private static final String STAGE = "ru.fewizz.obfuscators.ControlFlowObfuscator";
+
+    private static Rules.StageRules parse(String... lines) {
+        return Rules.parse(List.of(lines)).forStage(STAGE);
+    }
+
+    @Test
+    void testCommentsAndBlankLinesAreIgnored() {
+        assertTrue(parse("", "   ", "# skip * **", "  # keep * **").isEmpty());
+        assertFalse(parse("skip * a.**  ").isEmpty());
+    }
+
+    @Test
+    void testMalformedLinesAreRejected() {
+        // Нет шаблона
+        assertThrows(IllegalArgumentException.class, () -> parse("skip *"));
+        // Неизвестное действие
+        assertThrows(IllegalArgumentException.class, () -> parse("drop * a.**"));
+        // Уровень только у level и обязателен для него
+        assertThrows(IllegalArgumentException.class, () -> parse("level * a.**"));
+        assertThrows(IllegalArgumentException.class, () -> parse("keep * a.** 1"));
+        assertThrows(IllegalArgumentException.class, () -> parse("level * a.** 1 2"));
+        assertThrows(IllegalArgumentException.class, () -> parse("level * a.** x"));
+        // skip не относится к членам
+        assertThrows(IllegalArgumentException.class, () -> parse("skip * a.B#c"));
+    }
+
+    @Test
+    void testStageNames() {
+        assertTrue(parse("skip * a.B").isSkipped("a.B"));
+        assertTrue(parse("skip ControlFlowObfuscator a.B").isSkipped("a.B"));
+        assertTrue(parse("skip " + STAGE + " a.B").isSkipped("a.B"));
+        assertTrue(parse("skip LexicalObfuscator a.B").isEmpty());
+        // Простое имя должно совпадать целиком
+        assertTrue(parse("skip FlowObfuscator a.B").isEmpty());
+    }
+
+    @Test
+    void testSingleAndDoubleStars() {
+        var single = parse("skip * com.example.*");
+        assertTrue(single.isSkipped("com.example.A"));
+        assertFalse(single.isSkipped("com.example.sub.B"));
+        assertFalse(single.isSkipped("com.exampleX.A"));
+
+        var dbl = parse("skip * com.example.**");
+        assertTrue(dbl.isSkipped("com.example.A"));
+        assertTrue(dbl.isSkipped("com.example.sub.B"));
+        assertFalse(dbl.isSkipped("com.other.A"));
+
+        var middle = parse("skip * com.*.Impl");
+        assertTrue(middle.isSkipped("com.a.Impl"));
+        assertFalse(middle.isSkipped("com.a.b.Impl"));
+        assertFalse(middle.isSkipped("com.a.ImplX"));
+
+        var suffix = parse("skip * **Test");
+        assertTrue(suffix.isSkipped("Test"));
+        assertTrue(suffix.isSkipped("a.b.MyTest"));
+        assertFalse(suffix.isSkipped("a.b.TestUtil"));
+    }
+
+    @Test
+    void testPrefixTree() {
+        // Шаблоны без звездочек и вида x.y.** попадают в дерево, x.*.Z - в регулярные выражения
+        var rules = parse(
+            "skip * com.example.Main",
+            "skip * com.lib.**",
+            "skip * com.lib"
+        );
+        assertTrue(rules.isSkipped("com.example.Main"));
+        assertFalse(rules.isSkipped("com.example.MainX"));
+        assertFalse(rules.isSkipped("com.example.Mai"));
+        assertTrue(rules.isSkipped("com.lib.A"));
+        assertTrue(rules.isSkipped("com.lib."));
+        assertTrue(rules.isSkipped("com.lib"));
+        assertFalse(rules.isSkipped("com.li"));
+        // ** в шаблоне x** захватывает и продолжение последнего имени
+        assertTrue(parse("skip * com.lib**").isSkipped("com.library.A"));
+    }
+
+    @Test
+    void testInternalNames() {
+        var rules = parse("skip * com.example.**", "skip * org.*.Impl");
+        assertTrue(rules.isSkipped("com/example/sub/A"));
+        assertTrue(rules.isSkipped("org/a/Impl"));
+        assertFalse(rules.isSkipped("org/a/b/Impl"));
+    }
+
+    @Test
+    void testLastLevelWins() {
+        var rules = parse(
+            "level * com.**         1",
+            "level * **.Hot         2",
+            "level * com.example.Hot 3",
+            "level * com.*.Hot      4",
+            "level * com.example.** 5"
+        );
+        // Порядок файла соблюдается между деревом и регулярными выражениями
+        assertEquals(5, rules.getLevel("com.example.Hot", 0));
+        assertEquals(4, rules.getLevel("com.other.Hot", 0));
+        assertEquals(2, rules.getLevel("org.Hot", 0));
+        assertEquals(1, rules.getLevel("com.x.y.Cold", 0));
+        assertEquals(7, rules.getLevel("org.Cold", 7));
+    }
+
+    @Test
+    void testKeepAndSkipAreIndependent() {
+        var rules = parse(
+            "keep * com.api.*",
+            "keep * com.impl.Plugin#on*",
+            "level * com.** 0"
+        );
+        assertTrue(rules.isKept("com.api.A"));
+        assertFalse(rules.isSkipped("com.api.A"));
+        assertTrue(rules.isMemberKept("com.api.A", "anything"));
+
+        // Правило члена не сохраняет класс целиком
+        assertFalse(rules.isKept("com.impl.Plugin"));
+        assertTrue(rules.isMemberKept("com.impl.Plugin", "onLoad"));
+        assertTrue(rules.isMemberKept("com.impl.Plugin", "on"));
+        assertFalse(rules.isMemberKept("com.impl.Plugin", "load"));
+        assertFalse(rules.isMemberKept("com.impl.Other", "onLoad"));
+    }
+
+    @Test
+    void testMemberPatternIsNotRegex() {
+        var rules = parse("keep * a.B#get.x$");
+        assertTrue(rules.isMemberKept("a.B", "get.x$"));
+        assertFalse(rules.isMemberKept("a.B", "getAx"));
+    }
+
+    @Test
+    void testClassPatternIsNotRegex() {
+        var rules = parse("skip * a$b.C+", "skip * x.Y$*");
+        assertTrue(rules.isSkipped("a$b.C+"));
+        assertFalse(rules.isSkipped("ab.CC"));
+        assertTrue(rules.isSkipped("x.Y$Inner"));
+        assertFalse(rules.isSkipped("x.Y$Inner.Z"));
+    }
+
+}
@@ -0,0 +1,84 @@
+package ru.fewizz;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.JavaClass;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class SymbolTableTests {
+
+    private static byte[] classFile(String name) {
+        var classWriter = new ClassWriter(0);
+        classWriter.visit(Opcodes.V17, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", new String[] { "java/lang/Runnable" });
+        classWriter.visitMethod(Opcodes.ACC_PUBLIC, "run", "()V", null, null).visitEnd();
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+
+    @Test
+    void testIntern() {
+        var table = new SymbolTable();
+        String symbol = new String("java/lang/Object");
+        assertSame(symbol, table.intern(symbol));
+        assertSame(symbol, table.intern(new String("java/lang/Object")));
+        assertNull(table.intern((String) null));
+        assertEquals(1, table.size());
+    }
+
+    /**
+     * Строки разных классов, прочитанных через таблицу, - одни и те же экземпляры
+     */
+    @Test
+    void testClassReaderSharesSymbols() {
+        var table = new SymbolTable();
+        var a = new ClassNode();
+        table.newClassReader(classFile("test/A")).accept(a, 0);
+        var b = new ClassNode();
+        table.newClassReader(classFile("test/B")).accept(b, 0);
+        assertEquals("java/lang/Object", a.superName);
+        assertSame(a.superName, b.superName);
+        assertSame(a.interfaces.get(0), b.interfaces.get(0));
+        MethodNode runA = a.methods.get(0);
+        MethodNode runB = b.methods.get(0);
+        assertSame(runA.name, runB.name);
+        assertSame(runA.desc, runB.desc);
+        assertSame(a.name, table.intern(new String("test/A")));
+    }
+
+    @Test
+    void testInternJavaClass() throws Exception {
+        var table = new SymbolTable();
+        JavaClass a = new ClassParser(new ByteArrayInputStream(classFile("test/A")), "A.class").parse();
+        JavaClass b = new ClassParser(new ByteArrayInputStream(classFile("test/B")), "B.class").parse();
+        table.intern(a);
+        table.intern(b);
+        assertEquals("java.lang.Object", a.getSuperclassName());
+        assertSame(a.getSuperclassName(), b.getSuperclassName());
+        assertSame(a.getInterfaceNames()[0], b.getInterfaceNames()[0]);
+        assertSame(a.getMethods()[0].getSignature(), b.getMethods()[0].getSignature());
+        // Класс после замены строк пула остается корректным
+        assertArrayEquals(a.getBytes(), new ClassParser(new ByteArrayInputStream(a.getBytes()), "A.class").parse().getBytes());
+    }
+
+    /**
+     * Общая таблица очищается в конце прогона
+     */
+    @Test
+    void testSharedTableIsClearedAfterRun() throws Exception {
+        SymbolTable.shared().intern(new String("test/Leftover"));
+        List<byte[]> result = Main.obfuscate(
+            List.of(classFile("test/A"), classFile("test/B")),
+            Main.createObfuscators(List.of("ru.fewizz.obfuscators.LexicalObfuscator"))
+        );
+        assertEquals(2, result.size());
+        assertEquals(0, SymbolTable.shared().size());
+    }
+
+}
@@ -0,0 +1,44 @@
+package ru.fewizz.obfuscators;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class ConstantPoolCompactorTests {
+
+    @Test
+    void testUnusedConstantsAreRemoved() throws Exception {
+        byte[] compiled = TestClasses.compile(Map.of("test.Pool", """
+            package test;
+            public class Pool {
+                public static String get() {
+                    return "used" + Integer.toString(42);
+                }
+            }
+            """)).get("test/Pool");
+        // Пул копируется как есть, и в него добавляются записи, на которые никто не ссылается
+        var reader = new ClassReader(compiled);
+        var writer = new ClassWriter(reader, 0);
+        reader.accept(writer, 0);
+        writer.newUTF8("unusedConstant");
+        writer.newClass("test/Unused");
+        byte[] src = writer.toByteArray();
+
+        byte[] dst = new ConstantPoolCompactor().getObfuscatedClassSupplier(src).get();
+
+        // Пул javac уже плотный, лишние записи уходят, а новых не появляется
+        assertTrue(new ClassReader(dst).getItemCount() < new ClassReader(src).getItemCount());
+        assertTrue(new ClassReader(dst).getItemCount() <= new ClassReader(compiled).getItemCount());
+        String text = new String(dst, StandardCharsets.ISO_8859_1);
+        assertFalse(text.contains("unusedConstant"));
+        assertFalse(text.contains("test/Unused"));
+        Class<?> pool = TestClasses.load(TestClasses.loader(List.of(dst)), "test.Pool");
+        assertEquals("used42", pool.getMethod("get").invoke(null));
+    }
+
+}
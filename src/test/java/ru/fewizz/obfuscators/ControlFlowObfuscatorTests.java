@@ -0,0 +1,141 @@
+package ru.fewizz.obfuscators;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class ControlFlowObfuscatorTests {
+
+    private static ControlFlowObfuscator withThreads(int threads) {
+        String property = ControlFlowObfuscator.class.getName() + ".threads";
+        System.setProperty(property, String.valueOf(threads));
+        try {
+            return new ControlFlowObfuscator();
+        } finally {
+            System.clearProperty(property);
+        }
+    }
+
+    private static int expected(int k, int x) {
+        int s = k;
+        for (int i = 0; i < x; ++i) {
+            if ((i & 1) == 0) {
+                s += i * k;
+            }
+            else {
+                s ^= i;
+            }
+        }
+        return s;
+    }
+
+    @Test
+    void testOutputDoesNotDependOnThreadCount() throws Exception {
+        // Методов больше PARALLEL_METHODS, так что при нескольких потоках они обрабатываются пулом
+        var source = new StringBuilder("package test;\npublic class Many {\n");
+        for (int k = 0; k < 24; ++k) {
+            source.append("""
+                public static int m%d(int x) {
+                    int s = %d;
+                    for (int i = 0; i < x; ++i) {
+                        if ((i & 1) == 0) {
+                            s += i * %d;
+                        }
+                        else {
+                            s ^= i;
+                        }
+                    }
+                    return s;
+                }
+                """.formatted(k, k, k));
+        }
+        source.append("}\n");
+        byte[] src = TestClasses.compile(Map.of("test.Many", source.toString())).get("test/Many");
+
+        byte[] single = withThreads(1).getObfuscatedClassSupplier(src).get();
+        assertNotEquals(TestClasses.methodText(src, "m5"), TestClasses.methodText(single, "m5"));
+        for (int threads : new int[] { 2, 4 }) {
+            assertArrayEquals(single, withThreads(threads).getObfuscatedClassSupplier(src).get(), threads + " threads");
+        }
+
+        Class<?> many = TestClasses.load(TestClasses.loader(List.of(single)), "test.Many");
+        for (int k = 0; k < 24; ++k) {
+            assertEquals(expected(k, 7), many.getMethod("m" + k, int.class).invoke(null, 7));
+        }
+    }
+
+    @Test
+    void testTryCatchWithReusedSlotVerifies() throws Exception {
+        // Слот 2 до try - int, в try и в обработчике - String. Ложное ветвление
+        // из try в начало метода записывает в него int, что обработчик не должен увидеть
+        var source = new StringBuilder("package test;\npublic class Slots {\n");
+        for (int k = 0; k < 32; ++k) {
+            source.append("""
+                public static int parse%d(String s, int k) {
+                    {
+                        int tmp = k * 3;
+                        k = tmp + 1;
+                    }
+                    String name = s.trim();
+                    try {
+                        return Integer.parseInt(name) + k;
+                    } catch (NumberFormatException e) {
+                        return name.isEmpty() ? -2 : -1;
+                    }
+                }
+                """.formatted(k));
+        }
+        source.append("}\n");
+        byte[] src = TestClasses.compile(Map.of("test.Slots", source.toString())).get("test/Slots");
+        byte[] dst = withThreads(1).getObfuscatedClassSupplier(src).get();
+
+        // Тесты запускаются с -Xverify:all
+        Class<?> slots = TestClasses.load(TestClasses.loader(List.of(dst)), "test.Slots");
+        for (int k = 0; k < 32; ++k) {
+            var method = slots.getMethod("parse" + k, String.class, int.class);
+            assertEquals(14, method.invoke(null, " 10 ", 1));
+            assertEquals(-1, method.invoke(null, "x", 1));
+            assertEquals(-2, method.invoke(null, " ", 1));
+        }
+    }
+
+    @Test
+    void testNestedObjectCreationVerifies() throws Exception {
+        // Создание объектов вложено в аргументы и идет подряд, а метод last
+        // заканчивается созданием объекта, за которым только areturn.
+        // Без отладочной информации после areturn нет меток
+        var source = new StringBuilder("""
+            package test;
+            import java.util.AbstractMap.SimpleEntry;
+            public class Nested {
+            """);
+        for (int k = 0; k < 16; ++k) {
+            source.append("""
+                public static String pair%d(int x) {
+                    Object entry = new SimpleEntry<Object, Object>(
+                        new SimpleEntry<Object, Object>(new StringBuilder(String.valueOf(x)), new StringBuilder("%d")),
+                        new StringBuilder("y")
+                    );
+                    return entry.toString();
+                }
+                public static Object last%d(int x) {
+                    return new SimpleEntry<Object, Object>(new StringBuilder(String.valueOf(x + %d)), new StringBuilder("z"));
+                }
+                """.formatted(k, k, k, k));
+        }
+        source.append("}\n");
+        byte[] src = TestClasses.compile(Map.of("test.Nested", source.toString()), "-g:none").get("test/Nested");
+        byte[] dst = withThreads(1).getObfuscatedClassSupplier(src).get();
+        assertNotEquals(TestClasses.methodText(src, "pair3"), TestClasses.methodText(dst, "pair3"));
+
+        // Тесты запускаются с -Xverify:all
+        Class<?> nested = TestClasses.load(TestClasses.loader(List.of(dst)), "test.Nested");
+        for (int k = 0; k < 16; ++k) {
+            assertEquals("2=" + k + "=y", nested.getMethod("pair" + k, int.class).invoke(null, 2));
+            assertEquals((2 + k) + "=z", nested.getMethod("last" + k, int.class).invoke(null, 2).toString());
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+package ru.fewizz.obfuscators;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import ru.fewizz.Main;
+import ru.fewizz.benchmark.CorpusGenerator;
+
+/**
+ * Обфускаторы на синтетической программе {@link CorpusGenerator}
+ */
+public class CorpusTests {
+
+    private static Object callLastMethod(ClassLoader loader, String name, int argument) throws Exception {
+        Class<?> c = loader.loadClass(name);
+        return c.getMethod("m2", int.class).invoke(c.getConstructor().newInstance(), argument);
+    }
+
+    @Test
+    void testCorpusBehavesTheSameAfterObfuscation() throws Exception {
+        var config = CorpusGenerator.Config.DEFAULT.with("classes", 40).with("interfaces", 5).with("methods", 3);
+        List<byte[]> corpus = new ArrayList<>();
+        CorpusGenerator.generate(config, corpus::add);
+        List<byte[]> obfuscated = Main.obfuscate(corpus, Main.createObfuscators(List.of(
+            "ru.fewizz.obfuscators.NaiveStringConstantsObfuscator",
+            "ru.fewizz.obfuscators.ControlFlowObfuscator",
+            "ru.fewizz.obfuscators.PeepholeOptimizer"
+        )));
+        assertEquals(corpus.size(), obfuscated.size());
+
+        ClassLoader source = TestClasses.loader(corpus);
+        ClassLoader target = TestClasses.loader(obfuscated);
+        for (int i = 0; i < config.classes(); ++i) {
+            String name = "synthetic.C" + i;
+            assertEquals(callLastMethod(source, name, i), callLastMethod(target, name, i), name);
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+package ru.fewizz.obfuscators;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.objectweb.asm.ClassReader;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class DebugMetadataDeleterTests {
+
+    private static final Map<String, String> SOURCE = Map.of("test.Debug", """
+        package test;
+        public class Debug {
+            public static int sum(int n) {
+                int localName = 0;
+                for (int i = 0; i < n; ++i) {
+                    localName += i;
+                }
+                return localName;
+            }
+        }
+        """);
+
+    private static Map<String, Long> attributeSizes(byte[] classBytes) {
+        Map<String, Long> sizes = new HashMap<>();
+        ClassFileScanner.forEachAttribute(new ClassReader(classBytes), (name, size) ->
+            sizes.merge(name, size.longValue(), Long::sum)
+        );
+        return sizes;
+    }
+
+    @Test
+    void testClassWithoutDebugInfoIsReturnedAsIs() throws Exception {
+        byte[] src = TestClasses.compile(SOURCE, "-g:none").get("test/Debug");
+        assertSame(src, new DebugMetadataDeleter().getObfuscatedClassSupplier(src).get());
+    }
+
+    @Test
+    void testDebugInfoIsStripped() throws Exception {
+        byte[] src = TestClasses.compile(SOURCE).get("test/Debug");
+        byte[] dst = new DebugMetadataDeleter().getObfuscatedClassSupplier(src).get();
+
+        String text = new String(dst, StandardCharsets.ISO_8859_1);
+        for (String removed : List.of("LineNumberTable", "LocalVariableTable", "SourceFile", "localName")) {
+            assertFalse(text.contains(removed), removed);
+        }
+        Class<?> debug = TestClasses.load(TestClasses.loader(List.of(dst)), "test.Debug");
+        assertEquals(10, debug.getMethod("sum", int.class).invoke(null, 5));
+    }
+
+    @Test
+    void testRecordComponentAttributesAreStripped() throws Exception {
+        byte[] src = TestClasses.compile(Map.of(
+            "test.Hidden", """
+                package test;
+                @java.lang.annotation.Target(java.lang.annotation.ElementType.RECORD_COMPONENT)
+                public @interface Hidden {}
+                """,
+            "test.Pair", """
+                package test;
+                public record Pair(@Hidden int first, java.util.List<String> second) {}
+                """
+        )).get("test/Pair");
+        long invisible = attributeSizes(src).get("RuntimeInvisibleAnnotations");
+
+        var deleter = new DebugMetadataDeleter(DebugMetadataDeleter.AGGRESSIVE_PRESET);
+        byte[] dst = deleter.getObfuscatedClassSupplier(src).get();
+        Map<String, Long> left = attributeSizes(dst);
+        assertFalse(left.containsKey("RuntimeInvisibleAnnotations"));
+        assertFalse(left.containsKey("Signature"));
+        assertFalse(new String(dst, StandardCharsets.ISO_8859_1).contains("Ltest/Hidden;"));
+        assertEquals(invisible, deleter.getStrippedBytes("RuntimeInvisibleAnnotations"));
+
+        Class<?> pair = TestClasses.load(TestClasses.loader(List.of(dst)), "test.Pair");
+        assertEquals(2, pair.getRecordComponents().length);
+    }
+
+    @Test
+    void testLocalVariableTypeTableIsCountedWithLocalVariableTable() throws Exception {
+        byte[] src = TestClasses.compile(Map.of("test.Generic", """
+            package test;
+            public class Generic {
+                public static int size() {
+                    java.util.List<String> strings = java.util.List.of("a", "b");
+                    return strings.size();
+                }
+            }
+            """)).get("test/Generic");
+        Map<String, Long> sizes = attributeSizes(src);
+
+        var deleter = new DebugMetadataDeleter(Set.of("LocalVariableTable"));
+        byte[] dst = deleter.getObfuscatedClassSupplier(src).get();
+        Map<String, Long> left = attributeSizes(dst);
+        assertFalse(left.containsKey("LocalVariableTable"));
+        assertFalse(left.containsKey("LocalVariableTypeTable"));
+        assertEquals(
+            sizes.get("LocalVariableTable") + sizes.get("LocalVariableTypeTable"),
+            deleter.getStrippedBytes("LocalVariableTable")
+        );
+        assertEquals(0, deleter.getStrippedBytes("LocalVariableTypeTable"));
+    }
+
+}
@@ -1,6 +1,13 @@
 package ru.fewizz.obfuscators;
 
 import java.io.ByteArrayInputStream;
+import java.lang.reflect.ParameterizedType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.apache.bcel.Const;
 import org.apache.bcel.classfile.ClassParser;
@@ -15,6 +22,8 @@ import org.apache.bcel.generic.Type;
 import static org.junit.jupiter.api.Assertions.*;
 import org.junit.jupiter.api.Test;
 
+import ru.fewizz.Main;
+import ru.fewizz.Retrace;
 import ru.fewizz.obfuscators.LexicalObfuscator.ClassMapping;
 
 public class LexicalObfuscatorTests {
@@ -200,4 +209,228 @@ public class LexicalObfuscatorTests {
         assertEquals(methodMapping, dst.getMethods()[0].getName());
     }
 
+    @Test
+    void testCompactDeterministicNames() throws Exception {
+        // Классы подаются не в алфавитном порядке
+        ClassGen genB = new ClassGen("test.B", "java.lang.Object", null, 0, new String[]{});
+        ClassGen genA = new ClassGen("test.A", "java.lang.Object", null, 0, new String[]{});
+        // Поля с разными дескрипторами могут иметь одинаковые имена
+        Field intField = new FieldGen(Const.ACC_PRIVATE, Type.INT, "intField", genA.getConstantPool()).getField();
+        Field charField = new FieldGen(Const.ACC_PRIVATE, Type.CHAR, "charField", genA.getConstantPool()).getField();
+        Field otherCharField = new FieldGen(Const.ACC_PRIVATE, Type.CHAR, "otherCharField", genA.getConstantPool()).getField();
+        genA.addField(intField);
+        genA.addField(charField);
+        genA.addField(otherCharField);
+
+        JavaClass srcB = genB.getJavaClass();
+        JavaClass srcA = genA.getJavaClass();
+        obf.getObfuscatedClassSupplier(srcB.getBytes());
+        var dstBytesA = obf.getObfuscatedClassSupplier(srcA.getBytes());
+        obf.onAllClassesProvided();
+
+        assertEquals("a", obf.mappings.get(srcA).translated());
+        assertEquals("b", obf.mappings.get(srcB).translated());
+
+        ClassMapping mappingA = obf.mappings.get(srcA);
+        assertEquals("a", mappingA.fieldMappings().get(intField));
+        assertEquals("a", mappingA.fieldMappings().get(charField));
+        assertEquals("b", mappingA.fieldMappings().get(otherCharField));
+
+        JavaClass dstA = parseJavaClass(dstBytesA.get());
+        assertEquals("a", dstA.getClassName());
+        assertEquals("a", dstA.getFields()[0].getName());
+        assertEquals("a", dstA.getFields()[1].getName());
+        assertEquals("b", dstA.getFields()[2].getName());
+    }
+
+    @Test
+    void testRepackaging() throws Exception {
+        var obf = new LexicalObfuscator(List.of("p", "q"));
+        // Классы одного пакета переносятся вместе
+        JavaClass srcA = new ClassGen("x.A", "java.lang.Object", null, 0, new String[]{}).getJavaClass();
+        JavaClass srcB = new ClassGen("x.B", "x.A", null, 0, new String[]{}).getJavaClass();
+        JavaClass srcC = new ClassGen("y.C", "x.B", null, 0, new String[]{}).getJavaClass();
+        var dstBytesB = obf.getObfuscatedClassSupplier(srcB.getBytes());
+        obf.getObfuscatedClassSupplier(srcA.getBytes());
+        obf.getObfuscatedClassSupplier(srcC.getBytes());
+        obf.onAllClassesProvided();
+
+        assertEquals("p.a", obf.mappings.get(srcA).translated());
+        assertEquals("p.b", obf.mappings.get(srcB).translated());
+        assertEquals("q.a", obf.mappings.get(srcC).translated());
+
+        JavaClass dstB = parseJavaClass(dstBytesB.get());
+        assertEquals("p.b", dstB.getClassName());
+        assertEquals("p.a", dstB.getSuperclassName());
+    }
+
+    @Test
+    void testAsmEngine() throws Exception {
+        var obf = new LexicalObfuscator(List.of(""), LexicalObfuscator.Engine.ASM);
+        ClassGen genA = new ClassGen("test.A", "java.lang.Object", null, 0, new String[]{});
+        genA.addField(new FieldGen(Const.ACC_PRIVATE, Type.INT, "field", genA.getConstantPool()).getField());
+        JavaClass srcA = genA.getJavaClass();
+        JavaClass srcB = new ClassGen("test.B", "test.A", null, 0, new String[]{}).getJavaClass();
+        var dstBytesA = obf.getObfuscatedClassSupplier(srcA.getBytes());
+        var dstBytesB = obf.getObfuscatedClassSupplier(srcB.getBytes());
+        obf.onAllClassesProvided();
+
+        JavaClass dstA = parseJavaClass(dstBytesA.get());
+        JavaClass dstB = parseJavaClass(dstBytesB.get());
+        assertEquals("a", dstA.getClassName());
+        assertEquals("a", dstA.getFields()[0].getName());
+        assertEquals("a", dstB.getSuperclassName());
+        // Пул констант строится заново, исходных имен в нем не остается
+        assertFalse(hasUTF8(dstA, "test/A"));
+        assertFalse(hasUTF8(dstA, "field"));
+        assertFalse(hasUTF8(dstB, "test/A"));
+    }
+
+    @Test
+    void testExportedStateRemapsTheSame() throws Exception {
+        var obf = new LexicalObfuscator(List.of(""), LexicalObfuscator.Engine.ASM);
+        ClassGen genA = new ClassGen("test.A", "java.lang.Object", null, 0, new String[]{});
+        genA.addField(new FieldGen(Const.ACC_PRIVATE, Type.INT, "field", genA.getConstantPool()).getField());
+        byte[] srcA = genA.getJavaClass().getBytes();
+        byte[] srcB = new ClassGen("test.B", "test.A", null, 0, new String[]{}).getJavaClass().getBytes();
+        var dstBytesA = obf.getObfuscatedClassSupplier(srcA);
+        var dstBytesB = obf.getObfuscatedClassSupplier(srcB);
+        obf.onAllClassesProvided();
+
+        // Экземпляр в другом процессе получает только состояние
+        var worker = new LexicalObfuscator(List.of(""), LexicalObfuscator.Engine.ASM);
+        worker.importState(obf.exportState());
+        assertArrayEquals(dstBytesA.get(), worker.getObfuscatedClassSupplier(srcA).get());
+        assertArrayEquals(dstBytesB.get(), worker.getObfuscatedClassSupplier(srcB).get());
+
+        // Модели классов BCEL из процесса не выносятся
+        var bcel = new LexicalObfuscator(List.of(""), LexicalObfuscator.Engine.BCEL);
+        bcel.getObfuscatedClassSupplier(srcA);
+        bcel.onAllClassesProvided();
+        assertNull(bcel.exportState());
+    }
+
+    @Test
+    void testMappingRetracesStackFrames() throws Exception {
+        var obf = new LexicalObfuscator(List.of(""));
+        ClassGen genA = new ClassGen("test.A", "java.lang.Object", null, 0, new String[]{});
+        for (Type arg : List.of(Type.INT, Type.STRING)) {
+            genA.addMethod(new MethodGen(
+                Const.ACC_ABSTRACT, Type.VOID, new Type[]{arg}, null,
+                arg == Type.INT ? "parse" : "read", null, null, genA.getConstantPool()
+            ).getMethod());
+        }
+        obf.getObfuscatedClassSupplier(genA.getJavaClass().getBytes());
+        obf.onAllClassesProvided();
+
+        Path mapping = Files.createTempFile("mapping", ".txt");
+        try {
+            obf.writeMapping(mapping);
+            Retrace retrace = Retrace.load(mapping);
+            // Дескрипторы разные, имя одно: без номеров строк метод неоднозначен
+            assertEquals("\tat test.A.parse|read(Unknown Source)", retrace.retraceLine("\tat a.a(Unknown Source)"));
+            assertEquals("Caused by: test.A: message", retrace.retraceLine("Caused by: a: message"));
+            assertEquals("\tat java.base/java.lang.Thread.run(Thread.java:1583)", retrace.retraceLine("\tat java.base/java.lang.Thread.run(Thread.java:1583)"));
+        } finally {
+            Files.delete(mapping);
+        }
+    }
+
+    @Test
+    void testNamesDoNotDependOnThreadCount() throws Exception {
+        List<JavaClass> classes = new ArrayList<>();
+        // Несколько независимых иерархий с методами одного дескриптора
+        for (int i = 0; i < 8; ++i) {
+            ClassGen base = new ClassGen("test.Base" + i, "java.lang.Object", null, Const.ACC_ABSTRACT, new String[]{});
+            ClassGen derived = new ClassGen("test.Derived" + i, "test.Base" + i, null, Const.ACC_ABSTRACT, new String[]{});
+            for (ClassGen classGen : List.of(base, derived)) {
+                for (String name : List.of("first", "second", classGen.getClassName().substring(5))) {
+                    classGen.addMethod(new MethodGen(
+                        Const.ACC_ABSTRACT, Type.VOID, new Type[]{}, new String[]{},
+                        name, null, null, classGen.getConstantPool()
+                    ).getMethod());
+                }
+                classes.add(classGen.getJavaClass());
+            }
+        }
+
+        Map<String, String> expected = null;
+        for (int threads : new int[]{1, 4}) {
+            var obf = new LexicalObfuscator(List.of(""), LexicalObfuscator.Engine.BCEL, threads);
+            for (JavaClass javaClass : classes) {
+                obf.getObfuscatedClassSupplier(javaClass.getBytes());
+            }
+            obf.onAllClassesProvided();
+
+            Map<String, String> names = new TreeMap<>();
+            obf.mappings.forEach((javaClass, mapping) -> {
+                names.put(javaClass.getClassName(), mapping.translated());
+                mapping.methodMappings().forEach((method, name) ->
+                    names.put(javaClass.getClassName() + "." + method.getName(), name)
+                );
+            });
+            if (expected == null) {
+                expected = names;
+            }
+            assertEquals(expected, names);
+        }
+    }
+
+    @Test
+    void testLibraryInterfaceMethodKeepsName() throws Exception {
+        // run() реализует метод библиотечного интерфейса и переименовываться не должен
+        ClassGen classGen = new ClassGen("test.Task", "java.lang.Object", null, Const.ACC_ABSTRACT, new String[]{"java.lang.Runnable"});
+        for (String name : List.of("run", "other")) {
+            classGen.addMethod(new MethodGen(
+                Const.ACC_PUBLIC | Const.ACC_ABSTRACT, Type.VOID, new Type[]{}, new String[]{},
+                name, null, null, classGen.getConstantPool()
+            ).getMethod());
+        }
+        JavaClass src = classGen.getJavaClass();
+        obf.getObfuscatedClassSupplier(src.getBytes());
+        obf.onAllClassesProvided();
+
+        var methodMappings = obf.mappings.get(src).methodMappings();
+        assertNull(methodMappings.get(src.getMethods()[0]));
+        assertNotNull(methodMappings.get(src.getMethods()[1]));
+    }
+
+    /**
+     * Переименованный вложенный класс не называется <code>&lt;внешний&gt;$&lt;имя&gt;</code>,
+     * поэтому в сигнатуре он записывается целиком, а не как <code>Outer&lt;T&gt;.x</code>
+     */
+    @Test
+    void testInnerClassTypeInSignature() throws Exception {
+        Map<String, byte[]> src = TestClasses.compile(Map.of("test.Outer", """
+            package test;
+            public class Outer<T> {
+                public class Inner<U> {
+                    public T t;
+                    public U u;
+                }
+                public Outer<String>.Inner<Integer> field;
+                public static <V> java.util.List<Outer<V>.Inner<V>> make() {
+                    return null;
+                }
+            }
+            """));
+        for (var engine : LexicalObfuscator.Engine.values()) {
+            var lexical = new LexicalObfuscator(List.of(""), engine);
+            List<byte[]> dst = Main.obfuscate(List.copyOf(src.values()), List.of(lexical));
+            ClassLoader loader = TestClasses.loader(dst);
+            Class<?> outer = TestClasses.load(loader, lexical.getTranslatedClassName("test.Outer"));
+            Class<?> inner = TestClasses.load(loader, lexical.getTranslatedClassName("test.Outer$Inner"));
+
+            var field = (ParameterizedType) outer.getDeclaredFields()[0].getGenericType();
+            assertSame(inner, field.getRawType(), engine.name());
+            assertSame(outer, field.getOwnerType(), engine.name());
+            assertArrayEquals(new Object[] { Integer.class }, field.getActualTypeArguments(), engine.name());
+
+            var list = (ParameterizedType) outer.getDeclaredMethods()[0].getGenericReturnType();
+            var element = (ParameterizedType) list.getActualTypeArguments()[0];
+            assertSame(inner, element.getRawType(), engine.name());
+            assertEquals("V", element.getActualTypeArguments()[0].getTypeName(), engine.name());
+        }
+    }
+
 }
@@ -0,0 +1,76 @@
+package ru.fewizz.obfuscators;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class LoopAnalyzerTests implements Opcodes {
+
+    private enum Condition { PARAMETER, CONSTANT_ZERO }
+
+    /**
+     * <code>static void m(int)</code>: начало, затем <code>&lt;condition&gt; ifne</code>
+     * назад на начало, затем <code>return</code>
+     */
+    private static int[] loopDepths(Condition condition) throws Exception {
+        var method = new MethodNode(ACC_STATIC, "m", "(I)V", null, null);
+        var start = new LabelNode();
+        method.instructions.add(start);
+        method.instructions.add(new InsnNode(NOP));
+        method.instructions.add(condition == Condition.CONSTANT_ZERO ?
+            new InsnNode(ICONST_0) :
+            new VarInsnNode(ILOAD, 0)
+        );
+        method.instructions.add(new JumpInsnNode(IFNE, start));
+        method.instructions.add(new InsnNode(RETURN));
+        method.maxLocals = 1;
+        method.maxStack = 1;
+
+        var analyzer = new LoopAnalyzer<>(new BasicInterpreter());
+        analyzer.analyze("test/Owner", method);
+        int[] depths = new int[method.instructions.size()];
+        for (int i = 0; i < depths.length; ++i) {
+            depths[i] = analyzer.getLoopDepth(i);
+        }
+        return depths;
+    }
+
+    @Test
+    void testBackwardJumpIsLoop() throws Exception {
+        assertArrayEquals(new int[] { 1, 1, 1, 1, 0 }, loopDepths(Condition.PARAMETER));
+    }
+
+    @Test
+    void testJumpOnConstantZeroIsNotLoop() throws Exception {
+        // iconst_0; ifne никогда не переходит - ложное ветвление ControlFlowObfuscator'а
+        assertArrayEquals(new int[] { 0, 0, 0, 0, 0 }, loopDepths(Condition.CONSTANT_ZERO));
+    }
+
+    @Test
+    void testDeadBranchOfConstantZeroIsIgnored() throws Exception {
+        // iconst_0; ifeq всегда переходит, и goto назад после него недостижим
+        var method = new MethodNode(ACC_STATIC, "m", "()V", null, null);
+        var start = new LabelNode();
+        var end = new LabelNode();
+        method.instructions.add(start);
+        method.instructions.add(new InsnNode(ICONST_0));
+        method.instructions.add(new JumpInsnNode(IFEQ, end));
+        method.instructions.add(new JumpInsnNode(GOTO, start));
+        method.instructions.add(end);
+        method.instructions.add(new InsnNode(RETURN));
+        method.maxStack = 1;
+
+        var analyzer = new LoopAnalyzer<>(new BasicInterpreter());
+        analyzer.analyze("test/Owner", method);
+        for (int i = 0; i < method.instructions.size(); ++i) {
+            assertEquals(0, analyzer.getLoopDepth(i), "instruction " + i);
+        }
+    }
+
+}
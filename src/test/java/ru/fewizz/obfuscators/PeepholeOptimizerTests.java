@@ -0,0 +1,147 @@
+package ru.fewizz.obfuscators;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+public class PeepholeOptimizerTests implements Opcodes {
+
+    private static List<Integer> opcodes(InsnList insns) {
+        List<Integer> opcodes = new ArrayList<>();
+        for (AbstractInsnNode insn : insns) {
+            if (insn.getOpcode() >= 0) {
+                opcodes.add(insn.getOpcode());
+            }
+        }
+        return opcodes;
+    }
+
+    /**
+     * Загружает класс test.Peephole с единственным методом <code>m(I)I</code>
+     * (тесты запускаются с -Xverify:all) и вызывает его
+     */
+    private static Object call(MethodNode methodNode, int argument) throws Exception {
+        var classNode = new ClassNode();
+        classNode.visit(V17, ACC_PUBLIC, "test/Peephole", null, "java/lang/Object", null);
+        classNode.methods.add(methodNode);
+        var classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        classNode.accept(classWriter);
+        Class<?> c = TestClasses.load(TestClasses.loader(List.of(classWriter.toByteArray())), "test.Peephole");
+        return c.getMethod("m", int.class).invoke(null, argument);
+    }
+
+    @Test
+    void testPeepholeKeepsFakeBranch() throws Exception {
+        // Ложное ветвление с подгонкой переменной, которая дальше не читается
+        var methodNode = new MethodNode(ACC_PUBLIC | ACC_STATIC, "m", "(I)I", null, null);
+        var real = new LabelNode();
+        var end = new LabelNode();
+        InsnList insns = methodNode.instructions;
+        insns.add(new InsnNode(ICONST_0));
+        insns.add(new JumpInsnNode(IFEQ, real));
+        insns.add(new InsnNode(ACONST_NULL));
+        insns.add(new TypeInsnNode(CHECKCAST, "java/lang/String"));
+        insns.add(new VarInsnNode(ASTORE, 1));
+        insns.add(new InsnNode(ICONST_5));
+        insns.add(new InsnNode(POP));
+        insns.add(new VarInsnNode(ILOAD, 0));
+        insns.add(new JumpInsnNode(GOTO, end));
+        insns.add(real);
+        insns.add(new VarInsnNode(ILOAD, 0));
+        insns.add(end);
+        insns.add(new InsnNode(IRETURN));
+        methodNode.maxLocals = 2;
+        methodNode.maxStack = 1;
+
+        assertTrue(PeepholeOptimizer.optimize("test/Peephole", methodNode));
+        assertEquals(List.of(ICONST_0, IFEQ, ILOAD, GOTO, ILOAD, IRETURN), opcodes(insns));
+        assertEquals(7, call(methodNode, 7));
+    }
+
+    @Test
+    void testMergedTailsAndRemovedCodeVerify() throws Exception {
+        // Два ветвления с одинаковой подгонкой переменной перед переходом в одно место
+        var methodNode = new MethodNode(ACC_PUBLIC | ACC_STATIC, "m", "(I)I", null, null);
+        var other = new LabelNode();
+        var end = new LabelNode();
+        InsnList insns = methodNode.instructions;
+        insns.add(new VarInsnNode(ILOAD, 0));
+        insns.add(new JumpInsnNode(IFEQ, other));
+        insns.add(new IincInsnNode(0, 1));
+        insns.add(new InsnNode(ICONST_4));
+        insns.add(new VarInsnNode(ISTORE, 1));
+        insns.add(new JumpInsnNode(GOTO, end));
+        insns.add(other);
+        insns.add(new IincInsnNode(0, -1));
+        insns.add(new InsnNode(ICONST_4));
+        insns.add(new VarInsnNode(ISTORE, 1));
+        insns.add(new JumpInsnNode(GOTO, end));
+        // Недостижимый код
+        insns.add(new InsnNode(ICONST_3));
+        insns.add(new VarInsnNode(ISTORE, 1));
+        insns.add(new JumpInsnNode(GOTO, end));
+        insns.add(end);
+        insns.add(new VarInsnNode(ILOAD, 1));
+        insns.add(new VarInsnNode(ILOAD, 0));
+        insns.add(new InsnNode(IADD));
+        insns.add(new InsnNode(IRETURN));
+        methodNode.maxLocals = 2;
+        methodNode.maxStack = 2;
+
+        assertTrue(PeepholeOptimizer.optimize("test/Peephole", methodNode));
+        // Второе ветвление переходит на хвост первого, недостижимый код удален
+        assertEquals(List.of(
+            ILOAD, IFEQ, IINC, ICONST_4, ISTORE, GOTO, IINC, GOTO, ILOAD, ILOAD, IADD, IRETURN
+        ), opcodes(insns));
+        assertEquals(10, call(methodNode, 5));
+        assertEquals(3, call(methodNode, 0));
+    }
+
+    @Test
+    void testControlFlowOutputStillVerifies() throws Exception {
+        byte[] src = TestClasses.compile(Map.of("test.Flow", """
+            package test;
+            public class Flow {
+                public static int run(int n) {
+                    String label = "x";
+                    int sum = 0;
+                    for (int i = 0; i < n; ++i) {
+                        if (i % 3 == 0) {
+                            label = label + i;
+                        }
+                        sum += label.length() * i;
+                    }
+                    return sum;
+                }
+            }
+            """)).get("test/Flow");
+        byte[] flow = new ControlFlowObfuscator().getObfuscatedClassSupplier(src).get();
+        byte[] dst = new PeepholeOptimizer().getObfuscatedClassSupplier(flow).get();
+        assertNotSame(flow, dst);
+
+        Class<?> expected = TestClasses.load(TestClasses.loader(List.of(src)), "test.Flow");
+        Class<?> actual = TestClasses.load(TestClasses.loader(List.of(dst)), "test.Flow");
+        for (int n : new int[] { 0, 1, 10 }) {
+            assertEquals(
+                expected.getMethod("run", int.class).invoke(null, n),
+                actual.getMethod("run", int.class).invoke(null, n)
+            );
+        }
+    }
+
+}
@@ -0,0 +1,283 @@
+package ru.fewizz.obfuscators;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import ru.fewizz.Main;
+
+public class ShrinkerTests {
+
+    // Программа, в которой к каждому виду корней ведет ровно один путь
+    private static final Map<String, String> SOURCES = Map.ofEntries(
+        Map.entry("app.Main", """
+            package app;
+            import java.util.function.Supplier;
+            public class Main {
+                public static void main(String[] args) {
+                    Shape shape = args.length > 0 ? new Circle() : new Square();
+                    Named named = new Circle();
+                    Runnable lambda = () -> Helper.run();
+                    Supplier<String> reference = Helper::text;
+                    lambda.run();
+                    new Thread(new Task()).run();
+                    Color color = Color.valueOf("RED");
+                    Point point = new Point(1, 2);
+                    Comparable<Item> item = new Item();
+                    Annotated annotated = new Annotated();
+                    annotated.method(annotated.field);
+                    System.out.println(shape.area() + named.name() + reference.get() + color + point + item.compareTo(null));
+                }
+            }
+            """),
+        Map.entry("app.Shape", """
+            package app;
+            abstract class Shape {
+                abstract double area();
+                void unusedShape() {}
+            }
+            """),
+        Map.entry("app.Circle", """
+            package app;
+            class Circle extends Shape implements Named {
+                double area() { return 3; }
+                public String name() { return "circle"; }
+                void unusedCircle() {}
+            }
+            """),
+        Map.entry("app.Square", """
+            package app;
+            class Square extends Shape {
+                double area() { return 4; }
+            }
+            """),
+        Map.entry("app.Named", """
+            package app;
+            interface Named {
+                String name();
+            }
+            """),
+        Map.entry("app.Helper", """
+            package app;
+            class Helper {
+                static void run() {}
+                static String text() { return "text"; }
+                static void unusedHelper() {}
+            }
+            """),
+        Map.entry("app.Task", """
+            package app;
+            class Task implements Runnable {
+                public void run() {}
+            }
+            """),
+        Map.entry("app.Item", """
+            package app;
+            class Item implements Comparable<Item> {
+                public int compareTo(Item other) { return 0; }
+            }
+            """),
+        Map.entry("app.Color", """
+            package app;
+            enum Color { RED, GREEN }
+            """),
+        Map.entry("app.Point", """
+            package app;
+            record Point(int x, int y) {}
+            """),
+        Map.entry("app.Kept", """
+            package app;
+            class Kept {
+                void keptMethod() {}
+                void otherMethod() {}
+            }
+            """),
+        Map.entry("app.Marker", """
+            package app;
+            import java.lang.annotation.*;
+            @Retention(RetentionPolicy.RUNTIME)
+            public @interface Marker {
+                Class<?> value();
+                Level level();
+                Nested[] nested() default {};
+            }
+            """),
+        Map.entry("app.Nested", """
+            package app;
+            @interface Nested {
+                Class<?> value();
+            }
+            """),
+        Map.entry("app.Level", """
+            package app;
+            public enum Level { LOW, HIGH }
+            """),
+        Map.entry("app.Annotated", """
+            package app;
+            class Annotated {
+                @Marker(value = OnlyInAnnotation.class, level = Level.HIGH, nested = @Nested(OnlyInNested.class))
+                int field;
+                void method(@Nested(OnlyInParameter.class) int x) {}
+            }
+            """),
+        Map.entry("app.OnlyInAnnotation", """
+            package app;
+            class OnlyInAnnotation {}
+            """),
+        Map.entry("app.OnlyInNested", """
+            package app;
+            class OnlyInNested {}
+            """),
+        Map.entry("app.OnlyInParameter", """
+            package app;
+            class OnlyInParameter {}
+            """),
+        Map.entry("app.Unused", """
+            package app;
+            class Unused {}
+            """)
+    );
+
+    private static Map<String, ClassNode> result;
+    private static ClassLoader loader;
+
+    @BeforeAll
+    static void shrink() throws Exception {
+        Map<String, byte[]> classes = TestClasses.compile(SOURCES);
+        List<byte[]> shrunk = Main.obfuscate(
+            new ArrayList<>(classes.values()),
+            List.of(new Shrinker(true, List.of("app.Kept#keptMethod")))
+        );
+        result = new HashMap<>();
+        for (byte[] bytes : shrunk) {
+            var classNode = new ClassNode();
+            new ClassReader(bytes).accept(classNode, 0);
+            result.put(classNode.name, classNode);
+        }
+        // Все оставшиеся классы загружаются и проходят проверку
+        loader = TestClasses.loader(shrunk);
+        for (String name : result.keySet()) {
+            TestClasses.load(loader, name);
+        }
+    }
+
+    private static boolean hasMethod(String owner, String name) {
+        ClassNode classNode = result.get(owner);
+        return classNode != null && classNode.methods.stream().anyMatch(m -> m.name.equals(name));
+    }
+
+    private static boolean hasField(String owner, String name) {
+        ClassNode classNode = result.get(owner);
+        return classNode != null && classNode.fields.stream().anyMatch(f -> f.name.equals(name));
+    }
+
+    @Test
+    void testProgramStillRuns() throws Exception {
+        Method main = TestClasses.load(loader, "app.Main").getMethod("main", String[].class);
+        main.invoke(null, (Object) new String[0]);
+    }
+
+    @Test
+    void testUnreachableCodeIsRemoved() {
+        assertFalse(result.containsKey("app/Unused"));
+        assertFalse(hasMethod("app/Shape", "unusedShape"));
+        assertFalse(hasMethod("app/Circle", "unusedCircle"));
+        assertFalse(hasMethod("app/Helper", "unusedHelper"));
+    }
+
+    @Test
+    void testVirtualDispatchKeepsOverrides() {
+        // Через суперкласс: вызывается Shape.area, реализации в наследниках
+        assertTrue(hasMethod("app/Shape", "area"));
+        assertTrue(hasMethod("app/Circle", "area"));
+        assertTrue(hasMethod("app/Square", "area"));
+        // Через интерфейс
+        assertTrue(hasMethod("app/Named", "name"));
+        assertTrue(hasMethod("app/Circle", "name"));
+    }
+
+    @Test
+    void testLibraryOverridesAreKept() {
+        // Task.run напрямую не вызывается, его вызывает Thread
+        assertTrue(hasMethod("app/Task", "run"));
+        // compareTo(Item) и мост compareTo(Object), переопределяющий Comparable
+        long compareTo = result.get("app/Item").methods.stream().filter(m -> m.name.equals("compareTo")).count();
+        assertEquals(2, compareTo);
+    }
+
+    @Test
+    void testLambdaAndMethodReferenceTargetsAreKept() {
+        MethodNode lambda = result.get("app/Main").methods.stream()
+            .filter(m -> m.name.startsWith("lambda$"))
+            .findFirst().orElse(null);
+        assertNotNull(lambda);
+        assertTrue(hasMethod("app/Helper", "run"));
+        assertTrue(hasMethod("app/Helper", "text"));
+    }
+
+    @Test
+    void testEnumKeepsValuesAndValueOf() throws Exception {
+        assertTrue(hasMethod("app/Color", "values"));
+        assertTrue(hasMethod("app/Color", "valueOf"));
+        assertTrue(hasField("app/Color", "RED"));
+        assertTrue(hasField("app/Color", "GREEN"));
+        Class<?> color = TestClasses.load(loader, "app.Color");
+        assertEquals(2, color.getEnumConstants().length);
+    }
+
+    @Test
+    void testRecordIsKeptWhole() throws Exception {
+        for (String name : List.of("x", "y", "equals", "hashCode", "toString")) {
+            assertTrue(hasMethod("app/Point", name), name);
+        }
+        Class<?> point = TestClasses.load(loader, "app.Point");
+        assertEquals(2, point.getRecordComponents().length);
+    }
+
+    @Test
+    void testAnnotationValuesAreKept() throws Exception {
+        // Значения элементов, в том числе вложенных аннотаций, и аннотации параметров
+        assertTrue(result.containsKey("app/OnlyInAnnotation"));
+        assertTrue(result.containsKey("app/OnlyInNested"));
+        assertTrue(result.containsKey("app/OnlyInParameter"));
+        assertTrue(hasField("app/Level", "HIGH"));
+
+        Class<?> annotated = TestClasses.load(loader, "app.Annotated");
+        @SuppressWarnings("unchecked")
+        var marker = (Class<? extends java.lang.annotation.Annotation>) TestClasses.load(loader, "app.Marker");
+        Object annotation = annotated.getDeclaredField("field").getAnnotation(marker);
+        assertEquals("app.OnlyInAnnotation", ((Class<?>) marker.getMethod("value").invoke(annotation)).getName());
+        assertEquals("HIGH", marker.getMethod("level").invoke(annotation).toString());
+    }
+
+    @Test
+    void testKeepRules() {
+        assertTrue(hasMethod("app/Kept", "keptMethod"));
+        assertFalse(hasMethod("app/Kept", "otherMethod"));
+    }
+
+    @Test
+    void testNoRootsRemovesNothing() throws Exception {
+        Map<String, byte[]> classes = TestClasses.compile(Map.of("lib.Api", """
+            package lib;
+            public class Api {
+                void unused() {}
+            }
+            """));
+        List<byte[]> shrunk = Main.obfuscate(
+            new ArrayList<>(classes.values()), List.of(new Shrinker(false, List.of()))
+        );
+        assertEquals(1, shrunk.size());
+        assertArrayEquals(classes.get("lib/Api"), shrunk.get(0));
+    }
+
+}
@@ -0,0 +1,198 @@
+package ru.fewizz.obfuscators;
+
+import java.lang.reflect.Field;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import ru.fewizz.Main;
+import ru.fewizz.Obfuscator;
+
+public class StringConstantsObfuscatorTests {
+
+    private static final Map<String, String> MIXED = Map.of("test.Mixed", """
+        package test;
+        public class Mixed {
+            public static String greet(String name) {
+                return "hello, ".concat(name);
+            }
+            public static int count(int n) {
+                int sum = 0;
+                for (int i = 0; i < n; ++i) {
+                    sum += i % 3 == 0 ? i : -1;
+                }
+                return sum;
+            }
+        }
+        """);
+
+    private static final Map<String, String> NO_STRINGS = Map.of("test.NoStrings", """
+        package test;
+        public class NoStrings {
+            public static int twice(int x) {
+                return x * 2;
+            }
+        }
+        """);
+
+    private static final Map<String, String> LOOPS = Map.of("test.Loops", """
+        package test;
+        public class Loops {
+            public static String run(int n) {
+                StringBuilder sb = new StringBuilder("outside");
+                for (int i = 0; i < n; ++i) {
+                    sb.append("depth1");
+                    for (int j = 0; j < n; ++j) {
+                        sb.append("depth2");
+                    }
+                }
+                return sb.append("after").toString();
+            }
+        }
+        """);
+
+    private static Set<String> stringLdcs(byte[] classBytes) {
+        Set<String> strings = new HashSet<>();
+        new ClassReader(classBytes).accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM9) {
+                    @Override
+                    public void visitLdcInsn(Object value) {
+                        if (value instanceof String string) {
+                            strings.add(string);
+                        }
+                    }
+                };
+            }
+        }, 0);
+        return strings;
+    }
+
+    /**
+     * Шифрует {@link #LOOPS} с настройкой maxLoopDepth
+     * @return Оставшиеся открытыми строки
+     */
+    private static Set<String> plainStringsWithMaxLoopDepth(int maxLoopDepth) throws Exception {
+        String property = NaiveStringConstantsObfuscator.class.getName() + ".maxLoopDepth";
+        NaiveStringConstantsObfuscator obfuscator;
+        System.setProperty(property, String.valueOf(maxLoopDepth));
+        try {
+            obfuscator = new NaiveStringConstantsObfuscator();
+        } finally {
+            System.clearProperty(property);
+        }
+        byte[] dst = obfuscator.getObfuscatedClassSupplier(TestClasses.compile(LOOPS).get("test/Loops")).get();
+
+        Class<?> loops = TestClasses.load(TestClasses.loader(List.of(dst)), "test.Loops");
+        assertEquals(
+            "outsidedepth1depth2depth2depth1depth2depth2after",
+            loops.getMethod("run", int.class).invoke(null, 2)
+        );
+        Set<String> plain = stringLdcs(dst);
+        plain.retainAll(Set.of("outside", "depth1", "depth2", "after"));
+        return plain;
+    }
+
+    @Test
+    void testNaiveMaxLoopDepth() throws Exception {
+        assertEquals(Set.of(), plainStringsWithMaxLoopDepth(-1));
+        assertEquals(Set.of("depth2"), plainStringsWithMaxLoopDepth(1));
+        assertEquals(Set.of("depth1", "depth2"), plainStringsWithMaxLoopDepth(0));
+    }
+
+    private static void testPassthrough(Obfuscator obfuscator) throws Exception {
+        byte[] noStrings = TestClasses.compile(NO_STRINGS).get("test/NoStrings");
+        assertSame(noStrings, obfuscator.getObfuscatedClassSupplier(noStrings).get());
+
+        byte[] src = TestClasses.compile(MIXED).get("test/Mixed");
+        byte[] dst = obfuscator.getObfuscatedClassSupplier(src).get();
+        // Метод без строк скопирован вместе с фреймами javac, а не пересчитан
+        assertEquals(TestClasses.methodText(src, "count"), TestClasses.methodText(dst, "count"));
+        assertNotEquals(TestClasses.methodText(src, "greet"), TestClasses.methodText(dst, "greet"));
+
+        Class<?> mixed = TestClasses.load(TestClasses.loader(List.of(dst)), "test.Mixed");
+        assertEquals("hello, world", mixed.getMethod("greet", String.class).invoke(null, "world"));
+        assertEquals(5, mixed.getMethod("count", int.class).invoke(null, 7));
+    }
+
+    @Test
+    void testNaivePassthrough() throws Exception {
+        testPassthrough(new NaiveStringConstantsObfuscator());
+    }
+
+    @Test
+    void testInvokeDynamicPassthrough() throws Exception {
+        testPassthrough(new InvokeDynamicStringConstantsObfuscator());
+    }
+
+    /**
+     * @return Число вызовов декодера, записанное в счетчики класса <code>owner</code>
+     */
+    private static long decoderCalls(Class<?> owner) throws Exception {
+        Field field = owner.getDeclaredField("__deobfCounters");
+        field.setAccessible(true);
+        Object counters = field.get(null);
+        Field calls = counters.getClass().getDeclaredField("calls");
+        calls.setAccessible(true);
+        return ((LongAdder) calls.get(counters)).sum();
+    }
+
+    /**
+     * С настройкой counters класс регистрирует свои счетчики, а декодер
+     * отчитывается о каждом вызове. Классы проходят проверку байткода (-Xverify:all)
+     * @param callsPerRun Вызовов декодера на каждый вызов greet после первого
+     */
+    private static void testCounters(Class<? extends Obfuscator> obfuscatorClass, long callsPerRun) throws Exception {
+        String property = obfuscatorClass.getName() + ".counters";
+        List<Obfuscator> obfuscators;
+        System.setProperty(property, "true");
+        try {
+            obfuscators = Main.createObfuscators(List.of(obfuscatorClass.getName()));
+        } finally {
+            System.clearProperty(property);
+        }
+        List<byte[]> dst = Main.obfuscate(List.of(TestClasses.compile(MIXED).get("test/Mixed")), obfuscators);
+        Set<String> names = new HashSet<>();
+        for (byte[] classBytes : dst) {
+            names.add(new ClassReader(classBytes).getClassName());
+        }
+        assertTrue(names.contains("ru/fewizz/runtime/DecoderCounters"), names.toString());
+
+        // Итог при завершении JVM тестам не нужен
+        System.setProperty("ru.fewizz.counters.summary", "false");
+        Class<?> mixed = TestClasses.load(TestClasses.loader(dst), "test.Mixed");
+        long before = decoderCalls(mixed);
+        assertEquals("hello, world", mixed.getMethod("greet", String.class).invoke(null, "world"));
+        assertEquals(before + 1, decoderCalls(mixed));
+        for (int i = 0; i < 3; ++i) {
+            assertEquals("hello, " + i, mixed.getMethod("greet", String.class).invoke(null, String.valueOf(i)));
+        }
+        assertEquals(before + 1 + 3 * callsPerRun, decoderCalls(mixed));
+        // Метод без строк декодер не вызывает
+        assertEquals(5, mixed.getMethod("count", int.class).invoke(null, 7));
+        assertEquals(before + 1 + 3 * callsPerRun, decoderCalls(mixed));
+    }
+
+    @Test
+    void testNaiveCounters() throws Exception {
+        // Декодер вызывается при каждом выполнении ldc
+        testCounters(NaiveStringConstantsObfuscator.class, 1);
+    }
+
+    @Test
+    void testInvokeDynamicCounters() throws Exception {
+        // Загрузчик вызывается один раз на место вызова, дальше строка берется из CallSite
+        testCounters(InvokeDynamicStringConstantsObfuscator.class, 0);
+    }
+
+}
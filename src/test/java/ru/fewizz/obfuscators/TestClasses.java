@@ -0,0 +1,126 @@
+package ru.fewizz.obfuscators;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import javax.tools.ToolProvider;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.util.Textifier;
+import org.objectweb.asm.util.TraceMethodVisitor;
+
+/**
+ * Компиляция исходников для тестов и загрузка полученных классов.
+ * Тесты запускаются с <code>-Xverify:all</code>, так что при загрузке
+ * байткод проверяется верификатором
+ */
+final class TestClasses {
+
+    private TestClasses() {}
+
+    /**
+     * С отладочной информацией
+     */
+    static Map<String, byte[]> compile(Map<String, String> sources) throws IOException {
+        return compile(sources, "-g");
+    }
+
+    /**
+     * @param sources Полное имя класса -&gt; исходный код
+     * @param options Параметры javac
+     * @return Внутреннее имя -&gt; байты всех полученных классов, включая вложенные
+     */
+    static Map<String, byte[]> compile(Map<String, String> sources, String... options) throws IOException {
+        Path dir = Files.createTempDirectory("test-classes");
+        try {
+            Path output = Files.createDirectory(dir.resolve("out"));
+            List<String> args = new ArrayList<>(List.of(options));
+            args.add("-d");
+            args.add(output.toString());
+            for (var entry : sources.entrySet()) {
+                Path file = dir.resolve("src").resolve(entry.getKey().replace('.', '/') + ".java");
+                Files.createDirectories(file.getParent());
+                Files.writeString(file, entry.getValue());
+                args.add(file.toString());
+            }
+            var errors = new ByteArrayOutputStream();
+            if (ToolProvider.getSystemJavaCompiler().run(null, null, errors, args.toArray(String[]::new)) != 0) {
+                throw new IllegalStateException(errors.toString());
+            }
+            Map<String, byte[]> classes = new TreeMap<>();
+            try (Stream<Path> files = Files.walk(output)) {
+                for (Path file : (Iterable<Path>) files.filter(f -> f.toString().endsWith(".class"))::iterator) {
+                    byte[] bytes = Files.readAllBytes(file);
+                    classes.put(new ClassReader(bytes).getClassName(), bytes);
+                }
+            }
+            return classes;
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Загрузчик, определяющий классы из байтов, остальные - через загрузчик тестов
+     */
+    static ClassLoader loader(Collection<byte[]> classes) {
+        Map<String, byte[]> byName = new HashMap<>();
+        for (byte[] bytes : classes) {
+            byName.put(new ClassReader(bytes).getClassName().replace('/', '.'), bytes);
+        }
+        return new ClassLoader(TestClasses.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                byte[] bytes = byName.get(name);
+                if (bytes == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                return this.defineClass(name, bytes, 0, bytes.length);
+            }
+        };
+    }
+
+    /**
+     * Текст кода метода вместе с фреймами, в порядке из класс-файла
+     */
+    static String methodText(byte[] classBytes, String name) {
+        var classNode = new ClassNode();
+        new ClassReader(classBytes).accept(classNode, 0);
+        var textifier = new Textifier();
+        for (MethodNode methodNode : classNode.methods) {
+            if (methodNode.name.equals(name)) {
+                methodNode.accept(new TraceMethodVisitor(textifier));
+            }
+        }
+        var text = new StringWriter();
+        textifier.print(new PrintWriter(text));
+        return text.toString();
+    }
+
+    /**
+     * Загружает и инициализирует класс. Ошибка проверки байткода -
+     * {@link VerifyError}
+     */
+    static Class<?> load(ClassLoader loader, String name) throws ClassNotFoundException {
+        return Class.forName(name.replace('/', '.'), true, loader);
+    }
+
+}